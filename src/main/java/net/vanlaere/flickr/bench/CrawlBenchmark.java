@@ -0,0 +1,284 @@
+package net.vanlaere.flickr.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import net.vanlaere.flickr.crawler.Crawler;
+import net.vanlaere.flickr.metrics.Histogram;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.parse.FlickrXMLParser;
+
+/**
+ * This class runs a repeatable end-to-end benchmark of the crawler.
+ *
+ * It starts a FakeFlickrServer with a synthetic data set, then runs the scan,
+ * the download and the parser against it in a scratch directory, and writes
+ * a JSON report with the duration, throughput and API calls of every phase,
+ * the latency percentiles per kind of call, and the peak heap usage. Reports
+ * of different versions can be compared in CI.
+ *
+ * Usage: [options] reportfile
+ * <ul>
+ * <li>-photos n : number of photos in the data set (default 200000)</li>
+ * <li>-days n : period covered by the data set, ending now (default 30)</li>
+ * <li>-latency ms : median latency of the fake endpoint (default 20)</li>
+ * <li>-sigma s : spread of the log-normal latency (default 0.5)</li>
+ * <li>-errors f : fraction of calls answered with a fault (default 0)</li>
+ * <li>-kicked f : fraction of calls answered with an error page (default 0)</li>
+ * <li>-pace ms : minimum time between two requests of the crawler (default 0)</li>
+ * <li>-seed n : seed of the data set (default 42)</li>
+ * <li>-workdir dir : scratch directory (default a new temp directory)</li>
+ * </ul>
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class CrawlBenchmark {
+
+    private int photos = 200000;
+
+    private int days = 30;
+
+    private double latency = 20;
+
+    private double sigma = 0.5;
+
+    private double errors = 0;
+
+    private double kicked = 0;
+
+    private long pace = 0;
+
+    private long seed = 42;
+
+    private File workdir = null;
+
+    /**
+     * Results per phase, in order.
+     */
+    private final Map<String, Map<String, Object>> phases = new LinkedHashMap<String, Map<String, Object>>();
+
+    /**
+     * Run the benchmark and write the report.
+     * @param reportFile The file to write the JSON report to
+     * @throws IOException if the scratch directory or the report cannot be written
+     */
+    public void run(String reportFile) throws IOException {
+        if (workdir == null) {
+            workdir = File.createTempFile("crawlbench_", "");
+            workdir.delete();
+        }
+        workdir.mkdirs();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        long now = new Date().getTime() / 1000;
+        long end = now - days * 86400L;
+        FakeFlickrServer server = new FakeFlickrServer(photos, end, now, seed);
+        server.setLatency(latency, sigma);
+        server.setErrorRate(errors);
+        server.setKickedRate(kicked);
+        String url = server.start();
+        System.out.println("Fake endpoint at " + url + " with " + photos + " photos");
+
+        String intervalFile = new File(workdir, "intervals.txt").getPath();
+        String dataDir = new File(workdir, "data").getPath() + File.separator;
+        String lastInterval = new File(workdir, "lastInterval.tmp").getPath();
+        String finalFile = new File(workdir, "final.txt").getPath();
+        try {
+            // Phase 1: scan
+            Crawler crawler = newCrawler(url, end, lastInterval);
+            Map<String, Long> before = counters();
+            long start = System.nanoTime();
+            crawler.identifyIntervals(intervalFile);
+            Map<String, Object> scan = phase("scan", start, before);
+            scan.put("intervals", countLines(intervalFile));
+            // Phase 2: download
+            crawler = newCrawler(url, end, lastInterval);
+            crawler.loadIntervalsFromFile(intervalFile);
+            new File(dataDir).mkdirs();
+            before = counters();
+            start = System.nanoTime();
+            crawler.downloadData(dataDir);
+            Map<String, Object> download = phase("download", start, before);
+            int pages = countFiles(new File(dataDir));
+            download.put("pages", pages);
+            download.put("pages_per_sec", pages / seconds(download));
+            // Phase 3: parse
+            before = counters();
+            start = System.nanoTime();
+            FlickrXMLParser parser = new FlickrXMLParser();
+            parser.run(dataDir, finalFile);
+            Map<String, Object> parse = phase("parse", start, before);
+            long records = countLines(finalFile);
+            parse.put("records", records);
+            parse.put("records_per_sec", records / seconds(parse));
+        } finally {
+            server.stop();
+        }
+        writeReport(reportFile, server);
+        System.out.println("Benchmark report written to " + reportFile);
+    }
+
+    private Crawler newCrawler(String url, long end, String lastInterval) {
+        Crawler crawler = new Crawler();
+        crawler.setApiKey("benchmark");
+        crawler.setServiceUrl(url);
+        crawler.setMinInterRequestTime(pace);
+        crawler.setLastIntervalFile(lastInterval);
+        crawler.setEndDate(end);
+        return crawler;
+    }
+
+    /**
+     * @return the current value of all counters
+     */
+    private static Map<String, Long> counters() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Number> entry : Metrics.get().values().entrySet())
+            values.put(entry.getKey(), entry.getValue().longValue());
+        return values;
+    }
+
+    /**
+     * Record the duration of a phase and the API calls it made.
+     */
+    private Map<String, Object> phase(String name, long start, Map<String, Long> before) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("seconds", (System.nanoTime() - start) / 1e9);
+        Map<String, Long> after = counters();
+        for (String counter : new String[]{"api.calls.succeeded", "api.calls.failed", "api.bytes_received"}) {
+            Long a = after.get(counter);
+            Long b = before.get(counter);
+            result.put(counter, (a == null ? 0 : a) - (b == null ? 0 : b));
+        }
+        phases.put(name, result);
+        return result;
+    }
+
+    private static double seconds(Map<String, Object> phase) {
+        return Math.max(1e-9, (Double) phase.get("seconds"));
+    }
+
+    private void writeReport(String reportFile, FakeFlickrServer server) throws IOException {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"config\": {");
+        json.append("\"photos\": ").append(photos).append(", \"days\": ").append(days);
+        json.append(", \"latency_ms\": ").append(latency).append(", \"sigma\": ").append(sigma);
+        json.append(", \"errors\": ").append(errors).append(", \"kicked\": ").append(kicked);
+        json.append(", \"pace_ms\": ").append(pace).append(", \"seed\": ").append(seed).append("},\n");
+        for (Map.Entry<String, Map<String, Object>> phase : phases.entrySet()) {
+            json.append("  \"").append(phase.getKey()).append("\": {");
+            boolean first = true;
+            for (Map.Entry<String, Object> value : phase.getValue().entrySet()) {
+                if (!first)
+                    json.append(", ");
+                json.append('"').append(value.getKey()).append("\": ").append(number(value.getValue()));
+                first = false;
+            }
+            json.append("},\n");
+        }
+        json.append("  \"latency\": {");
+        boolean first = true;
+        for (String kind : new String[]{"probe", "retry", "page"}) {
+            Histogram histogram = Metrics.get().histogram("api." + kind + ".latency");
+            if (histogram.getCount() == 0)
+                continue;
+            if (!first)
+                json.append(", ");
+            json.append('"').append(kind).append("\": {\"count\": ").append(histogram.getCount());
+            json.append(", \"mean_ms\": ").append(number(histogram.getMean() / 1000.));
+            json.append(", \"p50_ms\": ").append(number(histogram.getPercentile(50) / 1000.));
+            json.append(", \"p99_ms\": ").append(number(histogram.getPercentile(99) / 1000.));
+            json.append(", \"max_ms\": ").append(number(histogram.getMax() / 1000.)).append('}');
+            first = false;
+        }
+        json.append("},\n");
+        json.append("  \"server\": {\"requests\": ").append(server.getRequests());
+        json.append(", \"faults\": ").append(server.getFaults());
+        json.append(", \"kicks\": ").append(server.getKicks());
+        json.append(", \"bytes_sent\": ").append(server.getBytesSent()).append("},\n");
+        json.append("  \"peak_heap_bytes\": ").append(peakHeap).append("\n}\n");
+        try (PrintWriter out = new PrintWriter(new FileWriter(reportFile))) {
+            out.print(json);
+        }
+    }
+
+    private static String number(Object value) {
+        if (value instanceof Double)
+            return String.format(Locale.ROOT, "%.3f", (Double) value);
+        return String.valueOf(value);
+    }
+
+    private static long countLines(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists())
+            return 0;
+        long lines = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            while (in.readLine() != null)
+                lines++;
+        }
+        return lines;
+    }
+
+    private static int countFiles(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                count += file.isDirectory() ? countFiles(file) : 1;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        CrawlBenchmark benchmark = new CrawlBenchmark();
+        String report = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-")) {
+                report = arg;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                break;
+            String value = args[++i];
+            switch (arg) {
+                case "-photos": benchmark.photos = Integer.parseInt(value); break;
+                case "-days": benchmark.days = Integer.parseInt(value); break;
+                case "-latency": benchmark.latency = Double.parseDouble(value); break;
+                case "-sigma": benchmark.sigma = Double.parseDouble(value); break;
+                case "-errors": benchmark.errors = Double.parseDouble(value); break;
+                case "-kicked": benchmark.kicked = Double.parseDouble(value); break;
+                case "-pace": benchmark.pace = Long.parseLong(value); break;
+                case "-seed": benchmark.seed = Long.parseLong(value); break;
+                case "-workdir": benchmark.workdir = new File(value); break;
+                default:
+                    System.out.println("Unknown option " + arg);
+                    return;
+            }
+        }
+        if (report == null) {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: [-photos n] [-days n] [-latency ms] [-sigma s] [-errors f] [-kicked f]");
+            System.out.println("       [-pace ms] [-seed n] [-workdir dir] reportfile");
+            return;
+        }
+        benchmark.run(report);
+        System.exit(0);
+    }
+}
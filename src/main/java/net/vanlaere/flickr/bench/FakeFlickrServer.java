@@ -0,0 +1,370 @@
+package net.vanlaere.flickr.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class provides a local, in-process fake of the flickr.photos.search
+ * method of the Flickr XML RPC endpoint.
+ *
+ * The server holds a synthetic data set of photos with upload dates spread
+ * over a period, and answers searches on min_upload_date, max_upload_date,
+ * page, per_page and bbox the way Flickr does: results are sorted by upload
+ * date, newest first, and only the first 4000 results can be paged through.
+ *
+ * For benchmarking, the server can add latency (log-normal around a median),
+ * answer with an XML RPC fault, or answer with a short error page as if the
+ * client got kicked.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class FakeFlickrServer {
+
+    /**
+     * Maximum number of results Flickr will page through for a single query.
+     */
+    private static final int MAX_RESULTS = 4000;
+
+    private static final String[] TAGS = {"beach", "sea", "city", "night", "bridge", "paris",
+        "london", "snow", "mountain", "sunset", "tree", "dog", "cat", "church", "street", "festival"};
+
+    private static final Pattern MEMBER = Pattern.compile(
+            "<member>\\s*<name>([^<]*)</name>\\s*<value>(?:<\\w+>)?([^<]*)(?:</\\w+>)?</value>\\s*</member>");
+
+    /**
+     * Upload dates of all photos, sorted ascending.
+     */
+    private final long[] uploads;
+
+    private final long seed;
+
+    private double latencyMedian = 0;
+
+    private double latencySigma = 0;
+
+    private double errorRate = 0;
+
+    private double kickedRate = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong faults = new AtomicLong();
+
+    private final AtomicLong kicks = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * Construct a fake server with a synthetic data set.
+     * @param photos Number of photos in the data set
+     * @param from Oldest upload date (unix timestamp)
+     * @param to Newest upload date (unix timestamp)
+     * @param seed Seed for generating the data set
+     */
+    public FakeFlickrServer(int photos, long from, long to, long seed) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        this.uploads = new long[photos];
+        for (int i = 0; i < photos; i++)
+            uploads[i] = from + (long) (random.nextDouble() * (to - from));
+        Arrays.sort(uploads);
+    }
+
+    /**
+     * Add latency to every answer.
+     * @param median Median latency in milliseconds
+     * @param sigma Spread of the log-normal distribution, 0 for a fixed latency
+     */
+    public void setLatency(double median, double sigma) {
+        this.latencyMedian = median;
+        this.latencySigma = sigma;
+    }
+
+    /**
+     * @param errorRate Fraction of requests answered with an XML RPC fault
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param kickedRate Fraction of requests answered with a short error page
+     */
+    public void setKickedRate(double kickedRate) {
+        this.kickedRate = kickedRate;
+    }
+
+    /**
+     * Start the server on a free local port.
+     * @return the URL of the endpoint
+     * @throws IOException if the server cannot be started
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/services/xmlrpc/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/services/xmlrpc/";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPhotos() {
+        return uploads.length;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFaults() {
+        return faults.get();
+    }
+
+    public long getKicks() {
+        return kicks.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Map<String, String> parameters = parseRequest(exchange.getRequestBody());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (latencyMedian > 0) {
+            double latency = latencyMedian * Math.exp(latencySigma * random.nextGaussian());
+            try {
+                Thread.sleep((long) latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String body;
+        double draw = random.nextDouble();
+        if (draw < errorRate) {
+            faults.incrementAndGet();
+            body = fault(105, "Service currently unavailable");
+        }
+        else if (draw < errorRate + kickedRate) {
+            kicks.incrementAndGet();
+            body = answer("<rsp stat=\"fail\"><err code=\"0\"/></rsp>");
+        }
+        else
+            body = answer(search(parameters));
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        bytesSent.addAndGet(bytes.length);
+    }
+
+    private static Map<String, String> parseRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0)
+            buffer.write(buf, 0, len);
+        Map<String, String> parameters = new HashMap<String, String>();
+        Matcher matcher = MEMBER.matcher(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        while (matcher.find())
+            parameters.put(matcher.group(1), matcher.group(2));
+        return parameters;
+    }
+
+    /**
+     * Answer a search the way Flickr does.
+     */
+    private String search(Map<String, String> parameters) {
+        long min = parseLong(parameters.get("min_upload_date"), 0);
+        long max = parseLong(parameters.get("max_upload_date"), Long.MAX_VALUE);
+        int perPage = (int) parseLong(parameters.get("per_page"), 100);
+        int page = (int) Math.max(1, parseLong(parameters.get("page"), 1));
+        Set<String> extras = parameters.containsKey("extras")
+                ? new HashSet<String>(Arrays.asList(parameters.get("extras").split(","))) : null;
+        // Photos in [min, max], newest first
+        int from = lowerBound(min);
+        int to = max == Long.MAX_VALUE ? uploads.length : lowerBound(max + 1);
+        int[] matches = null;
+        int total = Math.max(0, to - from);
+        if (parameters.containsKey("bbox")) {
+            String[] corners = parameters.get("bbox").split(",");
+            double minLon = Double.parseDouble(corners[0]), minLat = Double.parseDouble(corners[1]);
+            double maxLon = Double.parseDouble(corners[2]), maxLat = Double.parseDouble(corners[3]);
+            matches = new int[total];
+            total = 0;
+            for (int i = to - 1; i >= from; i--) {
+                double[] location = location(i);
+                if (location[0] >= minLat && location[0] <= maxLat && location[1] >= minLon && location[1] <= maxLon)
+                    matches[total++] = i;
+            }
+        }
+        int pages = (Math.min(total, MAX_RESULTS) + perPage - 1) / perPage;
+        StringBuilder xml = new StringBuilder();
+        xml.append("<photos page=\"").append(page).append("\" pages=\"").append(pages)
+                .append("\" perpage=\"").append(perPage).append("\" total=\"").append(total).append("\">\n");
+        // Newest first
+        int first = (page - 1) * perPage;
+        int last = Math.min(Math.min(total, MAX_RESULTS), page * perPage);
+        for (int i = first; i < last; i++)
+            photo(matches == null ? to - 1 - i : matches[i], extras, xml);
+        xml.append("</photos>");
+        return xml.toString();
+    }
+
+    /**
+     * Write a synthetic photo, derived from its index only.
+     */
+    private void photo(int index, Set<String> extras, StringBuilder xml) {
+        Random random = new Random(seed * 31 + index);
+        long upload = uploads[index];
+        xml.append("\t<photo id=\"").append(1000000L + index).append("\" owner=\"")
+                .append(random.nextInt(100000)).append("@N00\" secret=\"")
+                .append(Long.toHexString(random.nextLong())).append("\" server=\"")
+                .append(random.nextInt(9000)).append("\" farm=\"").append(1 + random.nextInt(9))
+                .append("\" title=\"photo ").append(index).append("\" ispublic=\"1\" isfriend=\"0\" isfamily=\"0\"");
+        if (extras != null) {
+            // Draw every value, so a photo is the same whatever extras are requested
+            StringBuilder tags = new StringBuilder();
+            int nrTags = random.nextInt(6);
+            for (int t = 0; t < nrTags; t++) {
+                if (t > 0)
+                    tags.append(' ');
+                tags.append(TAGS[random.nextInt(TAGS.length)]);
+            }
+            int license = random.nextInt(8);
+            String taken = date(upload - random.nextInt(86400 * 30));
+            int owner = random.nextInt(100000);
+            long lastupdate = upload + random.nextInt(86400);
+            int accuracy = 1 + random.nextInt(16);
+            int place = random.nextInt(50000);
+            int woeid = random.nextInt(5000000);
+            int views = random.nextInt(5000);
+            if (extras.contains("description"))
+                xml.append(" description=\"\"");
+            if (extras.contains("license"))
+                xml.append(" license=\"").append(license).append('"');
+            if (extras.contains("date_upload"))
+                xml.append(" dateupload=\"").append(upload).append('"');
+            if (extras.contains("date_taken"))
+                xml.append(" datetaken=\"").append(taken).append("\" datetakengranularity=\"0\"");
+            if (extras.contains("owner_name"))
+                xml.append(" ownername=\"user").append(owner).append('"');
+            if (extras.contains("last_update"))
+                xml.append(" lastupdate=\"").append(lastupdate).append('"');
+            if (extras.contains("geo"))
+                xml.append(" latitude=\"").append(String.format(Locale.ROOT, "%.6f", location(index)[0]))
+                        .append("\" longitude=\"").append(String.format(Locale.ROOT, "%.6f", location(index)[1]))
+                        .append("\" accuracy=\"").append(accuracy)
+                        .append("\" place_id=\"p").append(place)
+                        .append("\" woeid=\"").append(woeid).append('"');
+            if (extras.contains("tags"))
+                xml.append(" tags=\"").append(tags).append('"');
+            if (extras.contains("machine_tags"))
+                xml.append(" machine_tags=\"\"");
+            if (extras.contains("views"))
+                xml.append(" views=\"").append(views).append('"');
+            if (extras.contains("media"))
+                xml.append(" media=\"photo\" media_status=\"ready\"");
+            if (extras.contains("path_alias"))
+                xml.append(" pathalias=\"\"");
+            if (extras.contains("url_o"))
+                xml.append(" url_o=\"\"");
+        }
+        xml.append(" />\n");
+    }
+
+    /**
+     * @return the latitude and longitude of a photo, derived from its index only
+     */
+    private double[] location(int index) {
+        // Spread the seeds, the first draws of close seeds are close as well
+        Random random = new Random((seed * 17 + index) * 0x9E3779B97F4A7C15L);
+        double latitude = Math.round((random.nextDouble() * 140 - 60) * 1e6) / 1e6;
+        double longitude = Math.round((random.nextDouble() * 360 - 180) * 1e6) / 1e6;
+        return new double[]{latitude, longitude};
+    }
+
+    private static String date(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp * 1000));
+    }
+
+    private int lowerBound(long value) {
+        int lo = 0, hi = uploads.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (uploads[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null)
+            return fallback;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String answer(String content) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<methodResponse><params><param><value><string>"
+                + escape(content) + "</string></value></param></params></methodResponse>";
+    }
+
+    private static String fault(int code, String message) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<methodResponse><fault><value><struct>"
+                + "<member><name>faultCode</name><value><int>" + code + "</int></value></member>"
+                + "<member><name>faultString</name><value><string>" + escape(message) + "</string></value></member>"
+                + "</struct></value></fault></methodResponse>";
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
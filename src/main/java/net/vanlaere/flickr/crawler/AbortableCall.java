@@ -0,0 +1,82 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfig;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+/**
+ * This class sends one attempt of a hedged request on a client of its own,
+ * so the attempt can be aborted.
+ *
+ * Interrupting a thread does not stop it from waiting for an answer on a
+ * socket, so the attempt that lost would hold its thread until the reply
+ * timeout. Aborting the attempt disconnects its connection instead, which
+ * closes the socket, and the attempt fails right away.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+class AbortableCall implements RequestHedger.Attempt {
+
+    private final XmlRpcClient client = new XmlRpcClient();
+
+    private final String method;
+
+    private final List<?> params;
+
+    /**
+     * The connection of the attempt, once it is opened.
+     */
+    private HttpURLConnection connection = null;
+
+    private boolean aborted = false;
+
+    /**
+     * Construct a new AbortableCall.
+     * @param config The config of the client the request would be sent with
+     * @param method The API method
+     * @param params The parameters of the call
+     */
+    AbortableCall(XmlRpcClientConfig config, String method, List<?> params) {
+        this.method = method;
+        this.params = params;
+        client.setConfig(config);
+        client.setTransportFactory(new XmlRpcTransportFactory() {
+            @Override
+            public XmlRpcTransport getTransport() {
+                return new XmlRpcSunHttpTransport(client) {
+                    @Override
+                    protected URLConnection newURLConnection(URL url) throws IOException {
+                        URLConnection opened = super.newURLConnection(url);
+                        synchronized (AbortableCall.this) {
+                            if (aborted)
+                                throw new IOException("The request was aborted");
+                            if (opened instanceof HttpURLConnection)
+                                connection = (HttpURLConnection) opened;
+                        }
+                        return opened;
+                    }
+                };
+            }
+        });
+    }
+
+    @Override
+    public Object send() throws XmlRpcException {
+        return client.execute(method, params);
+    }
+
+    @Override
+    public synchronized void abort() {
+        aborted = true;
+        if (connection != null)
+            connection.disconnect();
+    }
+}
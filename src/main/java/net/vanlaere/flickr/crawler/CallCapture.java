@@ -0,0 +1,368 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * This class records the API calls of a crawl to a capture file, and answers
+ * them again from that file, so a scan or download can be reproduced and
+ * profiled offline.
+ *
+ * A call is identified by its parameters, without the API key. When the same
+ * call was made more than once (a retry), the answers are replayed in the
+ * order they were recorded, and the last one is repeated after that. A call
+ * that is not in the capture fails, like a failed call to the API.
+ *
+ * File layout: a header (magic, version, the unix time the recording started
+ * and the offset of the index), the records (parameters, time since the start
+ * and latency in nanoseconds, whether the call failed, and the deflated
+ * answer or error message), and the index (parameters and record offset)
+ * written when the capture is closed. Without an index, e.g. after a crash,
+ * the records are scanned instead.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class CallCapture {
+
+    public static final String RECORD_PROPERTY = "flickr.capture.record";
+
+    public static final String REPLAY_PROPERTY = "flickr.capture.replay";
+
+    /**
+     * Speed of a replay: 0 answers as fast as possible, 1 answers every call
+     * no earlier after the start of the replay than it was made after the
+     * start of the recording, and then takes its recorded latency, 2 takes
+     * half of both, and so on.
+     */
+    public static final String SPEED_PROPERTY = "flickr.capture.speed";
+
+    private static final int MAGIC = 0x46434150;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Counter for the calls that were not found in the capture.
+     */
+    private static final Counter misses = Metrics.get().counter("capture.misses");
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final boolean recording;
+
+    /**
+     * Unix time the recording started, the "now" of a replayed crawl.
+     */
+    private final long clock;
+
+    /**
+     * System.nanoTime() when the recording or the replay started.
+     */
+    private final long startNanos;
+
+    private final double speed;
+
+    /**
+     * Record offsets by parameters, in the order they were recorded.
+     */
+    private final Map<String, List<Long>> index = new HashMap<String, List<Long>>();
+
+    /**
+     * Number of answers replayed so far, by parameters.
+     */
+    private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+
+    private CallCapture(RandomAccessFile file, boolean recording, long clock, double speed) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.recording = recording;
+        this.clock = clock;
+        this.startNanos = System.nanoTime();
+        this.speed = speed;
+    }
+
+    /**
+     * Start recording to a new capture file.
+     * @param filename The capture file, overwritten if it exists
+     * @param clock The unix time the crawl starts at
+     * @return the capture
+     * @throws IOException if the file cannot be written
+     */
+    public static CallCapture record(String filename, long clock) throws IOException {
+        new File(filename).delete();
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeLong(clock);
+        file.writeLong(0);
+        file.writeLong(0);
+        return new CallCapture(file, true, clock, 0);
+    }
+
+    /**
+     * Open a capture file to replay.
+     * @param filename The capture file
+     * @param speed 0 to answer as fast as possible, 1 for the recorded latency, 2 for half of it, ...
+     * @return the capture
+     * @throws IOException if the file cannot be read or is not a capture
+     */
+    public static CallCapture replay(String filename, double speed) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+            file.close();
+            throw new IOException("Not a capture file: " + filename);
+        }
+        CallCapture capture = new CallCapture(file, false, file.readLong(), speed);
+        long indexOffset = file.readLong();
+        if (indexOffset > 0)
+            capture.readIndex(indexOffset);
+        else
+            capture.scanRecords();
+        return capture;
+    }
+
+    /**
+     * @return the unix time the recording started
+     */
+    public long getClock() {
+        return clock;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return the number of distinct calls in the capture
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Identify a call by its parameters, sorted by name, without the API key.
+     */
+    private static String key(Map<String, Object> parameters) {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, Object> parameter : new TreeMap<String, Object>(parameters).entrySet()) {
+            if (parameter.getKey().equals("api_key"))
+                continue;
+            key.append(parameter.getKey()).append('=').append(parameter.getValue()).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Record a call.
+     * @param parameters The parameters of the call
+     * @param startNanos System.nanoTime() when the call started
+     * @param answer The answer, or null if the call failed
+     * @param error The error message if the call failed
+     */
+    public void record(Map<String, Object> parameters, long startNanos, String answer, String error) {
+        long latency = System.nanoTime() - startNanos;
+        String key = key(parameters);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] body = deflate((answer != null ? answer : String.valueOf(error)).getBytes(StandardCharsets.UTF_8));
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 8 + 8 + 1 + 4 + body.length);
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putLong(startNanos - this.startNanos).putLong(latency);
+        record.put((byte) (answer != null ? 0 : 1));
+        record.putInt(body.length).put(body);
+        record.flip();
+        synchronized (this) {
+            try {
+                long offset = channel.size();
+                while (record.hasRemaining())
+                    channel.write(record, offset + record.position());
+                add(key, offset);
+            } catch (IOException e) {
+                System.err.println("Error writing capture: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answer a call from the capture. At a replay speed, the call waits until
+     * the time it was made at in the recording, and then takes its recorded
+     * latency, so the gaps between the calls are replayed too.
+     * @param parameters The parameters of the call
+     * @return the recorded answer
+     * @throws XmlRpcException if the call failed when it was recorded, or is not in the capture
+     */
+    public String replay(Map<String, Object> parameters) throws XmlRpcException {
+        String key = key(parameters);
+        long offset;
+        synchronized (this) {
+            List<Long> offsets = index.get(key);
+            if (offsets == null) {
+                misses.inc();
+                throw new XmlRpcException("Call not in capture: " + key.replace('\n', ' '));
+            }
+            Integer cursor = cursors.get(key);
+            int next = cursor == null ? 0 : cursor;
+            offset = offsets.get(Math.min(next, offsets.size() - 1));
+            cursors.put(key, next + 1);
+        }
+        try {
+            ByteBuffer head = read(offset, 4);
+            int keyLength = head.getInt();
+            ByteBuffer meta = read(offset + 4 + keyLength, 8 + 8 + 1 + 4);
+            long start = meta.getLong();
+            long latency = meta.getLong();
+            boolean failed = meta.get() != 0;
+            int bodyLength = meta.getInt();
+            ByteBuffer body = read(offset + 4 + keyLength + 21, bodyLength);
+            String answer = new String(inflate(body.array()), StandardCharsets.UTF_8);
+            if (speed > 0) {
+                long wait = startNanos + (long) (start / speed) - System.nanoTime();
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, wait) + (long) (latency / speed));
+            }
+            if (failed)
+                throw new XmlRpcException(answer);
+            return answer;
+        } catch (IOException | DataFormatException e) {
+            throw new XmlRpcException("Error reading capture: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            throw new XmlRpcException("Interrupted while replaying", e);
+        }
+    }
+
+    /**
+     * Write the index and close the file. A replay only closes the file.
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (recording) {
+            long indexOffset = channel.size();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer entry = ByteBuffer.allocate(12);
+            int count = 0;
+            for (List<Long> offsets : index.values())
+                count += offsets.size();
+            out.write(entry.putInt(count).array(), 0, 4);
+            for (Map.Entry<String, List<Long>> call : index.entrySet()) {
+                byte[] keyBytes = call.getKey().getBytes(StandardCharsets.UTF_8);
+                for (long offset : call.getValue()) {
+                    entry.clear();
+                    out.write(entry.putInt(keyBytes.length).array(), 0, 4);
+                    out.write(keyBytes, 0, keyBytes.length);
+                    entry.clear();
+                    out.write(entry.putLong(offset).array(), 0, 8);
+                }
+            }
+            file.seek(indexOffset);
+            file.write(out.toByteArray());
+            file.seek(16);
+            file.writeLong(indexOffset);
+        }
+        file.close();
+    }
+
+    private void add(String key, long offset) {
+        List<Long> offsets = index.get(key);
+        if (offsets == null) {
+            offsets = new ArrayList<Long>(1);
+            index.put(key, offsets);
+        }
+        offsets.add(offset);
+    }
+
+    private void readIndex(long indexOffset) throws IOException {
+        file.seek(indexOffset);
+        int count = file.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] keyBytes = new byte[file.readInt()];
+            file.readFully(keyBytes);
+            add(new String(keyBytes, StandardCharsets.UTF_8), file.readLong());
+        }
+    }
+
+    /**
+     * Rebuild the index from the records, for a capture that was not closed.
+     */
+    private void scanRecords() throws IOException {
+        long offset = HEADER_SIZE;
+        long size = channel.size();
+        try {
+            while (offset < size) {
+                file.seek(offset);
+                byte[] keyBytes = new byte[file.readInt()];
+                file.readFully(keyBytes);
+                file.skipBytes(17);
+                int bodyLength = file.readInt();
+                long next = offset + 4 + keyBytes.length + 21 + bodyLength;
+                if (next > size)
+                    break;
+                add(new String(keyBytes, StandardCharsets.UTF_8), offset);
+                offset = next;
+            }
+        } catch (EOFException e) {
+            // A record cut off by a crash, the ones before it are fine
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Capture ends in the middle of a record");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[1 << 16];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput())
+                    throw new DataFormatException("Answer in capture is cut off");
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+import net.vanlaere.flickr.metrics.Metrics;
+
+/**
+ * This class estimates the cost of a crawl before running it.
+ *
+ * The period [end_date, now] is cut in strata, and the upload density of
+ * every stratum is sampled with a single count probe on a random window of an
+ * hour. The scan (the interval search of the crawler) is then simulated
+ * against these densities, which gives the expected number of intervals,
+ * scan probes, download pages, bytes and duration under the rate limit.
+ *
+ * The plan is written as a text file with the estimates and the density per
+ * stratum. A real scan can read it back to start every interval search with
+ * the interval size the plan expects there, instead of the size of the
+ * previous interval.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class CrawlPlan {
+
+    public static final String FILE_PROPERTY = "flickr.plan.file";
+
+    public static final String SAMPLES_PROPERTY = "flickr.plan.samples";
+
+    public static final String KEYS_PROPERTY = "flickr.plan.keys";
+
+    /**
+     * Length of the window counted for every sample, in seconds.
+     */
+    private static final long SAMPLE_WINDOW = 3600;
+
+    /**
+     * Number of results an interval of the scan is expected to hold, in the
+     * middle of the accepted 3000 to 4000.
+     */
+    private static final int TARGET_RESULTS = 3500;
+
+    private static final int ACCEPT_THRESHOLD = 3000;
+
+    private static final int MAX_RESULTS = 4000;
+
+    private static final int PER_PAGE = 250;
+
+    /**
+     * Size of a photo with all details in a page, if it cannot be measured.
+     */
+    private static final long DEFAULT_BYTES_PER_PHOTO = 700;
+
+    /**
+     * Interval size when nothing is known, the initial interval of the crawler.
+     */
+    private static final long DEFAULT_INTERVAL = 3600;
+
+    /**
+     * Start of every stratum, ascending. The last stratum ends at end.
+     */
+    private final long[] starts;
+
+    private final long end;
+
+    /**
+     * Photos per second in every stratum.
+     */
+    private final double[] densities;
+
+    /**
+     * Photos uploaded before the start of every stratum, and in total.
+     */
+    private final double[] cumulative;
+
+    /**
+     * The estimates, in the order they are written.
+     */
+    private final Map<String, Object> estimates = new LinkedHashMap<String, Object>();
+
+    private CrawlPlan(long[] starts, long end, double[] densities) {
+        this.starts = starts;
+        this.end = end;
+        this.densities = densities;
+        this.cumulative = new double[starts.length + 1];
+        for (int i = 0; i < starts.length; i++) {
+            long stop = i + 1 < starts.length ? starts[i + 1] : end;
+            cumulative[i + 1] = cumulative[i] + densities[i] * (stop - starts[i]);
+        }
+    }
+
+    /**
+     * Sample the upload density and estimate the cost of a crawl.
+     * @param crawler The crawler to probe with, configured like the real run
+     * @param end_date Start of the period, the end date of the crawl
+     * @param now End of the period
+     * @param samples Number of strata, one count probe each
+     * @param keys Number of API keys that crawl in parallel
+     * @return the plan
+     */
+    public static CrawlPlan create(Crawler crawler, long end_date, long now, int samples, int keys) {
+        samples = (int) Math.max(1, Math.min(samples, now - end_date));
+        long stratum = (now - end_date) / samples;
+        long[] starts = new long[samples];
+        double[] densities = new double[samples];
+        Random random = new Random(end_date);
+        long bytesPerPhoto = -1;
+        for (int i = 0; i < samples; i++) {
+            starts[i] = end_date + i * stratum;
+            long stop = i + 1 < samples ? starts[i] + stratum : now;
+            long window = Math.min(SAMPLE_WINDOW, stop - starts[i]);
+            long from = starts[i] + (long) (random.nextDouble() * (stop - starts[i] - window));
+            IntervalResult sample = new IntervalResult(from, from + window - 1, 0, 0);
+            String response = crawler.probe(sample);
+            if (response == null) {
+                densities[i] = Double.NaN;
+                continue;
+            }
+            int results = crawler.getNumberOfResults(response);
+            densities[i] = (double) results / window;
+            System.out.println(results + "\t##\t[" + sample.getMinDate() + ", " + sample.getMaxDate() + "]\t"
+                    + "[" + Crawler.unix2date(sample.getMinDate()) + ", " + Crawler.unix2date(sample.getMaxDate()) + "]");
+            // Measure the size of a photo with all details once
+            if (bytesPerPhoto < 0 && results > 0) {
+                String page = crawler.probe(sample, true);
+                if (page != null)
+                    bytesPerPhoto = page.length() / Math.min(results, PER_PAGE);
+            }
+        }
+        // Failed samples get the density of a neighbour
+        for (int i = 0; i < samples; i++) {
+            if (Double.isNaN(densities[i]))
+                densities[i] = i > 0 ? densities[i - 1] : Double.NaN;
+        }
+        for (int i = samples - 1; i >= 0; i--) {
+            if (Double.isNaN(densities[i]))
+                densities[i] = i + 1 < samples ? densities[i + 1] : 0;
+        }
+        CrawlPlan plan = new CrawlPlan(starts, now, densities);
+        double latency = Metrics.get().histogram("api.probe.latency").getMean() / 1000.;
+        plan.simulate(crawler.getMinInterRequestTime(), latency,
+                bytesPerPhoto < 0 ? DEFAULT_BYTES_PER_PHOTO : bytesPerPhoto, keys);
+        for (Map.Entry<String, Object> estimate : plan.estimates.entrySet())
+            System.out.println(estimate.getKey() + "\t" + estimate.getValue());
+        return plan;
+    }
+
+    /**
+     * Simulate the scan of the crawler against the sampled densities, seeded
+     * with this plan, and estimate the download.
+     */
+    private void simulate(long pace, double latency, long bytesPerPhoto, int keys) {
+        // Every call waits for the rate limit after the answer and again after a success
+        double callMillis = latency + 2 * pace;
+        long begin = starts[0];
+        long max = end;
+        long min = end - 1;
+        long intervals = 0, skipped = 0, probes = 0, pages = 0, photos = 0;
+        double retryMillis = 0, downloadMillis = 0;
+        while (min > begin) {
+            long interval = getIntervalSize(max);
+            long results;
+            // Go back in time until there are enough results
+            do {
+                min = Math.max(min - Math.max(1, interval / 2), begin);
+                probes++;
+                results = count(min, max);
+            }
+            while (results < ACCEPT_THRESHOLD && min > begin);
+            // Then forward again until there are not too many
+            long back = Math.max(1, interval / 5);
+            while (results > MAX_RESULTS && min < max) {
+                min = Math.min(min + back, max);
+                probes++;
+                results = count(min, max);
+            }
+            if (results > MAX_RESULTS) {
+                // A second split in bounding boxes, four probes per split
+                long parts = (results + ACCEPT_THRESHOLD - 1) / ACCEPT_THRESHOLD;
+                probes += 4 * parts;
+                intervals += parts;
+                pages += (results + PER_PAGE - 1) / PER_PAGE + parts;
+                downloadMillis += parts * (latency + 2 * pace) + ((results + PER_PAGE - 1) / PER_PAGE) * pace;
+            }
+            else if (results == 0) {
+                // Retried three times with growing sleeps, then skipped
+                probes += 3;
+                retryMillis += 14000;
+                skipped++;
+            }
+            else {
+                long intervalPages = (results + PER_PAGE - 1) / PER_PAGE;
+                intervals++;
+                pages += intervalPages;
+                // Pages start one rate limit apart, then the last one is waited for
+                downloadMillis += intervalPages * pace + latency + 2 * pace;
+            }
+            photos += results;
+            max = min - 1;
+            min = max - 1;
+        }
+        double scanSeconds = (probes * callMillis + retryMillis) / 1000;
+        estimates.put("period", starts[0] + " " + end);
+        estimates.put("samples", starts.length);
+        estimates.put("photos", photos);
+        estimates.put("intervals", intervals);
+        estimates.put("skipped_intervals", skipped);
+        estimates.put("scan_probes", probes);
+        estimates.put("pages", pages);
+        estimates.put("bytes_per_photo", bytesPerPhoto);
+        estimates.put("bytes", photos * bytesPerPhoto);
+        estimates.put("latency_ms", String.format(Locale.ROOT, "%.1f", latency));
+        estimates.put("pace_ms", pace);
+        estimates.put("keys", keys);
+        estimates.put("scan_hours", String.format(Locale.ROOT, "%.2f", scanSeconds / 3600 / keys));
+        estimates.put("download_hours", String.format(Locale.ROOT, "%.2f", downloadMillis / 1000 / 3600 / keys));
+        estimates.put("requests_per_hour_per_key", String.format(Locale.ROOT, "%.0f",
+                probes + pages == 0 ? 0 : (probes + pages) / ((scanSeconds + downloadMillis / 1000) / 3600)));
+    }
+
+    /**
+     * Expected number of photos uploaded in [min, max].
+     */
+    private long count(long min, long max) {
+        return Math.max(0, Math.round(uploadedBefore(max + 1) - uploadedBefore(min)));
+    }
+
+    /**
+     * Expected number of photos uploaded between the start of the plan and a
+     * time. Outside the plan, the density of the first or last stratum is used.
+     */
+    private double uploadedBefore(long time) {
+        int i = stratum(time);
+        return cumulative[i] + densities[i] * (time - starts[i]);
+    }
+
+    /**
+     * @return the index of the stratum holding a time
+     */
+    private int stratum(long time) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the interval size the scan is expected to accept at a time.
+     * @param time Max date of the interval (unix timestamp)
+     * @return the size in seconds
+     */
+    public long getIntervalSize(long time) {
+        double density = densities[stratum(time)];
+        if (density <= 0)
+            return DEFAULT_INTERVAL;
+        return Math.max(1, (long) (TARGET_RESULTS / density));
+    }
+
+    /**
+     * @return the estimates, by name
+     */
+    public Map<String, Object> getEstimates() {
+        return estimates;
+    }
+
+    /**
+     * Write the plan: the estimates, then one line per stratum with its start,
+     * end and density (photos per second).
+     * @param filename The file to write to
+     */
+    public void write(String filename) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+            for (Map.Entry<String, Object> estimate : estimates.entrySet())
+                out.println(estimate.getKey() + " " + estimate.getValue());
+            for (int i = 0; i < starts.length; i++) {
+                long stop = i + 1 < starts.length ? starts[i + 1] : end;
+                out.println("stratum " + starts[i] + " " + stop + " " + String.format(Locale.ROOT, "%.6f", densities[i]));
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing plan: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load a plan written by write().
+     * @param filename The file of the plan
+     * @return the plan
+     * @throws IOException if the file cannot be read or has no strata
+     */
+    public static CrawlPlan load(String filename) throws IOException {
+        List<long[]> strata = new ArrayList<long[]>();
+        List<Double> densities = new ArrayList<Double>();
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] values = line.split(" ");
+                if (values[0].equals("stratum")) {
+                    strata.add(new long[]{Long.parseLong(values[1]), Long.parseLong(values[2])});
+                    densities.add(Double.parseDouble(values[3]));
+                }
+            }
+        }
+        if (strata.isEmpty())
+            throw new IOException("No strata in " + filename);
+        long[] starts = new long[strata.size()];
+        double[] density = new double[strata.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = strata.get(i)[0];
+            density[i] = densities.get(i);
+        }
+        return new CrawlPlan(starts, strata.get(strata.size() - 1)[1], density);
+    }
+}
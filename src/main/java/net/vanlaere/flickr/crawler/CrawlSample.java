@@ -0,0 +1,521 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+
+/**
+ * This class draws a random sample of the pages of a crawl, to estimate
+ * statistics of all photos from a fraction of the downloads.
+ *
+ * The intervals found by the scan are the units of a stratified two stage
+ * sample. The intervals are cut in strata of consecutive intervals holding
+ * about the same number of photos, so dense periods get more strata. In every
+ * stratum, intervals are drawn at random, without replacement, in proportion
+ * to the pages of the stratum, at least two when the stratum has them. In
+ * every drawn interval, pages are drawn at random as well.
+ *
+ * A photo on a drawn page of interval i in stratum h gets the weight
+ * (M_h / m_h) * (P_i / p_i): intervals in the stratum over intervals drawn,
+ * times pages of the interval over pages drawn. Summing the weights of the
+ * photos that match a condition is an unbiased estimate of the number of all
+ * photos that match it.
+ *
+ * The sample is written to sample.tsv in the data folder, with the weight of
+ * every page, so a download can be resumed and the parser can add the
+ * weights to its output.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class CrawlSample {
+
+    public static final String FRACTION_PROPERTY = "flickr.sample.fraction";
+
+    public static final String STRATA_PROPERTY = "flickr.sample.strata";
+
+    public static final String PAGES_PROPERTY = "flickr.sample.pages";
+
+    public static final String SEED_PROPERTY = "flickr.sample.seed";
+
+    public static final String FILE = "sample.tsv";
+
+    /**
+     * File the download of a sample writes its last interval to, in the data folder.
+     */
+    public static final String LAST_INTERVAL_FILE = "sample.last";
+
+    /**
+     * A drawn interval with its drawn pages.
+     */
+    private static class Unit {
+
+        private final IntervalResult interval;
+
+        private final int stratum;
+
+        private final int[] pages;
+
+        private final double weight;
+
+        Unit(IntervalResult interval, int stratum, int[] pages, double weight) {
+            this.interval = interval;
+            this.stratum = stratum;
+            this.pages = pages;
+            this.weight = weight;
+        }
+    }
+
+    private final double fraction;
+
+    /**
+     * The number of strata asked for, fewer are used when the sample is too
+     * small to draw two intervals from every stratum.
+     */
+    private final int strata;
+
+    private final int pagesPerInterval;
+
+    private final long seed;
+
+    /**
+     * Number of intervals and pages in every stratum, and drawn from it.
+     */
+    private final int[] intervals;
+
+    private final int[] drawn;
+
+    private final long[] pages;
+
+    private final long[] results;
+
+    /**
+     * The drawn intervals, by key.
+     */
+    private final Map<String, Unit> units = new LinkedHashMap<String, Unit>();
+
+    private final String template;
+
+    private CrawlSample(double fraction, int strata, int pagesPerInterval, long seed, String template, int used) {
+        this.fraction = fraction;
+        this.strata = strata;
+        this.pagesPerInterval = pagesPerInterval;
+        this.seed = seed;
+        this.template = template;
+        this.intervals = new int[used];
+        this.drawn = new int[used];
+        this.pages = new long[used];
+        this.results = new long[used];
+    }
+
+    /**
+     * Draw a sample, or read the sample a data folder already has.
+     * @param crawler The crawler that downloads the sample
+     * @param dataDir The data folder
+     * @param all The intervals of the scan, without the empty ones
+     * @param fraction The share of the pages to download
+     * @param strata The number of strata
+     * @param pagesPerInterval The number of pages to draw in a drawn interval
+     * @param seed Seed of the random draws
+     * @return the sample, or null if the data folder holds another sample
+     */
+    public static CrawlSample open(Crawler crawler, String dataDir, List<IntervalResult> all, double fraction,
+            int strata, int pagesPerInterval, long seed) {
+        File file = new File(dataDir, FILE);
+        if (file.exists()) {
+            try {
+                CrawlSample existing = read(file, crawler.DATAFILE_TEMPLATE, all);
+                if (existing.fraction != fraction || existing.strata != strata
+                        || existing.pagesPerInterval != pagesPerInterval || existing.seed != seed) {
+                    System.err.println(file + " holds a sample of fraction " + existing.fraction + ", "
+                            + existing.strata + " strata, " + existing.pagesPerInterval + " pages per interval and seed "
+                            + existing.seed + ". Use the same settings to resume it, or another data folder.");
+                    return null;
+                }
+                System.out.println("Resuming the sample in " + file);
+                return existing;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading " + file + ": " + e.getMessage());
+                return null;
+            }
+        }
+        CrawlSample sample = draw(all, fraction, strata, pagesPerInterval, seed, crawler.DATAFILE_TEMPLATE);
+        try {
+            file.getParentFile().mkdirs();
+            sample.write(file);
+        } catch (IOException e) {
+            System.err.println("Error writing " + file + ": " + e.getMessage());
+            return null;
+        }
+        return sample;
+    }
+
+    /**
+     * Draw a sample of the pages of a set of intervals.
+     */
+    static CrawlSample draw(List<IntervalResult> all, double fraction, int strata, int pagesPerInterval,
+            long seed, String template) {
+        List<IntervalResult> sorted = new ArrayList<IntervalResult>(all);
+        Collections.sort(sorted, new Comparator<IntervalResult>() {
+            @Override
+            public int compare(IntervalResult a, IntervalResult b) {
+                return Long.compare(a.getMinDate(), b.getMinDate());
+            }
+        });
+        long scanned = 0;
+        for (IntervalResult interval : sorted)
+            scanned += interval.getTotalPages();
+        // Two intervals of every stratum must fit in the sample, or the variance cannot be estimated
+        long budget = (long) Math.ceil(fraction * scanned / pagesPerInterval);
+        int used = (int) Math.max(1, Math.min(strata, Math.min(budget / 2, sorted.size())));
+        CrawlSample sample = new CrawlSample(fraction, strata, pagesPerInterval, seed, template, used);
+        int[] stratumOf = sample.stratify(sorted);
+        Random random = new Random(seed);
+        for (int h = 0; h < used; h++) {
+            List<IntervalResult> members = new ArrayList<IntervalResult>();
+            for (int i = 0; i < sorted.size(); i++) {
+                if (stratumOf[i] == h)
+                    members.add(sorted.get(i));
+            }
+            int total = members.size();
+            // Enough intervals for the share of the pages of the stratum, at least two for the variance
+            int m = (int) Math.ceil(fraction * sample.pages[h] / pagesPerInterval);
+            m = Math.min(total, Math.max(Math.min(2, total), m));
+            Collections.shuffle(members, random);
+            sample.drawn[h] = m;
+            for (IntervalResult interval : members.subList(0, m)) {
+                int totalPages = interval.getTotalPages();
+                int p = Math.min(pagesPerInterval, totalPages);
+                List<Integer> pageNumbers = new ArrayList<Integer>();
+                for (int page = 1; page <= totalPages; page++)
+                    pageNumbers.add(page);
+                Collections.shuffle(pageNumbers, random);
+                int[] chosen = new int[p];
+                for (int j = 0; j < p; j++)
+                    chosen[j] = pageNumbers.get(j);
+                Arrays.sort(chosen);
+                double weight = ((double) total / m) * ((double) totalPages / p);
+                sample.units.put(interval.getKey(), new Unit(interval, h, chosen, weight));
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Cut the intervals, sorted by time, in strata of about the same number of photos.
+     * @return the stratum of every interval
+     */
+    private int[] stratify(List<IntervalResult> sorted) {
+        long total = 0;
+        for (IntervalResult interval : sorted)
+            total += interval.getNumberOfResults();
+        int[] stratumOf = new int[sorted.size()];
+        long before = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            IntervalResult interval = sorted.get(i);
+            // The stratum of the middle photo of the interval
+            int used = intervals.length;
+            int h = (int) Math.min(used - 1, (before + interval.getNumberOfResults() / 2) * used / Math.max(1, total));
+            // Every stratum keeps at least one interval
+            h = Math.max(h, used - (sorted.size() - i));
+            if (i > 0)
+                h = Math.max(h, stratumOf[i - 1]);
+            h = Math.min(h, i);
+            stratumOf[i] = h;
+            intervals[h]++;
+            pages[h] += interval.getTotalPages();
+            results[h] += interval.getNumberOfResults();
+            before += interval.getNumberOfResults();
+        }
+        return stratumOf;
+    }
+
+    /**
+     * @return the drawn intervals, newest first like a download
+     */
+    public List<IntervalResult> getIntervals() {
+        List<IntervalResult> list = new ArrayList<IntervalResult>();
+        for (Unit unit : units.values())
+            list.add(unit.interval);
+        Collections.sort(list, new Comparator<IntervalResult>() {
+            @Override
+            public int compare(IntervalResult a, IntervalResult b) {
+                return Long.compare(b.getMaxDate(), a.getMaxDate());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @param interval An interval
+     * @return the drawn pages of the interval, empty if it was not drawn
+     */
+    public int[] getPages(IntervalResult interval) {
+        Unit unit = units.get(interval.getKey());
+        return unit == null ? new int[0] : unit.pages;
+    }
+
+    /**
+     * @return the number of drawn pages
+     */
+    public int getPageCount() {
+        int count = 0;
+        for (Unit unit : units.values())
+            count += unit.pages.length;
+        return count;
+    }
+
+    /**
+     * @return the file name of a page of an interval
+     */
+    private String pageFile(IntervalResult interval, int page) {
+        return DownloadWorker.pageFile(template, interval, page);
+    }
+
+    private void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("# Pages drawn from the intervals of a scan, with the weight of their photos");
+            out.println("fraction\t" + fraction);
+            out.println("strata\t" + strata);
+            out.println("pages_per_interval\t" + pagesPerInterval);
+            out.println("seed\t" + seed);
+            out.println("# stratum\tintervals\tdrawn\tpages\tresults");
+            for (int h = 0; h < intervals.length; h++)
+                out.println("stratum\t" + h + "\t" + intervals[h] + "\t" + drawn[h] + "\t" + pages[h] + "\t" + results[h]);
+            out.println("# page\tfile\tstratum\tinterval\tweight");
+            for (Unit unit : units.values()) {
+                for (int page : unit.pages)
+                    out.println("page\t" + pageFile(unit.interval, page) + "\t" + unit.stratum + "\t"
+                            + unit.interval + "\t" + unit.weight);
+            }
+        }
+    }
+
+    /**
+     * Read a sample back.
+     * @param file The sample file
+     * @param template The template of the page file names
+     * @param all The intervals of the scan, to check the sample against
+     */
+    private static CrawlSample read(File file, String template, List<IntervalResult> all) throws IOException {
+        Map<String, String> settings = new HashMap<String, String>();
+        List<String[]> strata = new ArrayList<String[]>();
+        List<String[]> rows = new ArrayList<String[]>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\t");
+                if (fields[0].equals("stratum"))
+                    strata.add(fields);
+                else if (fields[0].equals("page"))
+                    rows.add(fields);
+                else
+                    settings.put(fields[0], fields[1]);
+            }
+        }
+        CrawlSample sample = new CrawlSample(Double.parseDouble(settings.get("fraction")),
+                Integer.parseInt(settings.get("strata")), Integer.parseInt(settings.get("pages_per_interval")),
+                Long.parseLong(settings.get("seed")), template, strata.size());
+        for (String[] stratum : strata) {
+            int h = Integer.parseInt(stratum[1]);
+            sample.intervals[h] = Integer.parseInt(stratum[2]);
+            sample.drawn[h] = Integer.parseInt(stratum[3]);
+            sample.pages[h] = Long.parseLong(stratum[4]);
+            sample.results[h] = Long.parseLong(stratum[5]);
+        }
+        Map<String, List<Integer>> pagesOf = new LinkedHashMap<String, List<Integer>>();
+        Map<String, String[]> rowOf = new HashMap<String, String[]>();
+        for (String[] row : rows) {
+            IntervalResult interval = IntervalResult.parse(row[3]);
+            List<Integer> pageNumbers = pagesOf.get(interval.getKey());
+            if (pageNumbers == null) {
+                pageNumbers = new ArrayList<Integer>();
+                pagesOf.put(interval.getKey(), pageNumbers);
+                rowOf.put(interval.getKey(), row);
+            }
+            pageNumbers.add(pageNumber(row[1]));
+        }
+        long total = 0;
+        for (IntervalResult interval : all)
+            total += interval.getNumberOfResults();
+        long sampled = 0;
+        for (long stratumResults : sample.results)
+            sampled += stratumResults;
+        if (total != sampled)
+            throw new IOException("the sample was drawn from " + sampled + " results, the intervals hold " + total);
+        for (Map.Entry<String, List<Integer>> entry : pagesOf.entrySet()) {
+            String[] row = rowOf.get(entry.getKey());
+            int[] chosen = new int[entry.getValue().size()];
+            for (int j = 0; j < chosen.length; j++)
+                chosen[j] = entry.getValue().get(j);
+            sample.units.put(entry.getKey(), new Unit(IntervalResult.parse(row[3]), Integer.parseInt(row[2]),
+                    chosen, Double.parseDouble(row[4])));
+        }
+        return sample;
+    }
+
+    /**
+     * @return the page number in a page file name
+     */
+    private static int pageNumber(String pageFile) {
+        String number = pageFile.substring(pageFile.lastIndexOf('_') + 1, pageFile.lastIndexOf('.'));
+        return Integer.parseInt(number);
+    }
+
+    /**
+     * Read the weights of the pages of a data folder, for the parser.
+     * @param dataDir The data folder
+     * @return the weight of every drawn page by file name, or null if the folder holds no sample
+     * @throws IOException if the sample cannot be read
+     */
+    public static Map<String, String> readWeights(String dataDir) throws IOException {
+        File file = new File(dataDir, FILE);
+        if (!file.exists())
+            return null;
+        Map<String, String> weights = new HashMap<String, String>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("page\t")) {
+                    String[] fields = line.split("\t");
+                    weights.put(fields[1], fields[4]);
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Estimate the number of photos from the downloaded pages and compare it
+     * with the count of the scan, as a check of the sample.
+     * @param dataDir The data folder
+     */
+    public void report(String dataDir) {
+        PageCompression compression;
+        try {
+            compression = PageCompression.open(dataDir);
+        } catch (IOException e) {
+            System.err.println("Error reading " + PageCompression.DICTIONARY_FILE + ": " + e.getMessage());
+            return;
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        countPhotos(new File(dataDir), compression, counts);
+        double estimate = 0;
+        double variance = 0;
+        long downloaded = 0;
+        long totalPages = 0;
+        long total = 0;
+        for (int h = 0; h < intervals.length; h++) {
+            totalPages += pages[h];
+            total += results[h];
+            // Estimated photos of every drawn interval of the stratum
+            List<Double> estimates = new ArrayList<Double>();
+            // Variance of the estimates of the drawn intervals, from the pages drawn in them
+            double within = 0;
+            for (Unit unit : units.values()) {
+                if (unit.stratum != h)
+                    continue;
+                long photos = 0;
+                long squares = 0;
+                for (int page : unit.pages) {
+                    Integer count = counts.get(pageFile(unit.interval, page));
+                    if (count != null) {
+                        photos += count;
+                        squares += (long) count * count;
+                        downloaded++;
+                    }
+                }
+                int p = unit.pages.length;
+                int totalPagesOfInterval = unit.interval.getTotalPages();
+                estimates.add((double) totalPagesOfInterval / p * photos);
+                if (p > 1) {
+                    double pageVariance = (squares - (double) photos * photos / p) / (p - 1);
+                    within += (double) totalPagesOfInterval * totalPagesOfInterval
+                            * (1 - (double) p / totalPagesOfInterval) * pageVariance / p;
+                }
+            }
+            int m = estimates.size();
+            double sum = 0;
+            for (double e : estimates)
+                sum += e;
+            estimate += (double) intervals[h] / Math.max(1, m) * sum;
+            if (m > 1) {
+                double mean = sum / m;
+                double squares = 0;
+                for (double e : estimates)
+                    squares += (e - mean) * (e - mean);
+                // Between interval variance, with the finite population correction
+                variance += (double) intervals[h] * intervals[h] * (1 - (double) m / intervals[h]) * squares / (m - 1) / m;
+            }
+            // Plus the variance of drawing pages within the intervals
+            variance += (double) intervals[h] / Math.max(1, m) * within;
+        }
+        System.out.println(String.format(Locale.ROOT, "Sample: %d of %d pages (%.2f%%) in %d strata",
+                downloaded, totalPages, 100. * downloaded / Math.max(1, totalPages), intervals.length));
+        System.out.println(String.format(Locale.ROOT, "Estimated photos: %.0f +- %.0f (95%%), the scan counted %d",
+                estimate, 1.96 * Math.sqrt(variance), total));
+    }
+
+    private void countPhotos(File dir, PageCompression compression, Map<String, Integer> counts) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory())
+                countPhotos(file, compression, counts);
+            else if (file.getName().endsWith(".xml")) {
+                try (InputStream in = compression.read(file)) {
+                    counts.put(file.getName(), countPhotos(in));
+                } catch (IOException e) {
+                    System.err.println("Error reading " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the photo elements of a page.
+     */
+    private static int countPhotos(InputStream in) throws IOException {
+        byte[] pattern = "<photo ".getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[1 << 16];
+        int matched = 0;
+        int count = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == pattern[matched]) {
+                    if (++matched == pattern.length) {
+                        count++;
+                        matched = 0;
+                    }
+                }
+                else
+                    matched = buffer[i] == pattern[0] ? 1 : 0;
+            }
+        }
+        return count;
+    }
+}
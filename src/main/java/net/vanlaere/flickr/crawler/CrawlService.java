@@ -0,0 +1,547 @@
+package net.vanlaere.flickr.crawler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.metrics.Trace;
+import net.vanlaere.flickr.parse.ParseSpec;
+
+/**
+ * This class runs crawls as jobs of one long-running process, so crawls that
+ * use the same API key share its quota instead of each pacing themselves.
+ *
+ * All jobs send their requests with one set of clients, through one
+ * RequestLimiter that lets requests through at the quota of the key and
+ * divides them over the jobs by priority. The metrics of all jobs are those
+ * of the process.
+ *
+ * The jobs are controlled with a small HTTP API on the local machine, with
+ * JSON bodies:
+ *
+ *   GET  /jobs                   the limiter and all jobs
+ *   POST /jobs                   submit a job, e.g. {"name":"belgium","command":"download",
+ *                                "intervals":"intervals.txt","data":"data","priority":2}
+ *   GET  /jobs/ID                one job
+ *   POST /jobs/ID/pause          pause a job
+ *   POST /jobs/ID/resume         resume a job
+ *   POST /jobs/ID/priority       change the priority of a job, e.g. {"priority":4}
+ *   GET  /metrics                a snapshot of the metrics
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class CrawlService {
+
+    public static final String PORT_PROPERTY = "flickr.service.port";
+
+    public static final String QUOTA_PROPERTY = "flickr.service.quota";
+
+    /**
+     * A crawl run by the service.
+     */
+    private class Job implements Runnable {
+
+        private final int id;
+
+        private final String name;
+
+        private final String command;
+
+        private final Map<String, String> settings;
+
+        private final Crawler crawler;
+
+        private final RequestLimiter.Job share;
+
+        private volatile String state = "running";
+
+        private volatile String error = null;
+
+        private final long submitted = System.currentTimeMillis();
+
+        private volatile long finished = 0;
+
+        Job(int id, Map<String, String> settings) {
+            this.id = id;
+            this.settings = settings;
+            this.name = setting("name", "job-" + id);
+            this.command = setting("command", null);
+            if (command == null)
+                throw new IllegalArgumentException("command is missing");
+            if (!command.equals("scan") && !command.equals("download") && !command.equals("sample")
+                    && !command.equals("follow") && !command.equals("refresh"))
+                throw new IllegalArgumentException("unknown command " + command);
+            required("intervals");
+            if (command.equals("scan") || command.equals("follow") || command.equals("refresh"))
+                required("end");
+            if (!command.equals("scan"))
+                required("data");
+            if (command.equals("follow"))
+                this.crawler = new TailCrawler(setting("intervals", null) + TailCrawler.STATE_SUFFIX,
+                        Long.parseLong(setting("interval", "3600")), Long.parseLong(setting("overlap", "3600")));
+            else if (command.equals("refresh"))
+                this.crawler = new RefreshCrawler(setting("intervals", null) + RefreshCrawler.STATE_SUFFIX,
+                        Long.parseLong(setting("overlap", "3600")));
+            else
+                this.crawler = new Crawler();
+            crawler.setApiKey(apiKey);
+            crawler.shareClients(pool);
+            // The limiter paces the requests
+            crawler.setMinInterRequestTime(0);
+            if (settings.containsKey("end"))
+                crawler.setEndDate(Long.parseLong(settings.get("end")));
+            crawler.setDownloadRange(Long.parseLong(setting("from", "" + Long.MIN_VALUE)),
+                    Long.parseLong(setting("to", "" + Long.MAX_VALUE)));
+            if (settings.containsKey("schema"))
+                crawler.setSchema(PageSchema.forSpec(ParseSpec.parse(settings.get("schema"))));
+            if (settings.containsKey("method"))
+                crawler.setSearchMethod(SearchMethod.forName(settings.get("method")));
+            // Every download keeps its last interval in its own data folder
+            if (settings.containsKey("data"))
+                crawler.setLastIntervalFile(new File(settings.get("data"), Crawler.LAST_INTERVAL_FILE).getPath());
+            this.share = limiter.newJob(name, Integer.parseInt(setting("priority", "1")));
+            crawler.setLimiter(share);
+        }
+
+        private String setting(String key, String defaultValue) {
+            String value = settings.get(key);
+            return value == null ? defaultValue : value;
+        }
+
+        private void required(String key) {
+            if (!settings.containsKey(key))
+                throw new IllegalArgumentException(key + " is missing for " + command);
+        }
+
+        /**
+         * @return the files the job writes, no two running jobs may share one
+         */
+        List<String> getFiles() {
+            List<String> files = new ArrayList<String>();
+            if (command.equals("scan") || command.equals("follow") || command.equals("refresh"))
+                files.add(new File(settings.get("intervals")).getAbsolutePath());
+            if (settings.containsKey("data"))
+                files.add(new File(settings.get("data")).getAbsolutePath());
+            return files;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String intervals = settings.get("intervals");
+                String data = settings.get("data");
+                switch (command) {
+                    case "scan":
+                        crawler.scan(intervals);
+                        break;
+                    case "download":
+                        crawler.download(intervals, data);
+                        break;
+                    case "sample":
+                        crawler.sample(intervals, data, Double.parseDouble(setting("fraction", "0.01")),
+                                Integer.parseInt(setting("strata", "20")), Integer.parseInt(setting("pages", "1")),
+                                Long.parseLong(setting("seed", "1")));
+                        break;
+                    case "follow":
+                        new File(data + "/").mkdirs();
+                        ((TailCrawler) crawler).follow(intervals, data + "/");
+                        break;
+                    case "refresh":
+                        new File(data + "/").mkdirs();
+                        if (((RefreshCrawler) crawler).refresh(data + "/", Long.parseLong(settings.get("end"))) == null)
+                            throw new IllegalStateException("the refresh failed, see the log");
+                        break;
+                }
+                state = "done";
+            } catch (RuntimeException e) {
+                error = e.toString();
+                state = "failed";
+                System.err.println("Job " + id + " (" + name + ") failed: " + e);
+            } finally {
+                finished = System.currentTimeMillis();
+                crawler.shutdownPageThreads();
+                share.close();
+            }
+        }
+
+        boolean isRunning() {
+            return finished == 0;
+        }
+
+        void toJson(StringBuilder json) {
+            json.append("{\"id\":").append(id);
+            json.append(",\"name\":").append(quote(name));
+            json.append(",\"command\":").append(quote(command));
+            json.append(",\"state\":").append(quote(isRunning() && share.isPaused() ? "paused" : state));
+            json.append(",\"priority\":").append(share.getPriority());
+            json.append(",\"requests\":").append(share.getRequests());
+            json.append(",\"wait_ms\":").append(share.getWaitMillis());
+            json.append(",\"results_found\":").append(crawler.getResultsFound());
+            json.append(",\"pages_downloaded\":").append(crawler.getPagesDownloaded());
+            json.append(",\"pages_total\":").append(crawler.getPagesToBeDownloaded());
+            json.append(",\"submitted\":").append(submitted);
+            if (finished > 0)
+                json.append(",\"finished\":").append(finished);
+            if (error != null)
+                json.append(",\"error\":").append(quote(error));
+            json.append(",\"settings\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                if (!first)
+                    json.append(',');
+                first = false;
+                json.append(quote(setting.getKey())).append(':').append(quote(setting.getValue()));
+            }
+            json.append("}}");
+        }
+    }
+
+    private final String apiKey;
+
+    /**
+     * The crawler holding the clients all jobs share.
+     */
+    private final Crawler pool;
+
+    private final RequestLimiter limiter;
+
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param apiKey The API key all jobs share
+     * @param requestsPerHour The quota of the key
+     */
+    public CrawlService(String apiKey, double requestsPerHour) {
+        this.apiKey = apiKey;
+        this.pool = new Crawler();
+        this.limiter = new RequestLimiter(requestsPerHour);
+    }
+
+    /**
+     * Point the clients of all jobs to another XML RPC endpoint, e.g. a local test server.
+     * @param url The URL of the endpoint
+     */
+    public void setServiceUrl(String url) {
+        pool.setServiceUrl(url);
+    }
+
+    /**
+     * @param millis The deadline of a request, 0 to wait forever
+     */
+    public void setRequestTimeout(long millis) {
+        pool.setRequestTimeout(millis);
+    }
+
+    /**
+     * Start the control API on a local port.
+     * @param port The port, 0 for a free one
+     * @return the URL of the API
+     * @throws IOException if the server cannot be started
+     */
+    public String start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 16);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Stop the control API. Running jobs are not stopped.
+     */
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Submit a job.
+     * @param settings The settings of the job
+     * @return the job, as JSON
+     * @throws IllegalArgumentException if the settings are not valid, or the
+     * job writes files a running job writes
+     */
+    public String submit(Map<String, String> settings) {
+        Job job;
+        synchronized (jobs) {
+            job = new Job(jobs.size() + 1, settings);
+            for (Job other : jobs) {
+                if (!other.isRunning())
+                    continue;
+                for (String file : job.getFiles()) {
+                    if (other.getFiles().contains(file)) {
+                        job.share.close();
+                        throw new IllegalArgumentException("job " + other.id + " (" + other.name + ") already writes " + file);
+                    }
+                }
+            }
+            jobs.add(job);
+        }
+        Thread thread = new Thread(job, "job-" + job.id);
+        thread.setDaemon(false);
+        thread.start();
+        System.out.println("Started job " + job.id + " (" + job.name + "): " + settings);
+        StringBuilder json = new StringBuilder();
+        job.toJson(json);
+        return json.toString();
+    }
+
+    private Job find(int id) {
+        synchronized (jobs) {
+            return id >= 1 && id <= jobs.size() ? jobs.get(id - 1) : null;
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+        int status = 200;
+        String body;
+        try {
+            if (path[0].equals("metrics") && path.length == 1 && method.equals("GET"))
+                body = Metrics.get().snapshot();
+            else if (path[0].equals("jobs") && path.length == 1 && method.equals("GET"))
+                body = listJobs();
+            else if (path[0].equals("jobs") && path.length == 1 && method.equals("POST")) {
+                body = submit(parseObject(read(exchange.getRequestBody())));
+                status = 201;
+            }
+            else if (path[0].equals("jobs") && path.length >= 2) {
+                Job job = find(Integer.parseInt(path[1]));
+                if (job == null) {
+                    status = 404;
+                    body = error("no job " + path[1]);
+                }
+                else if (path.length == 2 && method.equals("GET"))
+                    body = toJson(job);
+                else if (path.length == 3 && method.equals("POST") && path[2].equals("pause")) {
+                    job.share.setPaused(true);
+                    body = toJson(job);
+                }
+                else if (path.length == 3 && method.equals("POST") && path[2].equals("resume")) {
+                    job.share.setPaused(false);
+                    body = toJson(job);
+                }
+                else if (path.length == 3 && method.equals("POST") && path[2].equals("priority")) {
+                    String priority = parseObject(read(exchange.getRequestBody())).get("priority");
+                    if (priority == null)
+                        throw new IllegalArgumentException("priority is missing");
+                    job.share.setPriority(Integer.parseInt(priority));
+                    body = toJson(job);
+                }
+                else {
+                    status = 404;
+                    body = error("unknown request " + method + " " + exchange.getRequestURI().getPath());
+                }
+            }
+            else {
+                status = 404;
+                body = error("unknown request " + method + " " + exchange.getRequestURI().getPath());
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes malformed numbers
+            status = 400;
+            body = error(e.getMessage());
+        }
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String listJobs() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"requests_per_hour\":").append(limiter.getRequestsPerHour());
+        json.append(",\"requests\":").append(limiter.getRequests());
+        json.append(",\"jobs\":[");
+        synchronized (jobs) {
+            for (int i = 0; i < jobs.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                jobs.get(i).toJson(json);
+            }
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static String toJson(Job job) {
+        StringBuilder json = new StringBuilder();
+        job.toJson(json);
+        return json.toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            body.write(buffer, 0, n);
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Quote a string as a JSON string.
+     */
+    static String quote(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Parse a JSON object of strings, numbers and booleans, the only bodies
+     * of the API. Values are kept as their text.
+     * @param text The JSON
+     * @return the values by key, in order
+     * @throws IllegalArgumentException if the text is not such an object
+     */
+    static Map<String, String> parseObject(String text) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        int[] at = {skip(text, 0)};
+        expect(text, at, '{');
+        if (peek(text, at) == '}') {
+            at[0]++;
+            return values;
+        }
+        while (true) {
+            String key = parseString(text, at);
+            expect(text, at, ':');
+            String value;
+            if (peek(text, at) == '"')
+                value = parseString(text, at);
+            else {
+                int start = at[0];
+                while (at[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(at[0])) < 0)
+                    at[0]++;
+                value = text.substring(start, at[0]);
+                if (value.isEmpty() || value.equals("null"))
+                    throw new IllegalArgumentException("unsupported value for " + key);
+            }
+            values.put(key, value);
+            if (peek(text, at) == ',') {
+                at[0]++;
+                continue;
+            }
+            expect(text, at, '}');
+            if (skip(text, at[0]) != text.length())
+                throw new IllegalArgumentException("unexpected text after the object");
+            return values;
+        }
+    }
+
+    private static int skip(String text, int at) {
+        while (at < text.length() && Character.isWhitespace(text.charAt(at)))
+            at++;
+        return at;
+    }
+
+    private static char peek(String text, int[] at) {
+        at[0] = skip(text, at[0]);
+        if (at[0] >= text.length())
+            throw new IllegalArgumentException("unexpected end of the body");
+        return text.charAt(at[0]);
+    }
+
+    private static void expect(String text, int[] at, char c) {
+        if (peek(text, at) != c)
+            throw new IllegalArgumentException("expected '" + c + "' at " + at[0]);
+        at[0]++;
+    }
+
+    private static String parseString(String text, int[] at) {
+        expect(text, at, '"');
+        StringBuilder value = new StringBuilder();
+        while (at[0] < text.length()) {
+            char c = text.charAt(at[0]++);
+            if (c == '"')
+                return value.toString();
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (at[0] >= text.length())
+                break;
+            char escaped = text.charAt(at[0]++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (at[0] + 4 > text.length())
+                        throw new IllegalArgumentException("bad escape at " + at[0]);
+                    value.append((char) Integer.parseInt(text.substring(at[0], at[0] + 4), 16));
+                    at[0] += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    /**
+     * Main method.
+     * @param args Expected arguments: api_key
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: api_key [proxyHost proxyPort]");
+            System.out.println(" api_key            \tThe Flickr API key all jobs share");
+            System.out.println(" ProxyHost and port \t(Optional) Specify for using a proxy");
+            System.exit(0);
+        }
+        if (args.length == 3)
+            Crawler.setUpProxy(args[1], args[2]);
+        // Start writing metric snapshots, if requested
+        Metrics.get().startFromSystemProperties();
+        // Start recording a trace, if requested
+        Trace.get().startFromSystemProperties();
+        CrawlService service = new CrawlService(args[0],
+                Double.parseDouble(System.getProperty(QUOTA_PROPERTY, "3600")));
+        service.setRequestTimeout(Long.parseLong(System.getProperty(Crawler.REQUEST_TIMEOUT_PROPERTY, "60000")));
+        String url = service.start(Integer.parseInt(System.getProperty(PORT_PROPERTY, "8642")));
+        System.out.println("Crawl service listening on " + url);
+    }
+}
@@ -14,7 +14,18 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+import net.vanlaere.flickr.crawler.datatypes.IntervalStore;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Histogram;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.metrics.Progress;
+import net.vanlaere.flickr.metrics.Trace;
+import net.vanlaere.flickr.parse.ParseSpec;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
@@ -61,11 +72,6 @@ public class Crawler {
      */
     protected final String SERVICE_URL = "http://api.flickr.com/services/xmlrpc/";
 
-    /**
-     * Minimum accuracy to request for items you want to retrieve from Flickr.
-     */
-    protected final String MIN_ACCURACY = "1";
-
     /**
      * Template for storing result files.
      */
@@ -74,7 +80,64 @@ public class Crawler {
     /**
      * Filename of the a tmp file that keeps track of the last interval that is being crawled.
      */
-    private static final String LAST_INTERVAL_FILE = "lastInterval.tmp";
+    protected static final String LAST_INTERVAL_FILE = "lastInterval.tmp";
+
+    /**
+     * System properties to only download the intervals of a time range.
+     */
+    public static final String DOWNLOAD_FROM_PROPERTY = "flickr.download.from";
+
+    public static final String DOWNLOAD_TO_PROPERTY = "flickr.download.to";
+
+    /**
+     * The file actually used for keeping track of the last interval.
+     */
+    private String lastIntervalFile = LAST_INTERVAL_FILE;
+
+    /**
+     * Set the file that keeps track of the last interval that is being crawled.
+     * @param lastIntervalFile The filename to use instead of lastInterval.tmp
+     */
+    public void setLastIntervalFile(String lastIntervalFile) {
+        this.lastIntervalFile = lastIntervalFile;
+    }
+
+    /**
+     * Compressed storage of the downloaded pages, or null to write them plain.
+     */
+    private PageCompression compression = null;
+
+    /**
+     * @return the compressed storage of the pages, or null if they are written plain
+     */
+    public PageCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * The extras the pages are downloaded with.
+     */
+    private PageSchema schema = PageSchema.defaultSchema();
+
+    /**
+     * Only request the extras a schema needs.
+     * @param schema The schema of the pages
+     */
+    public void setSchema(PageSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @return the schema of the pages
+     */
+    protected PageSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * The sample of pages to download, or null to download all pages.
+     */
+    private CrawlSample sample = null;
 
     /**
      * Setting that keeps track of the maximum number of files per directory with results.
@@ -89,6 +152,14 @@ public class Crawler {
      */
     protected long MIN_INTER_REQUEST_TIME = 2500;
 
+    /**
+     * Set the minimum time between two requests.
+     * @param millis Time in milliseconds
+     */
+    public void setMinInterRequestTime(long millis) {
+        this.MIN_INTER_REQUEST_TIME = millis;
+    }
+
     /**
      * Basic time-out used when a request fails. The system will retry the call with
      * incrementing sleeps, but the basic one starts here.
@@ -107,26 +178,120 @@ public class Crawler {
     private static final int MAX_NUMBER_OF_RETRIES = 3;
 
     /*
-     * Variable that counts the total number of succesful remote calls.
+     * Counter for the total number of succesful remote calls.
      */
-    private static int remote_calls_succeeded = 0;
+    private static final Counter remote_calls_succeeded = Metrics.get().counter("api.calls.succeeded");
 
     /*
-     * Variable that counts the total number of failed remote calls.
+     * Counter for the total number of failed remote calls.
+     */
+    private static final Counter remote_calls_failed = Metrics.get().counter("api.calls.failed");
+
+    /**
+     * Counter for the number of bytes (characters) received from the API.
+     */
+    private static final Counter bytes_received = Metrics.get().counter("api.bytes_received");
+
+    /**
+     * Histogram of the time spent waiting between requests to respect the rate limit.
+     */
+    protected static final Histogram rate_limit_wait = Metrics.get().histogram("ratelimit.wait");
+
+    /**
+     * Histogram of the time spent in back-off sleeps before a retry.
+     */
+    private static final Histogram retry_backoff = Metrics.get().histogram("scan.retry_backoff");
+
+    /**
+     * Counter of the results of bounding boxes that are too small to split
+     * and that have more results than can be downloaded.
+     */
+    private static final Counter results_lost = Metrics.get().counter("scan.results_lost");
+
+    /**
+     * Timeline of the calls, retries and sleeps, if enabled.
      */
-    private static int remote_calls_failed = 0;
+    protected static final Trace trace = Trace.get();
 
     /**
-     * Here comes the method name of the API function you would like to call.
-     * E.g. "flickr.photos.search".
+     * Kinds of API calls, used to split the metrics: count probes while scanning,
+     * their retries, and pages while downloading.
      */
-    private static final String methodName = "flickr.photos.search";
+    protected static final String CALL_PROBE = "probe";
+
+    protected static final String CALL_RETRY = "retry";
+
+    protected static final String CALL_PAGE = "page";
+
+    /**
+     * Here comes the API function you would like to call, and the parameters
+     * that select a range of dates with it. E.g. "flickr.photos.search".
+     */
+    private SearchMethod method = SearchMethod.UPLOADS;
+
+    /**
+     * Call another API function, e.g. to list photos by their last update.
+     * @param method The function and its parameters
+     */
+    public void setSearchMethod(SearchMethod method) {
+        this.method = method;
+    }
+
+    /**
+     * @return the API function and its parameters
+     */
+    public SearchMethod getSearchMethod() {
+        return method;
+    }
 
     /**
      * Holds our XML RPC client.
      */
     private XmlRpcClient [] clients = null;
 
+    /**
+     * The threads that download the pages of an interval, one per client,
+     * created when the first page is downloaded. They are not shared with
+     * other crawlers, so a page that waits for its turn only holds up the
+     * pages of this crawler.
+     */
+    private ExecutorService pageThreads = null;
+
+    /**
+     * The endpoint the clients call.
+     */
+    private URL service_url;
+
+    public static final String REQUEST_TIMEOUT_PROPERTY = "flickr.request.timeout";
+
+    /**
+     * Deadline of a request in milliseconds, 0 to wait forever.
+     */
+    private long request_timeout = 60000;
+
+    /**
+     * Sends the page requests when they are hedged, or null.
+     */
+    private RequestHedger hedger = null;
+
+    /**
+     * The time the next request may start, in System.nanoTime().
+     */
+    private long nextRequestSlot = Long.MIN_VALUE;
+
+    private final Object requestSlots = new Object();
+
+    /**
+     * Records the calls, or answers them when replaying, or null.
+     */
+    private CallCapture capture = null;
+
+    /**
+     * The share of a rate limiter every request waits for, or null when the
+     * crawler paces itself with MIN_INTER_REQUEST_TIME.
+     */
+    private RequestLimiter.Job limiter = null;
+
     /**
      * Variable used for tracking the number of results that are found
      * during the current run.
@@ -141,6 +306,13 @@ public class Crawler {
         this.resultsFound = resultsFound;
     }
 
+    /**
+     * @return the number of results found so far while scanning
+     */
+    public int getResultsFound() {
+        return resultsFound;
+    }
+
     /**
      * Field holding the minimum upload date for filtering.
      */
@@ -167,6 +339,20 @@ public class Crawler {
         this.max_upload_date = max_upload_date;
     }
 
+    /**
+     * Lowest upload date the interval search will go to. Defaults to 0, the
+     * start of time; following new uploads sets it to the start of the window.
+     */
+    private long min_upload_floor = 0;
+
+    /**
+     * Set the lowest upload date the interval search will go to.
+     * @param min_upload_floor Unix timestamp
+     */
+    public void setMinUploadFloor(long min_upload_floor) {
+        this.min_upload_floor = min_upload_floor;
+    }
+
     /**
      * The initial time interval used to jump into the past. The crawler
      * will start from now and run to the past until it hits your specified
@@ -182,12 +368,60 @@ public class Crawler {
      */
     private long initial_interval = initial_initial_interval;
 
+    /**
+     * Plan of the crawl, used to seed the interval sizes, or null.
+     */
+    private CrawlPlan plan = null;
+
+    /**
+     * Seed the interval sizes of the scan with the densities of a plan.
+     * @param plan The plan
+     */
+    public void setPlan(CrawlPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * @return the minimum time between two requests, in milliseconds
+     */
+    public long getMinInterRequestTime() {
+        return MIN_INTER_REQUEST_TIME;
+    }
+
     /**
      * Threshold for the number of results to accept in an interval. If an interval
      * is found that exceeds this threshold, it is written to file.
      */
     private static final int ACCEPT_THRESHOLD = 3000;
 
+    /**
+     * Maximum number of results Flickr will page through for a single query.
+     */
+    private static final int MAX_RESULTS = 4000;
+
+    /**
+     * Maximum number of pages of 250 results Flickr will page through for a
+     * single query, also the number of clients.
+     */
+    protected static final int MAX_PAGES = MAX_RESULTS / 250;
+
+    /**
+     * Whole world bounding box (min_lon, min_lat, max_lon, max_lat), the start
+     * of the split of a second with too many results.
+     */
+    private static final double[] WORLD = {-180, -90, 180, 90};
+
+    /**
+     * Smallest bounding box width (in degrees) that is still split in quadrants.
+     */
+    private static final double MIN_BBOX_SIZE = 0.0001;
+
+    /**
+     * Locations have six decimals, so this is the smallest step between two
+     * locations.
+     */
+    private static final double LOCATION_STEP = 0.000001;
+
     /**
      * Holds a queued with results to process in a multithreaded way.
      */
@@ -200,22 +434,45 @@ public class Crawler {
 
     /**
      * Keeps track of the number of pages that have been downloaded in the current
-     * download mode.
+     * download mode, and reports the progress from a single thread.
      */
-    private int requestsDownloadedSoFar = 0;
+    private final Progress downloadProgress = new Progress("download", new Progress.Total() {
+        @Override
+        public long get() {
+            return totalRequestsToBeDownloaded;
+        }
+    });
 
     /**
-     * Keep track of the number of items downloaded in this crawl, and 
-     * notifies to the screen.
-     * @param notify If True, then "->" will be added to indicate the the request 
+     * Keep track of the number of items downloaded in this crawl. This never
+     * blocks: the progress is printed periodically by a reporter thread, and
+     * per-page messages only if enabled.
+     * @param notify If False, then "->" will be added to indicate the the request
      * was skipped due to an error.
      */
-    public synchronized void requestDownloaded(boolean notify) {
-        this.requestsDownloadedSoFar++;
+    public void requestDownloaded(boolean notify) {
         if (notify)
-            System.out.println("["+requestsDownloadedSoFar + "/" + totalRequestsToBeDownloaded +"]");
+            downloadProgress.done();
         else
-            System.out.println("["+requestsDownloadedSoFar + "/" + totalRequestsToBeDownloaded +"] -> ");
+            downloadProgress.skipped();
+        if (downloadProgress.isLoggingEvents()) {
+            long done = downloadProgress.getDone();
+            downloadProgress.event("["+done + "/" + totalRequestsToBeDownloaded +"]" + (notify ? "" : " -> "));
+        }
+    }
+
+    /**
+     * @return the number of pages downloaded so far
+     */
+    public long getPagesDownloaded() {
+        return downloadProgress.getDone();
+    }
+
+    /**
+     * @return the number of pages to be downloaded
+     */
+    public int getPagesToBeDownloaded() {
+        return totalRequestsToBeDownloaded;
     }
 
     // Keep track of the end date for this crawler
@@ -230,31 +487,217 @@ public class Crawler {
         this.end_date = end_date;
     }
 
+    /**
+     * @return the end date of this crawl (unix timestamp)
+     */
+    public long getEndDate() {
+        return end_date;
+    }
+
     /**
      * This constructor will create a XML RPC client and
      * configure some parameters.
      */
     public Crawler() {
+        // Create 16 clients for parallel processing
+        this.clients = new XmlRpcClient[MAX_PAGES];
+        for (int i = 0; i < clients.length; i++) {
+            // Create an instance of the XML RPC client
+            this.clients[i] = new XmlRpcClient();
+        }
+        // Configure the clients
+        setServiceUrl(SERVICE_URL);
+    }
+
+    /**
+     * Point all clients to another XML RPC endpoint, e.g. a local test server.
+     * @param url The URL of the endpoint
+     */
+    public void setServiceUrl(String url) {
         try {
-            // Create a XML RPC Client config
-            XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
-            URL service_endpoint = new URL(SERVICE_URL);
-            // Set the service endpoint in the config
-            config.setServerURL(service_endpoint);
-            // Create 16 clients for parallel processing
-            this.clients = new XmlRpcClient[16]; // 16 pages max
-            for (int i = 0; i < clients.length; i++) {
-                // Create an instance of the XML RPC client
-                this.clients[i] = new XmlRpcClient();
-                // Configure the client
-                this.clients[i].setConfig(config);
-            }
+            this.service_url = new URL(url);
+            configureClients();
         }
         catch (MalformedURLException e) {
             System.err.println("Malformed URL: " + e.getMessage());
         }
     }
 
+    /**
+     * Send the requests with the clients of another crawler, so crawlers
+     * running side by side share one set of clients and their endpoint.
+     * @param pool The crawler whose clients to use
+     */
+    public void shareClients(Crawler pool) {
+        this.clients = pool.clients;
+        this.service_url = pool.service_url;
+        this.request_timeout = pool.request_timeout;
+    }
+
+    /**
+     * @return the threads that download the pages of an interval. They live
+     * as long as the crawler, so a long crawl does not start a thread per page.
+     */
+    synchronized ExecutorService getPageThreads() {
+        if (pageThreads == null) {
+            pageThreads = Executors.newFixedThreadPool(clients.length, new ThreadFactory() {
+                private int next = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "page-" + next++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pageThreads;
+    }
+
+    /**
+     * Stop the threads that download the pages, when the crawler is done.
+     */
+    public synchronized void shutdownPageThreads() {
+        if (pageThreads != null) {
+            pageThreads.shutdown();
+            pageThreads = null;
+        }
+    }
+
+    /**
+     * Wait for a share of a rate limiter before every request, instead of
+     * pacing the requests with MIN_INTER_REQUEST_TIME, which should be 0 then.
+     * @param limiter The share of this crawler, or null to pace it alone
+     */
+    public void setLimiter(RequestLimiter.Job limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Send a request, or answer it from the capture when replaying.
+     * @param client The client to send the request with
+     * @param parameters The parameters of the request
+     * @param kind The kind of call
+     * @return the answer
+     * @throws XmlRpcException if the call failed
+     */
+    private String execute(final XmlRpcClient client, Map<String,Object> parameters, String kind) throws XmlRpcException {
+        if (capture != null && !capture.isRecording())
+            return capture.replay(parameters);
+        // Create a List that will contain the parameters in a map
+        final List<Map<String,Object>> params = new ArrayList<Map<String, Object>>();
+        // Add the parameters according to the struct that was defined before
+        params.add(parameters);
+        long start = System.nanoTime();
+        try {
+            String result;
+            // Hedge page requests, if enabled. A duplicate waits for its turn as well.
+            if (hedger != null && kind.equals(CALL_PAGE)) {
+                result = (String) hedger.execute(new RequestHedger.Request() {
+                    @Override
+                    public void await() throws InterruptedException {
+                        awaitTurn();
+                    }
+
+                    @Override
+                    public RequestHedger.Attempt newAttempt() {
+                        return new AbortableCall(client.getClientConfig(), method.getName(), params);
+                    }
+                });
+            }
+            else {
+                try {
+                    awaitTurn();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new XmlRpcException("Interrupted while waiting to send a request");
+                }
+                start = System.nanoTime();
+                result = (String) client.execute(method.getName(), params);
+            }
+            if (capture != null)
+                capture.record(parameters, start, result, null);
+            return result;
+        } catch (XmlRpcException e) {
+            if (capture != null)
+                capture.record(parameters, start, null, e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until a request may be sent: for the rate limiter when the key is
+     * shared, and for a request slot. Requests start at least the inter
+     * request time apart, so a request on top of the regular ones, like a
+     * hedged duplicate, delays the ones after it.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitTurn() throws InterruptedException {
+        if (limiter != null) {
+            Trace.Span span = trace.begin("api", "limiter");
+            try {
+                limiter.acquire();
+            } finally {
+                span.end();
+            }
+        }
+        long wait;
+        synchronized (requestSlots) {
+            long now = System.nanoTime();
+            long slot = Math.max(now, nextRequestSlot);
+            nextRequestSlot = slot + TimeUnit.MILLISECONDS.toNanos(MIN_INTER_REQUEST_TIME);
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            Trace.Span span = trace.begin("api", "pacing");
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+                rate_limit_wait.recordNanos(wait);
+            } finally {
+                span.end();
+            }
+        }
+    }
+
+    /**
+     * Record all calls to a capture, or answer them from a capture instead of the API.
+     * @param capture The capture, or null to call the API without recording
+     */
+    public void setCapture(CallCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Set the deadline of a request. A request that takes longer fails, and is
+     * retried like any other failed request.
+     * @param millis Time in milliseconds, 0 to wait forever
+     */
+    public void setRequestTimeout(long millis) {
+        this.request_timeout = millis;
+        configureClients();
+    }
+
+    /**
+     * Hedge page requests: send a slow page request a second time and keep
+     * the first answer.
+     * @param hedger The hedger to send page requests with, or null to disable
+     */
+    public void setHedger(RequestHedger hedger) {
+        this.hedger = hedger;
+    }
+
+    private void configureClients() {
+        // Create a XML RPC Client config
+        XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+        // Set the service endpoint in the config
+        config.setServerURL(service_url);
+        // Give up on connections and answers that take longer than the deadline
+        config.setConnectionTimeout((int) request_timeout);
+        config.setReplyTimeout((int) request_timeout);
+        for (XmlRpcClient client : clients)
+            client.setConfig(config);
+    }
+
     /**
      * This method makes a call to the API given the predefined parameters.
      *
@@ -262,33 +705,47 @@ public class Crawler {
      * @return Returns a String containing the response from the server.
      */
     public String call_service(boolean queryAllDetails) {
+        return call_service(queryAllDetails, CALL_PROBE);
+    }
+
+    /**
+     * This method makes a call to the API given the predefined parameters.
+     *
+     * @param queryAllDetails If true, the API will be queried for detailed info.
+     * @param kind The kind of call, for the metrics
+     * @return Returns a String containing the response from the server.
+     */
+    private String call_service(boolean queryAllDetails, String kind) {
         // Create a Map that keeps the parameters and their values
         Map<String,Object> parameterMap = getParameters(this.min_upload_date, this.max_upload_date, queryAllDetails, 1);
         // Send the request andResult that should be written to file receive the response
-        return make_call(this.clients[0], parameterMap);
+        return make_call(this.clients[0], parameterMap, kind);
     }
 
     protected Map<String,Object> getParameters(long min_date, long max_date, boolean queryAllDetails, int pageNumber) {
+        return getParameters(min_date, max_date, null, queryAllDetails, pageNumber);
+    }
+
+    /**
+     * Build the parameters of a search.
+     * @param min_date Minimum date, the upload date unless another search method is set
+     * @param max_date Maximum date
+     * @param bbox Bounding box as min_lon,min_lat,max_lon,max_lat, or null for the whole world
+     * @param queryAllDetails If true, the API will be queried for detailed info.
+     * @param pageNumber The page of the results
+     * @return the parameters
+     */
+    protected Map<String,Object> getParameters(long min_date, long max_date, String bbox, boolean queryAllDetails, int pageNumber) {
         Map<String,Object> parameterMap = new HashMap<String,Object>();
         // Set the API key
         parameterMap.put("api_key", api_key);
-        // Limit the results to images with at least region level accuracy on the location
-        parameterMap.put("accuracy", MIN_ACCURACY);
-        // Limit the results to images with geo information
-        parameterMap.put("has_geo", "1");
-        // Limi the results to only photos
-        parameterMap.put("media", "photos");
-        // Use minimum and maximum upload date to define a bounding box which will result
-        // in less or equal of 4000 results (more will not work due to a Flickr bug)
-        // Set the minimum value of the upload date
-        parameterMap.put("min_upload_date","" + min_date);
-        // Set the maximum value of the upload date
-        parameterMap.put("max_upload_date","" + max_date);
+        // Select the photos of the dates, by upload date unless another method is set
+        method.addParameters(parameterMap, min_date, max_date, bbox);
         // If all detailed are required, query for these extra values
+        // The default schema requests description,license,date_upload,date_taken,owner_name,
+        // last_update,geo,tags,machine_tags,views,media,path_alias,url_o
         if (queryAllDetails)
-            parameterMap.put("extras","description,license,date_upload,date_taken," +
-                    "owner_name,last_update,geo,tags,machine_tags,views," +
-                    "media,path_alias,url_o");
+            parameterMap.put("extras", schema.getExtrasParameter());
         // Possible values
 //        description, license, date_upload, date_taken, owner_name, icon_server, original_format, last_update, geo,
 //        tags, machine_tags, o_dims, views, media, path_alias, url_sq, url_t, url_s, url_m, url_z, url_l, url_o
@@ -307,37 +764,73 @@ public class Crawler {
      * @return Returns an XML String containing the response from the server.
      */
     public String make_call(XmlRpcClient client, Map<String,Object> parameters) {
-        // Create a List that will contain the parameters in a map
-        List<Map<String,Object>> params = new ArrayList<Map<String, Object>>();
-        // Add the parameters according to the struct that was defined before
-        params.add(parameters);
+        return make_call(client, parameters, CALL_PAGE);
+    }
+
+    /**
+     * This method makes a call to the API given the predefined parameters.
+     *
+     * @param client XML-RPC client for making requests
+     * @param parameters Map containing the parameters for this request
+     * @param kind The kind of call (probe, retry or page), for the metrics
+     * @return Returns an XML String containing the response from the server.
+     */
+    public String make_call(XmlRpcClient client, Map<String,Object> parameters, String kind) {
+        Trace.Span span = trace.begin("api", "api." + kind);
+        try {
+            return call(client, parameters, kind);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Make a call and sleep the inter request time, see make_call.
+     */
+    private String call(XmlRpcClient client, Map<String,Object> parameters, String kind) {
+        Metrics metrics = Metrics.get();
         // Send the request andResult that should be written to file receive the response
         String result;
+        long start = System.nanoTime();
         try{
-            result = (String) client.execute(methodName, params);
+            result = execute(client, parameters, kind);
+            metrics.histogram("api." + kind + ".latency").recordNanos(System.nanoTime() - start);
+            Trace.Span sleep = trace.begin("api", "sleep");
             try {
                 Thread.sleep(MIN_INTER_REQUEST_TIME);
+                rate_limit_wait.recordMillis(MIN_INTER_REQUEST_TIME);
             }
             catch (InterruptedException ex) {
                 System.err.println("Interrupted while making RPC call" + ex.getMessage());
+            } finally {
+                sleep.end();
             }
         } catch (XmlRpcException e) {
+            metrics.histogram("api." + kind + ".latency").recordNanos(System.nanoTime() - start);
             System.err.println("XML RPC Error: " + e.getMessage());
             result = null;
         }
-        // Failed call
-        if (result == null || result.length() < 100 || getNumberOfResults(result) < 0) {
-            remote_calls_failed++;
+        if (result != null)
+            bytes_received.add(result.length());
+        // Failed call. A short answer is an error, unless it is a valid empty result.
+        if (result == null || (result.length() < 100 && !result.contains(" total=\"0\"")) || getNumberOfResults(result) < 0) {
+            remote_calls_failed.inc();
+            metrics.counter("api." + kind + ".failed").inc();
             System.out.println("XML RPC Error - ignoring result");
             return null;
         }
         // Call succeeded
         else {
-            remote_calls_succeeded++;
+            remote_calls_succeeded.inc();
+            metrics.counter("api." + kind + ".succeeded").inc();
+            Trace.Span sleep = trace.begin("api", "sleep");
             try {
                 Thread.sleep(MIN_INTER_REQUEST_TIME);
+                rate_limit_wait.recordMillis(MIN_INTER_REQUEST_TIME);
             } catch (InterruptedException ex) {
                 System.err.println("Thread was interrrupted. " + ex.getMessage());
+            } finally {
+                sleep.end();
             }
             // In case the request was succesful and the retry sleep was
             // consumed, reset it
@@ -361,20 +854,24 @@ public class Crawler {
             PrintWriter out = new PrintWriter(new FileWriter(outputFile, true), true);
             long start = System.currentTimeMillis();
             while (this.min_upload_date > this.end_date){
+                // Start from the interval size the plan expects here, if any
+                if (plan != null)
+                    this.initial_interval = plan.getIntervalSize(this.max_upload_date);
                 // Find a good interval limiter to get the last 4000 pictures
-                // and store it as an IntervalResult
-                IntervalResult ir = findTimeInterval();
-                // Add the new interval to the queue
-                queue.add(ir);
-                System.out.println(ir);
-                out.println(ir);
+                // and store it as one or more IntervalResults
+                for (IntervalResult ir : findTimeInterval()) {
+                    // Add the new interval to the queue
+                    queue.add(ir);
+                    System.out.println(ir);
+                    out.println(ir);
+                }
                 // Prepare the date limits for a new call to findTimeInterval.
                 this.max_upload_date = this.min_upload_date-1 ;
                 this.min_upload_date = this.max_upload_date-1;
             }
             long stop = System.currentTimeMillis();
             System.out.println("The (partial) crawl took "+(stop-start)+" ms.");
-            System.out.println("Call info: ++ SUCCESS ++ : "+remote_calls_succeeded+" | -- FAILED -- : " + remote_calls_failed);
+            System.out.println("Call info: ++ SUCCESS ++ : "+remote_calls_succeeded.get()+" | -- FAILED -- : " + remote_calls_failed.get());
             out.close();
         } catch(IOException e) {
             System.err.println("IOException e:" + e);
@@ -390,9 +887,10 @@ public class Crawler {
      * @param min_date Lower date limit to be used in the search
      * @param max_date Upper date limit to be used in the search
      * @return New value for the minumum date, given the provided maximum date
-     * to achieve a result set of just under 4000 pictures.
+     * to achieve a result set of just under 4000 pictures. If a single second
+     * has more results, it is split in bounding boxes with at most 4000 results.
      */
-    private IntervalResult findTimeInterval(){
+    private List<IntervalResult> findTimeInterval(){
 
         long initial_min_upload_date = min_upload_date;
         long initial_max_upload_date = max_upload_date;
@@ -406,7 +904,7 @@ public class Crawler {
         do {
             skip = false;
             do {
-                this.min_upload_date = Math.max(min_upload_date-(long)(0.5*interval), 0);
+                this.min_upload_date = Math.max(min_upload_date-Math.max(1, (long)(0.5*interval)), min_upload_floor);
 
                 // Perform the request
                 String response = call_service(false);
@@ -422,13 +920,8 @@ public class Crawler {
                 int retries = 0;
                 while (numberOfResults == 0 && retries++ < MAX_NUMBER_OF_RETRIES) {
                     // If we use pauzes, then do it here
-                    try{
-                        Thread.sleep(1000 * retries * retries);
-                    }
-                    catch (InterruptedException e){
-                        System.err.println("Thread Interrupted: " + e.getMessage());
-                    }
-                    response = call_service(false);
+                    backoff(retries);
+                    response = call_service(false, CALL_RETRY);
                     calls++;
                     numberOfResults = getNumberOfResults(response);
                     System.out.println(numberOfResults + "\t  \t["+this.min_upload_date+","+this.max_upload_date+"] RETRY " + retries + "(sleep "+(retries*retries)+")");
@@ -448,18 +941,24 @@ public class Crawler {
                 }
             }
             // Do this wil the number of results is < 4000 AND min_date > 0
-            while ((numberOfResults < ACCEPT_THRESHOLD && this.min_upload_date > 0 && !skip));
-
-            long interval_back = interval / 5;
+            while ((numberOfResults < ACCEPT_THRESHOLD && this.min_upload_date > min_upload_floor && !skip));
 
-            while (numberOfResults > 4000) {
-                this.min_upload_date += interval_back;
+            long interval_back = Math.max(1, interval / 5);
 
+            while (numberOfResults > MAX_RESULTS) {
                 if (this.min_upload_date == this.max_upload_date) {
-                    initial_interval /= 2;
-                    numberOfResults = 0;
+                    // A single second with too many results: split it in space
+                    this.initial_interval = initial_initial_interval;
+                    System.out.println(" >> Splitting second " + this.max_upload_date + " in bounding boxes <<");
+                    List<IntervalResult> parts = new ArrayList<IntervalResult>();
+                    splitInBoundingBoxes(this.max_upload_date, WORLD, parts);
+                    System.out.println(" ** Results so far: "+ this.resultsFound + " **");
+                    return parts;
                 }
                 else {
+                    // Never step over the last second, it is probed on its own
+                    long too_many = this.min_upload_date;
+                    this.min_upload_date = Math.min(this.min_upload_date + interval_back, this.max_upload_date);
                     // Get the result for the last interval
                     String response = call_service(false);
                     calls++;
@@ -474,13 +973,8 @@ public class Crawler {
                     int retries = 0;
                     while (numberOfResults == 0 && retries++ < MAX_NUMBER_OF_RETRIES) {
                         // If we use pauzes, then do it here
-                        try{
-                            Thread.sleep(1000 * retries * retries);
-                        }
-                        catch (InterruptedException e){
-                            System.err.println("Thread Interrupted: " + e.getMessage());
-                        }
-                        response = call_service(false);
+                        backoff(retries);
+                        response = call_service(false, CALL_RETRY);
                         calls++;
                         numberOfResults = getNumberOfResults(response);
                         System.out.println(numberOfResults + "\t  \t["+this.min_upload_date+","+this.max_upload_date+"] RETRY " + retries + "(sleep "+(retries*retries)+")");
@@ -494,12 +988,25 @@ public class Crawler {
                     numberOfPages = getNumberOfPages(response);
                     System.out.println(numberOfResults + "\t>>\t["+this.min_upload_date+", "+this.max_upload_date+"]\t"
                             + "["+unix2date(this.min_upload_date)+", "+unix2date(this.max_upload_date)+"]");
+                    // Stepped over all results: they are in fewer, denser seconds, step back with smaller steps
+                    if (numberOfResults == 0) {
+                        if (interval_back > 1) {
+                            interval_back = Math.max(1, interval_back / 2);
+                            this.min_upload_date = too_many;
+                        }
+                        else {
+                            // Nothing after the second that has too many results
+                            this.min_upload_date = too_many;
+                            this.max_upload_date = too_many;
+                        }
+                        numberOfResults = MAX_RESULTS + 1;
+                    }
                 }
             }
 
-            if (this.min_upload_date < 0){
-                // Set the min date to 0
-                this.min_upload_date = 0;
+            if (this.min_upload_date < min_upload_floor){
+                // Set the min date to the floor
+                this.min_upload_date = min_upload_floor;
                 // Get the result for the last interval
                 String response = call_service(false);
                 // Find out the number of results
@@ -519,7 +1026,7 @@ public class Crawler {
                 }
             }
         }
-        while (numberOfResults == 0 && this.min_upload_date > 0 && !skip);
+        while (numberOfResults == 0 && this.min_upload_date > min_upload_floor && !skip);
 
         this.initial_interval = (long)((this.max_upload_date - this.min_upload_date));
 
@@ -528,31 +1035,168 @@ public class Crawler {
             this.resultsFound += numberOfResults;
             System.out.println(" ** Results so far: "+ this.resultsFound + " **");
             // Return a new IntervalResult containing the results
-            return new IntervalResult(this.min_upload_date,this.max_upload_date,numberOfPages,numberOfResults);
+            return Collections.singletonList(new IntervalResult(this.min_upload_date,this.max_upload_date,numberOfPages,numberOfResults));
         }
          else {
             System.out.println(" >> Skipped interval due to no results/timeout/error <<");
             // Return a new IntervalResult containing the results
             this.initial_interval = initial_initial_interval;
-            return new IntervalResult(this.min_upload_date,this.max_upload_date,0,0);
+            return Collections.singletonList(new IntervalResult(this.min_upload_date,this.max_upload_date,0,0));
          }
     }
 
+    /**
+     * Split a second with too many results in the four quadrants of a
+     * bounding box, recursively, until every part has at most 4000 results.
+     * Only quadrants with too many results are split further, so the number
+     * of probes grows with the number of results, not with the area. All
+     * results have a location (has_geo), so the quadrants cover them all.
+     * A bounding box includes its edges, so the upper quadrants start one
+     * location step after the middle, and a photo on a middle line is in a
+     * single quadrant. A quadrant that cannot be probed stops the scan, as it
+     * may hold results, so the second is split again when the scan resumes.
+     * @param second The second to split
+     * @param bbox The bounding box to split (min_lon, min_lat, max_lon, max_lat)
+     * @param parts The list to add the parts with results to
+     */
+    private void splitInBoundingBoxes(long second, double[] bbox, List<IntervalResult> parts) {
+        double midLon = Math.round((bbox[0] + bbox[2]) / 2 / LOCATION_STEP) * LOCATION_STEP;
+        double midLat = Math.round((bbox[1] + bbox[3]) / 2 / LOCATION_STEP) * LOCATION_STEP;
+        double[][] quadrants = {
+            {bbox[0], bbox[1], midLon, midLat},
+            {midLon + LOCATION_STEP, bbox[1], bbox[2], midLat},
+            {bbox[0], midLat + LOCATION_STEP, midLon, bbox[3]},
+            {midLon + LOCATION_STEP, midLat + LOCATION_STEP, bbox[2], bbox[3]}
+        };
+        for (double[] quadrant : quadrants) {
+            IntervalResult probe = new IntervalResult(second, second, 0, 0, quadrant);
+            String response = probe(probe);
+            // A failed probe is not an empty quadrant, try again before giving up
+            int retries = 0;
+            while (response == null && retries++ < MAX_NUMBER_OF_RETRIES) {
+                backoff(retries);
+                response = probe(probe);
+            }
+            if (response == null)
+                throw new IllegalStateException("Probing " + probe.getBboxString() + " of second " + second
+                        + " failed, resume the scan to split the second again");
+            int numberOfResults = getNumberOfResults(response);
+            if (numberOfResults > MAX_RESULTS && quadrant[2] - quadrant[0] > MIN_BBOX_SIZE) {
+                splitInBoundingBoxes(second, quadrant, parts);
+            }
+            else if (numberOfResults > 0) {
+                if (numberOfResults > MAX_RESULTS) {
+                    System.out.println(" >> Only the first " + MAX_RESULTS + " of " + numberOfResults
+                            + " results can be downloaded for " + probe.getBboxString() + ", "
+                            + (numberOfResults - MAX_RESULTS) + " are lost <<");
+                    results_lost.add(numberOfResults - MAX_RESULTS);
+                }
+                // Flickr does not page past the 4000th result, whatever number of pages it reports
+                int numberOfPages = Math.min(getNumberOfPages(response), MAX_PAGES);
+                IntervalResult part = new IntervalResult(second, second, numberOfPages, numberOfResults, quadrant);
+                System.out.println(numberOfResults + "\t[]\t" + part);
+                this.resultsFound += numberOfResults;
+                parts.add(part);
+            }
+        }
+    }
+
+    /**
+     * Count the results of an interval, retrying a failed call.
+     * @param ir The interval to count
+     * @return The response of the server, or null if all calls failed
+     */
+    protected String probe(IntervalResult ir) {
+        return probe(ir, false);
+    }
+
+    /**
+     * Get the first page of an interval, retrying a failed call.
+     * @param ir The interval
+     * @param queryAllDetails If true, the API will be queried for detailed info.
+     * @return The response of the server, or null if all calls failed
+     */
+    protected String probe(IntervalResult ir, boolean queryAllDetails) {
+        Map<String,Object> parameterMap = getParameters(ir.getMinDate(), ir.getMaxDate(), ir.getBboxString(), queryAllDetails, 1);
+        Trace.Span span = trace.begin("scan", "probe", ir.getKey());
+        try {
+            String response = make_call(this.clients[0], parameterMap, CALL_PROBE);
+            int retries = 0;
+            while (response == null && retries++ < MAX_NUMBER_OF_RETRIES) {
+                backoff(retries);
+                response = make_call(this.clients[0], parameterMap, CALL_RETRY);
+            }
+            return response;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Sleep before a retry, longer after every failed attempt.
+     * @param retries The number of the retry, starting at 1
+     */
+    private void backoff(int retries) {
+        Trace.Span span = trace.begin("scan", "backoff");
+        try{
+            Thread.sleep(1000 * retries * retries);
+            retry_backoff.recordMillis(1000 * retries * retries);
+        }
+        catch (InterruptedException e){
+            System.err.println("Thread Interrupted: " + e.getMessage());
+        }
+        finally {
+            span.end();
+        }
+    }
+
+    /**
+     * @return the intervals queued for download
+     */
+    protected List<IntervalResult> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Replace the intervals queued for download. Their pages are the total
+     * number of pages of the next download, the progress starts over with it.
+     * @param intervals The intervals to download next
+     */
+    protected void queueIntervals(List<IntervalResult> intervals) {
+        this.queue = intervals;
+        this.totalRequestsToBeDownloaded = 0;
+        for (IntervalResult ir : intervals)
+            this.totalRequestsToBeDownloaded += ir.getTotalPages();
+    }
+
+    /**
+     * Called for every downloaded page before it is written to file. The
+     * default implementation keeps the page as it is.
+     * @param page XML response from the server
+     * @return the XML to write to file
+     */
+    protected String filterPage(String page) {
+        return page;
+    }
+
     /**
      * Download the data.
      * @param resultsDir Directory containing the results.
      */
     public void downloadData(String resultsDir) {
+        // Never mix pages with different extras in one data folder
+        if (!schema.useDataFolder(resultsDir))
+            return;
         // Fetch all current directories
         File dir = new File(resultsDir);
         File [] files = dir.listFiles();
         int dircounter = 1;
-        if (files.length > 0) {
-            List<String> dirnames = new ArrayList<String>();
-            for (File file : files) {
-                if (file.isDirectory())
-                    dirnames.add(file.getName());
-            }
+        List<String> dirnames = new ArrayList<String>();
+        for (File file : files) {
+            if (file.isDirectory())
+                dirnames.add(file.getName());
+        }
+        if (dirnames.size() > 0) {
             Collections.sort(dirnames);
             String dirname = dirnames.get(dirnames.size()-1);
             // Get the number of the most recent dir
@@ -579,16 +1223,27 @@ public class Crawler {
             System.out.println("Switching output dir to: " + outputDir);
         }
 
+        // Store the pages compressed, with the dictionary of this data folder
+        if (compression == null && Boolean.getBoolean(PageCompression.PROPERTY)) {
+            try {
+                compression = PageCompression.open(resultsDir);
+            } catch (IOException e) {
+                System.err.println("Error reading " + PageCompression.DICTIONARY_FILE + ", writing plain pages: " + e.getMessage());
+            }
+        }
+
+        downloadProgress.start();
         // For all intervals we have on queue
         for (IntervalResult ir : queue) {
             // Create the directory if it does not exist
             if (!outputDir.exists())
                 outputDir.mkdirs();
             // Start a new DownloadWorker
-            new DownloadWorker(this, this.clients, ir, outputDir.toString()).download();
+            new DownloadWorker(this, this.clients, ir, outputDir.toString(),
+                    sample == null ? null : sample.getPages(ir)).download();
             // Write the last interval we processed to file
             try {
-                PrintWriter writer = new PrintWriter(new FileWriter(LAST_INTERVAL_FILE, false));
+                PrintWriter writer = new PrintWriter(new FileWriter(lastIntervalFile, false));
                 writer.println(ir.toString());
                 writer.close();
             }
@@ -608,13 +1263,17 @@ public class Crawler {
                 System.out.println("Switching output dir to: " + outputDir);
             }
         }
+        downloadProgress.stop();
     }
 
     /**
      * Helper method for parsing the the total number of results from a query.
      * @param result XML response from the server.
      */
-    private int getNumberOfResults(String result){
+    protected int getNumberOfResults(String result){
+        // A failed call counts as no results, so it is retried
+        if (result == null)
+            return 0;
         try {
             int startIndex = result.indexOf("total=\"") + "total=\"".length();
             int stopIndex = result.indexOf("\"",startIndex+1);
@@ -632,6 +1291,8 @@ public class Crawler {
      * @param result XML response from the server.
      */
     private int getNumberOfPages(String result){
+        if (result == null)
+            return 0;
         int startIndex = result.indexOf("pages=\"") + "pages=\"".length();
         int stopIndex = result.indexOf("\"",startIndex+1);
         return Integer.parseInt(result.substring(startIndex,stopIndex));
@@ -651,95 +1312,269 @@ public class Crawler {
     }
 
     /**
-     * Load the intervals that are already on file.
-     * @param filename The file containing the intervals.
+     * Start of the time range of intervals to download, or Long.MIN_VALUE.
+     */
+    private long download_from = Long.MIN_VALUE;
+
+    /**
+     * End of the time range of intervals to download, or Long.MAX_VALUE.
+     */
+    private long download_to = Long.MAX_VALUE;
+
+    /**
+     * Only download the intervals that overlap a time range.
+     * @param from Start of the range (unix timestamp)
+     * @param to End of the range (unix timestamp)
+     */
+    public void setDownloadRange(long from, long to) {
+        this.download_from = from;
+        this.download_to = to;
+    }
+
+    /**
+     * Open the binary store of an interval file. If the file is a text file,
+     * it is converted to a store next to it first, unless that store was
+     * converted from the file as it is now (see {@link IntervalStore#isConvertedFrom}).
+     * @param filename The interval file, or a store
+     * @return the store
+     * @throws IOException if the file cannot be read or converted
+     */
+    public static IntervalStore openIntervalStore(String filename) throws IOException {
+        if (filename.endsWith(IntervalStore.EXTENSION))
+            return IntervalStore.open(filename);
+        File text = new File(filename);
+        File store = new File(filename + IntervalStore.EXTENSION);
+        if (store.exists()) {
+            try {
+                IntervalStore current = IntervalStore.open(store.getPath());
+                if (current.isConvertedFrom(filename)) {
+                    // Only the time of the file changed, keep it so the next start does not read it
+                    if (current.getSourceModified() != text.lastModified())
+                        IntervalStore.setSourceModified(store.getPath(), text.lastModified());
+                    return current;
+                }
+            } catch (IOException e) {
+                // An older or broken store, convert it again
+            }
+        }
+        if (text.exists()) {
+            long start = System.currentTimeMillis();
+            int intervals = IntervalStore.convert(filename, store.getPath());
+            System.out.println("Converted " + intervals + " intervals to " + store + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return IntervalStore.open(store.getPath());
+    }
+
+    /**
+     * Load the intervals that are already on file. The intervals are read from
+     * the binary store of the file, newest first, starting after the last
+     * interval that was downloaded.
+     * @param filename The file containing the intervals, or its binary store.
      * @return 0 if everything was ok, -1 if there was an error
      */
     public int loadIntervalsFromFile(String filename) {
         this.queue = new ArrayList<IntervalResult>();
+        this.totalRequestsToBeDownloaded = 0;
         // Try to load the last processed interval from file
-        File lastIntervalProcessed = new File(LAST_INTERVAL_FILE);
+        File lastIntervalProcessed = new File(lastIntervalFile);
         IntervalResult lastInterval = null;
         if (lastIntervalProcessed.exists()) {
-            try {
-                BufferedReader file = new BufferedReader(new FileReader(lastIntervalProcessed));
+            try (BufferedReader file = new BufferedReader(new FileReader(lastIntervalProcessed))) {
                 String line = file.readLine();
-                String [] values = line.split(" ");
-                int min_date = Integer.parseInt(values[1]);
-                int max_date = Integer.parseInt(values[3]);
-                int totalPages = Integer.parseInt(values[10]);
-                int numberOfResults = Integer.parseInt(values[7]);
-                lastInterval = new IntervalResult(min_date, max_date, totalPages, numberOfResults);
+                lastInterval = IntervalResult.parse(line);
             }
-            catch (IOException e) {
+            catch (IOException | RuntimeException e) {
                 System.err.println("Error reading last interval from file!");
             }
         }
-        // Load the data from the interval file
-        BufferedReader file = null;
-        int skipped = 0;
-        int results = 0;
-        String line;
-        // Assume we WILL skip info until we see the last interval
-        boolean stop_skipping = (lastInterval == null ? true : false);
+        IntervalStore store;
         try {
-            file = new BufferedReader(new FileReader(filename));
-            line = file.readLine();
-            while (line != null) {
-                // Parse the data
-                String [] values = line.split(" ");
-                int min_date = Integer.parseInt(values[1]);
-                int max_date = Integer.parseInt(values[3]);
-                int totalPages = Integer.parseInt(values[10]);
-                int numberOfResults = Integer.parseInt(values[7]);
-                IntervalResult current = new IntervalResult(min_date, max_date, totalPages, numberOfResults);
-                // As long as we havent seen the last interval, we keep skipping
-                if (stop_skipping && !(numberOfResults == 0 && totalPages == 0)) {
-                    this.totalRequestsToBeDownloaded += totalPages;
-                    results += numberOfResults;
-                    queue.add(current);
-                }
-                // If this is not yet the last interval we crawled, keep skipping
-                else {
-                    skipped++;
-                }
-                // If we found the last interval crawled
-                if (current.equals(lastInterval)) {
-                    // Stop skipping data
-                    stop_skipping = true;
-                    System.out.println("Skipped up to "+ current +", "+ skipped +" intervals.");
-                }
-                line = file.readLine();
-            }
-            // Print some info
-            System.out.println(results + "\t" + this.totalRequestsToBeDownloaded + "\t" + filename);
+            store = openIntervalStore(filename);
         } catch (IOException ex) {
             System.err.println("IOException: "+ ex.getMessage());
             return -1;
-        } finally {
-            try {
-                if (file != null)
-                    file.close();
-            } catch (IOException ex) {
-                System.err.println("Error closing the BufferedReader. " + ex.getMessage());
+        }
+        // Newest first, like the scan, so resume from just before the last interval
+        int first = store.size() - 1;
+        int skipped = 0;
+        if (lastInterval != null) {
+            int index = store.indexOf(lastInterval);
+            if (index >= 0) {
+                skipped = store.size() - index;
+                first = index - 1;
+                System.out.println("Skipped up to "+ lastInterval +", "+ skipped +" intervals.");
             }
         }
+        // Select the time range, if any
+        int last = 0;
+        if (download_from != Long.MIN_VALUE || download_to != Long.MAX_VALUE) {
+            List<IntervalResult> range = store.range(download_from, download_to);
+            if (range.isEmpty())
+                first = -1;
+            else {
+                first = Math.min(first, store.indexOf(range.get(range.size() - 1)));
+                last = store.indexOf(range.get(0));
+            }
+        }
+        long results = 0;
+        for (int i = first; i >= last; i--) {
+            IntervalResult current = store.get(i);
+            // Skip empty intervals, and intervals outside the range
+            if ((current.getNumberOfResults() == 0 && current.getTotalPages() == 0)
+                    || current.getMaxDate() < download_from || current.getMinDate() > download_to) {
+                skipped++;
+                continue;
+            }
+            this.totalRequestsToBeDownloaded += current.getTotalPages();
+            results += current.getNumberOfResults();
+            queue.add(current);
+        }
+        // Print some info
+        System.out.println(results + "\t" + this.totalRequestsToBeDownloaded + "\t" + filename);
         return 0;
     }
 
+    /**
+     * Draw a sample of the pages of the intervals on file, or read the sample
+     * the data folder already has, and queue its intervals for download.
+     * @param filename The file containing the intervals, or its binary store.
+     * @param dataDir The data folder
+     * @param fraction The share of the pages to download
+     * @param strata The number of strata
+     * @param pagesPerInterval The number of pages to draw in a drawn interval
+     * @param seed Seed of the random draws
+     * @return the sample, or null if there was an error
+     */
+    public CrawlSample loadSample(String filename, String dataDir, double fraction, int strata,
+            int pagesPerInterval, long seed) {
+        IntervalStore store;
+        try {
+            store = openIntervalStore(filename);
+        } catch (IOException ex) {
+            System.err.println("IOException: "+ ex.getMessage());
+            return null;
+        }
+        // All non empty intervals of the range, the sample does not resume from the last interval
+        List<IntervalResult> intervals = new ArrayList<IntervalResult>();
+        for (int i = 0; i < store.size(); i++) {
+            IntervalResult current = store.get(i);
+            if (current.getNumberOfResults() > 0 && current.getTotalPages() > 0
+                    && current.getMaxDate() >= download_from && current.getMinDate() <= download_to)
+                intervals.add(current);
+        }
+        CrawlSample drawn = CrawlSample.open(this, dataDir, intervals, fraction, strata, pagesPerInterval, seed);
+        if (drawn == null)
+            return null;
+        this.sample = drawn;
+        this.queue = drawn.getIntervals();
+        this.totalRequestsToBeDownloaded = drawn.getPageCount();
+        // Keep the last interval of a full download in its own file
+        this.lastIntervalFile = new File(dataDir, CrawlSample.LAST_INTERVAL_FILE).getPath();
+        System.out.println(drawn.getPageCount() + "\t" + drawn.getIntervals().size() + "\t" + filename);
+        return drawn;
+    }
+
+    /**
+     * Scan for intervals, or resume the scan of an interval file.
+     * @param intervalfile File the intervals are appended to
+     */
+    public void scan(String intervalfile) {
+        // Check for the interval file
+        File test = new File(intervalfile);
+        // If the file already exists
+        if (test.exists()) {
+            try {
+                // Load the intervals indentified so far
+                IntervalStore store = openIntervalStore(intervalfile);
+                // Intervals appended by follow are newer, so resume from the oldest one
+                long min_date = store.getMinDate();
+                if (min_date != Long.MAX_VALUE) {
+                    // Set min and max upload date different to start with
+                    setMax_upload_date(min_date - 1);
+                    setMin_upload_date(min_date - 2);
+                    // Set the results found so far
+                    setResultsFound((int) store.getTotalResults());
+                    System.out.println("Resuming from " + min_date + "\t("+ unix2date(min_date) +")");
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading " + intervalfile + ": " + e);
+            }
+        }
+        // The file did not exist at this point
+
+        // if the intervalfile has a path in between
+        if (intervalfile.contains(File.separator)) {
+            String path = intervalfile.substring(0, intervalfile.lastIndexOf("/"));
+            // Make the directories in this path
+            new File(path).mkdirs();
+        }
+        // Start or continue crawling the intervals
+        identifyIntervals(intervalfile);
+        // Update the binary store, for a fast resume and download
+        try {
+            openIntervalStore(intervalfile);
+        } catch (IOException e) {
+            System.err.println("Error converting " + intervalfile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Download the pages of the intervals on file, or resume the download.
+     * @param intervalfile The file containing the intervals
+     * @param data_dir The data folder
+     */
+    public void download(String intervalfile, String data_dir) {
+        int errorCode = loadIntervalsFromFile(intervalfile);
+        // If no error occurs loading this data
+        if (errorCode == 0) {
+            // Check if the directory exists
+            File dir = new File(data_dir+"/");
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            // Start/Resume downloading data
+            downloadData(data_dir+"/");
+        }
+    }
+
+    /**
+     * Download a random sample of the pages of the intervals on file, or
+     * resume it, and check the estimate of the number of photos.
+     * @param intervalfile The file containing the intervals
+     * @param data_dir The data folder
+     * @param fraction The share of the pages to download
+     * @param strata The number of strata
+     * @param pagesPerInterval The number of pages to draw in a drawn interval
+     * @param seed Seed of the random draws
+     */
+    public void sample(String intervalfile, String data_dir, double fraction, int strata,
+            int pagesPerInterval, long seed) {
+        new File(data_dir+"/").mkdirs();
+        CrawlSample drawn = loadSample(intervalfile, data_dir+"/", fraction, strata, pagesPerInterval, seed);
+        if (drawn != null) {
+            downloadData(data_dir+"/");
+            drawn.report(data_dir+"/");
+        }
+    }
+
     /**
      * Main method.
      * 
      * @param args
-     *  Expected arguments: interval|download timestamp_end intervalfile data_dir
+     *  Expected arguments: scan|download|follow|plan|sample|refresh timestamp_end intervalfile data_dir
      */
     public static void main(String[] args) {
         // Check for valid parameters
         if (args.length == 0 || (args.length !=5 && args.length != 7)) {
             System.out.println("Missing arguments.");
-            System.out.println("Usage: api_key <scan|download> timestamp_end intervalfile data_dir [proxyHost proxyPort]");
+            System.out.println("Usage: api_key <scan|download|follow|plan|sample|refresh> timestamp_end intervalfile data_dir [proxyHost proxyPort]");
             System.out.println(" api_key            \tSpecify your Flickr API key");
             System.out.println(" <scan|download>    \tSpecify the command to either scan for intervals or download data");
+            System.out.println(" follow             \tKeep scanning and downloading new uploads on a schedule");
+            System.out.println(" plan               \tEstimate the cost of a crawl, writing the plan instead of intervals");
+            System.out.println(" sample             \tDownload a random sample of the pages of the intervals, with weights");
+            System.out.println(" refresh            \tScan and download the photos that changed since the last refresh, or since timestamp_end");
             System.out.println(" timestamp_end      \tSpecify the (UNIX) timestamp at which point the crawler should stop");
             System.out.println(" intervalfile       \tFile containing the intervals that are already discovered");
             System.out.println(" data_dir           \tThe directory where the downloaded raw XML data will go");
@@ -757,74 +1592,126 @@ public class Crawler {
             setUpProxy(args[5], args[6]);
         }
 
+        // Start writing metric snapshots, if requested
+        Metrics.get().startFromSystemProperties();
+        // Start recording a trace, if requested
+        Trace.get().startFromSystemProperties();
+        // Select a time range of the intervals to download, if requested
+        long download_from = Long.parseLong(System.getProperty(DOWNLOAD_FROM_PROPERTY, "" + Long.MIN_VALUE));
+        long download_to = Long.parseLong(System.getProperty(DOWNLOAD_TO_PROPERTY, "" + Long.MAX_VALUE));
         // Init the crawler instance
-        Crawler crawler = new Crawler();
+        Crawler crawler;
+        if (command.equals("follow"))
+            crawler = new TailCrawler(intervalfile + TailCrawler.STATE_SUFFIX,
+                    Long.parseLong(System.getProperty(TailCrawler.INTERVAL_PROPERTY, "3600")),
+                    Long.parseLong(System.getProperty(TailCrawler.OVERLAP_PROPERTY, "3600")));
+        else if (command.equals("refresh"))
+            crawler = new RefreshCrawler(intervalfile + RefreshCrawler.STATE_SUFFIX,
+                    Long.parseLong(System.getProperty(RefreshCrawler.OVERLAP_PROPERTY, "3600")));
+        else
+            crawler = new Crawler();
         crawler.setApiKey(api_key);
         crawler.setEndDate(end_date);
-        
-        // Determine action
-        switch(command) {
-            case "scan":
-                // Check for the interval file
-                File test = new File(intervalfile);
-                // If the file already exists
-                if (test.exists()) {
+        crawler.setDownloadRange(download_from, download_to);
+        crawler.setRequestTimeout(Long.parseLong(System.getProperty(REQUEST_TIMEOUT_PROPERTY, "60000")));
+        // Search with another API function, if requested
+        if (System.getProperty(SearchMethod.PROPERTY) != null)
+            crawler.setSearchMethod(SearchMethod.forName(System.getProperty(SearchMethod.PROPERTY)));
+        // Only request the extras the output needs, if it is declared
+        if (System.getProperty(PageSchema.PROPERTY) != null)
+            crawler.setSchema(PageSchema.forSpec(ParseSpec.parse(System.getProperty(PageSchema.PROPERTY))));
+        // Hedge slow page requests, if requested
+        if (System.getProperty(RequestHedger.PERCENTILE_PROPERTY) != null)
+            crawler.setHedger(new RequestHedger(Double.parseDouble(System.getProperty(RequestHedger.PERCENTILE_PROPERTY)),
+                    Double.parseDouble(System.getProperty(RequestHedger.BUDGET_PROPERTY, "0.05")),
+                    crawler.request_timeout));
+        // Record the calls, or replay them from an earlier recording, if requested
+        long now = new Date().getTime() / 1000;
+        final CallCapture capture;
+        try {
+            if (System.getProperty(CallCapture.REPLAY_PROPERTY) != null) {
+                capture = CallCapture.replay(System.getProperty(CallCapture.REPLAY_PROPERTY),
+                        Double.parseDouble(System.getProperty(CallCapture.SPEED_PROPERTY, "0")));
+                // Start at the time the recording started, so the calls are the same
+                now = capture.getClock();
+                if (Double.parseDouble(System.getProperty(CallCapture.SPEED_PROPERTY, "0")) == 0)
+                    crawler.setMinInterRequestTime(0);
+                System.out.println("Replaying " + capture.size() + " calls recorded at " + now + "\t(" + unix2date(now) + ")");
+            }
+            else if (System.getProperty(CallCapture.RECORD_PROPERTY) != null)
+                capture = CallCapture.record(System.getProperty(CallCapture.RECORD_PROPERTY), now);
+            else
+                capture = null;
+        } catch (IOException e) {
+            System.err.println("Error opening capture: " + e.getMessage());
+            return;
+        }
+        if (capture != null) {
+            crawler.setCapture(capture);
+            crawler.setMax_upload_date(now);
+            crawler.setMin_upload_date(now - 1);
+            // Write the index of a recording, also when the crawl is interrupted
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
                     try {
-                        // Load the intervals indentified so far
-                        BufferedReader file = new BufferedReader(new FileReader(intervalfile));
-                        String line = file.readLine();
-                        String previousLine = line;
-                        // First count the number of results we already have
-                        int results = 0;
-                        while (line != null) {
-                            previousLine = line;
-                            String [] values = line.split(" ");
-                            results += Integer.parseInt(values[7]);
-                            line = file.readLine();
-                        }
-                        file.close();
-                        // Using the last line we saw, parse the time interval to start from
-                        if (previousLine != null) {
-                            String [] values = previousLine.split(" ");
-                            int min_date = Integer.parseInt(values[1]);
-                            // Set min and max upload date different to start with
-                            crawler.setMax_upload_date(min_date - 1);
-                            crawler.setMin_upload_date(min_date - 2);
-                            // Set the results found so far
-                            crawler.setResultsFound(results);
-                            System.out.println("Resuming from " + min_date + "\t("+ unix2date(min_date) +")");
-                        }
+                        capture.close();
                     } catch (IOException e) {
-                        System.err.println("IOException: " + e);
+                        System.err.println("Error closing capture: " + e.getMessage());
                     }
                 }
-                // The file did not exist at this point
-                
-                // if the intervalfile has a path in between
-                if (intervalfile.contains(File.separator)) {
-                    String path = intervalfile.substring(0, intervalfile.lastIndexOf("/"));
-                    // Make the directories in this path
-                    new File(path).mkdirs();
-                }
-                // Start or continue crawling the intervals
-                crawler.identifyIntervals(intervalfile);
-                
+            });
+        }
+        // Seed the interval sizes from a plan, if requested
+        String planFile = System.getProperty(CrawlPlan.FILE_PROPERTY);
+        if (planFile != null) {
+            try {
+                crawler.setPlan(CrawlPlan.load(planFile));
+                System.out.println("Seeding interval sizes from " + planFile);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading plan " + planFile + ": " + e.getMessage());
+            }
+        }
+        
+        // Determine action
+        switch(command) {
+            case "scan":
+                crawler.scan(intervalfile);
                 break;
             
             // Download given a list of existing intervals
             case "download":
-                int errorCode = crawler.loadIntervalsFromFile(intervalfile);
-                // If no error occurs loading this data
-                if (errorCode == 0) {
-                    // Check if the directory exists
-                    File dir = new File(data_dir+"/");
-                    if (!dir.exists()) {
-                        dir.mkdirs();
-                    }
-                    // Start/Resume downloading data
-                    crawler.downloadData(data_dir+"/");
-                }
-                
+                crawler.download(intervalfile, data_dir);
+                break;
+
+            // Estimate the cost of a crawl, the interval file is the plan to write
+            case "plan":
+                CrawlPlan.create(crawler, end_date, now,
+                        Integer.parseInt(System.getProperty(CrawlPlan.SAMPLES_PROPERTY, "24")),
+                        Integer.parseInt(System.getProperty(CrawlPlan.KEYS_PROPERTY, "1")))
+                        .write(intervalfile);
+                break;
+
+            // Download a random sample of the pages of the intervals
+            case "sample":
+                crawler.sample(intervalfile, data_dir,
+                        Double.parseDouble(System.getProperty(CrawlSample.FRACTION_PROPERTY, "0.01")),
+                        Integer.parseInt(System.getProperty(CrawlSample.STRATA_PROPERTY, "20")),
+                        Integer.parseInt(System.getProperty(CrawlSample.PAGES_PROPERTY, "1")),
+                        Long.parseLong(System.getProperty(CrawlSample.SEED_PROPERTY, "1")));
+                break;
+
+            // Download the photos that changed since the last refresh
+            case "refresh":
+                new File(data_dir+"/").mkdirs();
+                if (((RefreshCrawler) crawler).refresh(data_dir+"/", end_date) == null)
+                    System.exit(1);
+                break;
+
+            // Follow new uploads
+            case "follow":
+                new File(data_dir+"/").mkdirs();
+                ((TailCrawler) crawler).follow(intervalfile, data_dir+"/");
                 break;
         }
     }
@@ -1,15 +1,22 @@
 package net.vanlaere.flickr.crawler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+import net.vanlaere.flickr.metrics.Histogram;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.metrics.Trace;
 import org.apache.xmlrpc.client.XmlRpcClient;
 
 
@@ -47,10 +54,20 @@ public class DownloadWorker{
      */
     private final String resultDir;
 
+    /**
+     * The pages to download, or null for all pages of the interval.
+     */
+    private final int[] pages;
+
     /**
      * File size that might indicate an error in a previous download for a page.
      */
     private final int EMPTY_FILE_INDICATOR = 100;
+
+    /**
+     * Histogram of the time it takes to download all pages of an interval.
+     */
+    private static final Histogram interval_time = Metrics.get().histogram("download.interval_time");
     
     /**
      * Construct a new DownloadWorker. This will download the actual data for a 
@@ -61,77 +78,158 @@ public class DownloadWorker{
      * @param resultDir Directory to store the results in
      */
     public DownloadWorker(Crawler crawler, XmlRpcClient[] clients, IntervalResult ir, String resultDir) {
+        this(crawler, clients, ir, resultDir, null);
+    }
+
+    /**
+     * Construct a new DownloadWorker that only downloads some pages of an
+     * interval, e.g. those drawn by a CrawlSample.
+     * @param crawler Reference to the Crawler instance.
+     * @param clients Reference to the array of XML clients to use in threads
+     * @param ir The actual interval to download (defined by an IntervalResult)
+     * @param resultDir Directory to store the results in
+     * @param pages The page numbers to download, null for all pages
+     */
+    public DownloadWorker(Crawler crawler, XmlRpcClient[] clients, IntervalResult ir, String resultDir, int[] pages) {
         this.crawler = crawler;
         this.ir = ir;
         this.resultDir = resultDir;
         this.clients = clients;
+        this.pages = pages;
+    }
+
+    /**
+     * @param template The template of the data file names
+     * @param ir An interval
+     * @param pageNumber A page of the interval
+     * @return the name of the file the page is saved to
+     */
+    static String pageFile(String template, IntervalResult ir, int pageNumber) {
+        String pageString = "" + pageNumber;
+        if (pageNumber < 10)
+            pageString = "0" + pageNumber;
+        return Tools.applyTemplateValues(template, new String[]{ir.getKey(), ""+pageString});
     }
 
     /**
-     * Implementation of the run method for threading.
+     * Download the pages of the interval, every page on a page thread of the
+     * crawler, and wait for all of them.
      */
     public void download() {
         // Display info on screen about this interval
         System.out.println(ir);
-        List<Thread> threads = new ArrayList<Thread>();
-        // For each of the pages in the result we are processing
-        for (int pageNumber = 1; pageNumber <= this.ir.getTotalPages(); pageNumber++) {
-            String pageString = "" + pageNumber;
-            if (pageNumber < 10)
-                pageString = "0" + pageNumber;
-            // Prepare filename for this page
-            String filename = Tools.applyTemplateValues(crawler.DATAFILE_TEMPLATE,
-                    new String[]{""+this.ir.getMaxDate(), ""+pageString});
-            // Check if the file existed on file but was too small
-            final File file = new File(resultDir+"/"+filename);
-            final boolean newItem = !file.exists() || file.length() < EMPTY_FILE_INDICATOR;
-            // If this is an unseen page to download
-            if (newItem) {
-                // Get the parameters
-                final Map<String,Object> parameters = crawler.getParameters(
-                        this.ir.getMinDate(), this.ir.getMaxDate(), true, pageNumber);
-                // Get the client
-                final XmlRpcClient c = clients[pageNumber-1];
-                // Start new Thread
-                threads.add(new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Call the API
-                        String response = crawler.make_call(c, parameters);
-                        // Check response
-                        if (response != null) {
-                            // Save the result to file
-                            saveResult(response, file);
-                            // Indicate that this request succeeded
-                            crawler.requestDownloaded(newItem);
+        final Trace.Span span = Crawler.trace.begin("download", "interval", ir.getKey());
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> requests = new ArrayList<Future<?>>();
+            // For each of the pages in the result we are processing
+            int count = pages == null ? this.ir.getTotalPages() : pages.length;
+            for (int i = 0; i < count; i++) {
+                int pageNumber = pages == null ? i + 1 : pages[i];
+                // Flickr does not return the pages past the last client, an
+                // interval file of an older scan may still count them
+                if (pageNumber > clients.length) {
+                    System.err.println("Page " + pageNumber + " of " + ir.getKey() + " is past the last page Flickr returns, skipped");
+                    crawler.requestDownloaded(false);
+                    continue;
+                }
+                // Prepare filename for this page
+                String filename = pageFile(crawler.DATAFILE_TEMPLATE, this.ir, pageNumber);
+                // Check if the file existed on file but was too small
+                final File file = new File(resultDir+"/"+filename);
+                final boolean newItem = !file.exists() || isEmpty(file);
+                // If this is an unseen page to download
+                if (newItem) {
+                    // Get the parameters
+                    final Map<String,Object> parameters = crawler.getParameters(
+                            this.ir.getMinDate(), this.ir.getMaxDate(), this.ir.getBboxString(), true, pageNumber);
+                    // Get the client
+                    final XmlRpcClient c = clients[pageNumber-1];
+                    // Download the page on a page thread
+                    requests.add(crawler.getPageThreads().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            // The page is recorded in the trace when its interval is
+                            Trace.Span page = Crawler.trace.begin(span, "download", "page", file.getName());
+                            try {
+                                // Call the API
+                                String response = crawler.make_call(c, parameters, Crawler.CALL_PAGE);
+                                // Check response
+                                if (response != null) {
+                                    // Save the result to file
+                                    saveResult(crawler.filterPage(response), file);
+                                    // Indicate that this request succeeded
+                                    crawler.requestDownloaded(newItem);
+                                }
+                                // This failed
+                                else
+                                    // Notify that it failed
+                                    crawler.requestDownloaded(false);
+                            } finally {
+                                page.end();
+                            }
                         }
-                        // This failed
-                        else
-                            // Notify that it failed
-                            crawler.requestDownloaded(false);
+                    }));
+                    Trace.Span sleep = Crawler.trace.begin("download", "sleep");
+                    try {
+                        // Wait the inter request time before calling the API again
+                        Thread.sleep(crawler.MIN_INTER_REQUEST_TIME);
+                        Crawler.rate_limit_wait.recordMillis(crawler.MIN_INTER_REQUEST_TIME);
+                    } catch (InterruptedException ex) {
+                        System.err.println("Thread was interrrupted. " + ex.getMessage());
+                    } finally {
+                        sleep.end();
                     }
-                }));
-                // Start this thread
-                threads.get(threads.size()-1).start();
-                try {
-                    // Wait the inter request time before calling the API again
-                    Thread.sleep(crawler.MIN_INTER_REQUEST_TIME);
-                } catch (InterruptedException ex) {
-                    System.err.println("Thread was interrrupted. " + ex.getMessage());
                 }
+                // The specific page already existed
+                else
+                    // Just notify that it exists
+                    crawler.requestDownloaded(newItem);
             }
-            // The specific page already existed
-            else
-                // Just notify that it exists
-                crawler.requestDownloaded(newItem);
-        }
-        // Wait for all threads to finish
-        for (Thread thread : threads) {
+            // Wait for all pages to finish
+            Trace.Span join = Crawler.trace.begin("download", "join");
             try {
-                thread.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(DownloadWorker.class.getName()).log(Level.SEVERE, null, ex);
+                for (Future<?> request : requests) {
+                    try {
+                        request.get();
+                    } catch (InterruptedException | ExecutionException ex) {
+                        Logger.getLogger(DownloadWorker.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            } finally {
+                join.end();
             }
+            interval_time.recordNanos(System.nanoTime() - start);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * A page that is too small might be an error in a previous download,
+     * unless it is small because the photos that were downloaded before were
+     * dropped from it. A compressed page is judged by its inflated size.
+     * @param file The page
+     * @return true if the page should be downloaded again
+     */
+    private boolean isEmpty(File file) {
+        if (file.length() >= EMPTY_FILE_INDICATOR)
+            return false;
+        try {
+            PageCompression compression = crawler.getCompression();
+            if (compression == null)
+                compression = PageCompression.open(new File(resultDir).getParent());
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            try (InputStream in = compression.read(file)) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    page.write(buffer, 0, n);
+            }
+            return page.size() < EMPTY_FILE_INDICATOR
+                    && !page.toString("UTF-8").contains(" " + TailCrawler.DUPLICATES_ATTRIBUTE + "=\"");
+        } catch (IOException e) {
+            return true;
         }
     }
 
@@ -142,6 +240,25 @@ public class DownloadWorker{
      * @param filename Filename of the file containing the results.
      */
     private void saveResult (String result, File file){
+        Trace.Span span = Crawler.trace.begin("download", "write", file.getName());
+        try {
+            writeResult(result, file);
+        } finally {
+            span.end();
+        }
+    }
+
+    private void writeResult (String result, File file){
+        PageCompression compression = crawler.getCompression();
+        if (compression != null) {
+            try {
+                compression.write(result, file);
+            }
+            catch (IOException e){
+                System.err.println("IO Error: " + e.getMessage());
+            }
+            return;
+        }
         try( 
             // Prepare the printwriter
             PrintWriter out = new PrintWriter(new FileWriter(file))) {
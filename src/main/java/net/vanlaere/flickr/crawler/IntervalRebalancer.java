@@ -0,0 +1,196 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+
+/**
+ * This class merges the intervals of a scan to save page requests when
+ * downloading.
+ *
+ * The scan accepts intervals with 3000 to 4000 results, so most intervals end
+ * with a partly filled page, and intervals near the end date or in quiet
+ * periods can be much smaller. Adjacent intervals (the max date of one is
+ * right before the min date of the next) are merged when their results still
+ * fit in a single query, choosing the merges that need the fewest pages of
+ * 250 photos. This only uses the counts that are known from the scan, so it
+ * costs no API calls. The boundaries are never re-cut: the counts do not tell
+ * where in an interval its photos are, so only whole intervals are merged.
+ * Two intervals of 3000 to 4000 results never fit in one query, so a scan of
+ * such intervals gains little, the savings come from the small intervals.
+ *
+ * Skipped intervals (0 results over 0 pages) are dropped, as the download
+ * skips them anyway. They are reported, so their time range can be scanned
+ * again. Intervals with a bounding box are kept as they are.
+ *
+ * Rebalance before downloading: a merged interval keeps the max date of its
+ * newest part, so pages already downloaded for that part would be taken for
+ * pages of the merged interval.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class IntervalRebalancer {
+
+    /**
+     * Number of results per page.
+     */
+    private static final int PER_PAGE = 250;
+
+    /**
+     * Maximum number of results Flickr will page through for a single query.
+     */
+    private static final int MAX_RESULTS = 4000;
+
+    private int intervalsBefore = 0;
+
+    private int intervalsAfter = 0;
+
+    private long pagesBefore = 0;
+
+    private long pagesAfter = 0;
+
+    private int dropped = 0;
+
+    private long droppedSeconds = 0;
+
+    /**
+     * Rebalance intervals.
+     * @param intervals The intervals of a scan, in any order
+     * @return the rebalanced intervals, newest first
+     */
+    public List<IntervalResult> rebalance(List<IntervalResult> intervals) {
+        List<IntervalResult> sorted = new ArrayList<IntervalResult>(intervals);
+        // Oldest first
+        Collections.sort(sorted, new Comparator<IntervalResult>() {
+            @Override
+            public int compare(IntervalResult a, IntervalResult b) {
+                int c = Long.compare(a.getMinDate(), b.getMinDate());
+                return c != 0 ? c : Long.compare(a.getMaxDate(), b.getMaxDate());
+            }
+        });
+        List<IntervalResult> result = new ArrayList<IntervalResult>();
+        List<IntervalResult> run = new ArrayList<IntervalResult>();
+        for (IntervalResult ir : sorted) {
+            intervalsBefore++;
+            pagesBefore += ir.getTotalPages();
+            if (ir.getNumberOfResults() == 0 && ir.getTotalPages() == 0) {
+                dropped++;
+                droppedSeconds += ir.getMaxDate() - ir.getMinDate() + 1;
+                continue;
+            }
+            // A run of adjacent intervals ends at a gap, an overlap or a bounding box
+            if (!run.isEmpty() && (ir.getBbox() != null || ir.getMinDate() != run.get(run.size() - 1).getMaxDate() + 1)) {
+                pack(run, result);
+                run.clear();
+            }
+            if (ir.getBbox() != null || ir.getNumberOfResults() > MAX_RESULTS)
+                result.add(ir);
+            else
+                run.add(ir);
+        }
+        pack(run, result);
+        intervalsAfter = result.size();
+        for (IntervalResult ir : result)
+            pagesAfter += ir.getTotalPages();
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Merge a run of adjacent intervals into groups that fit in a single
+     * query, with the least pages in total (dynamic programming over the run).
+     */
+    private static void pack(List<IntervalResult> run, List<IntervalResult> result) {
+        int n = run.size();
+        if (n == 0)
+            return;
+        // pages[i]: least pages for the first i intervals, start[i]: start of the last group
+        long[] pages = new long[n + 1];
+        int[] start = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            pages[i] = Long.MAX_VALUE;
+            long results = 0;
+            for (int j = i - 1; j >= 0; j--) {
+                results += run.get(j).getNumberOfResults();
+                if (results > MAX_RESULTS && j < i - 1)
+                    break;
+                long cost = pages[j] + pages(results);
+                if (cost < pages[i]) {
+                    pages[i] = cost;
+                    start[i] = j;
+                }
+            }
+        }
+        List<IntervalResult> groups = new ArrayList<IntervalResult>();
+        for (int i = n; i > 0; i = start[i]) {
+            int j = start[i];
+            if (i - j == 1) {
+                groups.add(run.get(j));
+                continue;
+            }
+            int results = 0;
+            for (int k = j; k < i; k++)
+                results += run.get(k).getNumberOfResults();
+            groups.add(new IntervalResult(run.get(j).getMinDate(), run.get(i - 1).getMaxDate(),
+                    (int) pages(results), results));
+        }
+        Collections.reverse(groups);
+        result.addAll(groups);
+    }
+
+    private static long pages(long results) {
+        return (results + PER_PAGE - 1) / PER_PAGE;
+    }
+
+    /**
+     * @return a summary of the last rebalance
+     */
+    public String report() {
+        return "Rebalanced " + intervalsBefore + " intervals into " + intervalsAfter + ": "
+                + pagesBefore + " pages before, " + pagesAfter + " pages after, saving "
+                + (pagesBefore - pagesAfter) + " page requests. Dropped " + dropped
+                + " skipped intervals covering " + droppedSeconds + " seconds.";
+    }
+
+    public long getPagesSaved() {
+        return pagesBefore - pagesAfter;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: intervalfile outputfile");
+            System.out.println(" intervalfile       \tFile containing the intervals of a scan");
+            System.out.println(" outputfile         \tFile to write the rebalanced intervals to, to download from");
+            return;
+        }
+        List<IntervalResult> intervals = new ArrayList<IntervalResult>();
+        try (BufferedReader in = new BufferedReader(new FileReader(args[0]))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    intervals.add(IntervalResult.parse(line));
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            return;
+        }
+        IntervalRebalancer rebalancer = new IntervalRebalancer();
+        List<IntervalResult> rebalanced = rebalancer.rebalance(intervals);
+        try (PrintWriter out = new PrintWriter(new FileWriter(args[1]))) {
+            for (IntervalResult ir : rebalanced)
+                out.println(ir);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            return;
+        }
+        System.out.println(rebalancer.report());
+    }
+}
@@ -0,0 +1,449 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+
+/**
+ * This class stores raw XML pages compressed with a preset dictionary.
+ *
+ * The pages of a crawl repeat the same element and attribute names, and many
+ * of the same values, over and over. A deflate stream of a single page cannot
+ * see the other pages, but it can start from a preset dictionary of up to
+ * 32KB. The dictionary is trained once from sample pages, by picking the
+ * segments that hold the byte sequences shared by the most pages, and stored
+ * as DICTIONARY_FILE in the data folder.
+ *
+ * Compressed pages keep their file name. They are zlib streams, which start
+ * with the byte 0x78, where a plain page starts with '&lt;', so plain and
+ * compressed pages can be mixed in one data folder and read() can tell them
+ * apart. The zlib header holds the checksum of the dictionary, so a page is
+ * never inflated with the wrong one.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class PageCompression {
+
+    /**
+     * Set this system property to true to store downloaded pages compressed.
+     */
+    public static final String PROPERTY = "flickr.compress";
+
+    public static final String DICTIONARY_FILE = "dictionary.bin";
+
+    /**
+     * Size of the dictionary, the window of deflate.
+     */
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Number of pages the dictionary is trained on.
+     */
+    private static final int TRAINING_PAGES = 32;
+
+    /**
+     * Maximum number of bytes the dictionary is trained on.
+     */
+    private static final int TRAINING_BYTES = 8 << 20;
+
+    /**
+     * Length of the byte sequences that are counted while training.
+     */
+    private static final int DMER = 8;
+
+    /**
+     * Length of the segments the dictionary is built from.
+     */
+    private static final int SEGMENT = 256;
+
+    /**
+     * First byte of a zlib stream with a 32KB window.
+     */
+    private static final int ZLIB_HEADER = 0x78;
+
+    /**
+     * Counters for the bytes of the pages, and the bytes actually written.
+     */
+    private static final Counter bytes_raw = Metrics.get().counter("storage.bytes_raw");
+
+    private static final Counter bytes_written = Metrics.get().counter("storage.bytes_written");
+
+    private final File dataDir;
+
+    /**
+     * The dictionary, or null while it is not trained yet.
+     */
+    private byte[] dictionary;
+
+    private long dictionaryId;
+
+    /**
+     * Plain pages written while there is no dictionary yet, to train it on.
+     */
+    private final List<File> training = new ArrayList<File>();
+
+    private PageCompression(File dataDir, byte[] dictionary) {
+        this.dataDir = dataDir;
+        setDictionary(dictionary);
+    }
+
+    /**
+     * Open the compression of a data folder, loading its dictionary if it has one.
+     * @param dataDir The data folder
+     * @return the compression
+     * @throws IOException if the dictionary cannot be read
+     */
+    public static PageCompression open(String dataDir) throws IOException {
+        File file = new File(dataDir, DICTIONARY_FILE);
+        return new PageCompression(new File(dataDir), file.exists() ? Files.readAllBytes(file.toPath()) : null);
+    }
+
+    private synchronized void setDictionary(byte[] dictionary) {
+        this.dictionary = dictionary;
+        this.dictionaryId = dictionary == null ? -1 : adler(dictionary);
+    }
+
+    /**
+     * @return the dictionary, or null if there is none yet
+     */
+    public synchronized byte[] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Write a page, like a PrintWriter would. Until a dictionary is trained,
+     * pages are written plain, and the first pages are used to train it.
+     * @param page The XML of the page
+     * @param file The file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String page, File file) throws IOException {
+        byte[] data = (page + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        byte[] dict = getDictionary();
+        byte[] out = dict == null ? data : compress(data, dict);
+        try (OutputStream stream = new FileOutputStream(file)) {
+            stream.write(out);
+        }
+        bytes_raw.add(data.length);
+        bytes_written.add(out.length);
+        if (dict == null)
+            addTrainingPage(file);
+    }
+
+    /**
+     * Remember a plain page, and train the dictionary once there are enough.
+     */
+    private void addTrainingPage(File file) throws IOException {
+        List<File> files;
+        synchronized (this) {
+            if (dictionary != null || training.size() >= TRAINING_PAGES)
+                return;
+            training.add(file);
+            if (training.size() < TRAINING_PAGES)
+                return;
+            files = new ArrayList<File>(training);
+        }
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (File sample : files)
+            samples.add(Files.readAllBytes(sample.toPath()));
+        saveDictionary(train(samples, DICTIONARY_SIZE));
+        System.out.println("Trained a dictionary on " + files.size() + " pages, pages are now written compressed.");
+    }
+
+    /**
+     * Store a dictionary in the data folder and start using it.
+     */
+    private void saveDictionary(byte[] dict) throws IOException {
+        File tmp = new File(dataDir, DICTIONARY_FILE + ".tmp");
+        Files.write(tmp.toPath(), dict);
+        if (!tmp.renameTo(new File(dataDir, DICTIONARY_FILE)))
+            throw new IOException("Could not rename " + tmp + " to " + DICTIONARY_FILE);
+        setDictionary(dict);
+    }
+
+    /**
+     * Compress data with a preset dictionary.
+     * @param data The data
+     * @param dict The dictionary
+     * @return the zlib stream
+     */
+    public static byte[] compress(byte[] data, byte[] dict) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setDictionary(dict);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Open a page for reading, inflating it if it is compressed.
+     * @param file The page
+     * @return a stream of the XML of the page
+     * @throws IOException if the file cannot be read
+     */
+    public InputStream read(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first != ZLIB_HEADER)
+            return in;
+        byte[] dict;
+        long id;
+        synchronized (this) {
+            dict = dictionary;
+            id = dictionaryId;
+        }
+        return new DictionaryInflaterInputStream(in, dict, id);
+    }
+
+    /**
+     * @return true if a page file is stored compressed
+     */
+    public static boolean isCompressed(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() == ZLIB_HEADER;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long adler(byte[] data) {
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return adler.getValue();
+    }
+
+    /**
+     * An inflater stream that sets the dictionary when the stream asks for it.
+     */
+    private static class DictionaryInflaterInputStream extends InflaterInputStream {
+
+        private final byte[] dictionary;
+
+        private final long dictionaryId;
+
+        DictionaryInflaterInputStream(InputStream in, byte[] dictionary, long dictionaryId) {
+            super(in, new Inflater(), 1 << 16);
+            this.dictionary = dictionary;
+            this.dictionaryId = dictionaryId;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1 && inf.needsDictionary()) {
+                if (dictionary == null || (inf.getAdler() & 0xffffffffL) != dictionaryId)
+                    throw new IOException("Page was compressed with another dictionary than " + DICTIONARY_FILE);
+                inf.setDictionary(dictionary);
+                n = super.read(b, off, len);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    /**
+     * Train a dictionary on sample pages.
+     *
+     * Every sequence of DMER bytes is scored by the number of samples it
+     * occurs in. The samples are cut in as many epochs as the dictionary has
+     * segments, and from every epoch the segment with the highest score is
+     * taken, after which its sequences no longer count. Sequences that occur
+     * in a single sample are not counted at all. The best segments are put at
+     * the end of the dictionary, closest to the data.
+     * @param samples The sample pages
+     * @param size The size of the dictionary
+     * @return the dictionary
+     */
+    public static byte[] train(List<byte[]> samples, int size) {
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        Map<Long, int[]> frequencies = new HashMap<Long, int[]>();
+        for (byte[] sample : samples) {
+            if (concatenated.size() + sample.length > TRAINING_BYTES)
+                break;
+            concatenated.write(sample, 0, sample.length);
+            Set<Long> seen = new HashSet<Long>();
+            for (int i = 0; i + DMER <= sample.length; i++) {
+                Long dmer = dmer(sample, i);
+                if (!seen.add(dmer))
+                    continue;
+                int[] frequency = frequencies.get(dmer);
+                if (frequency == null)
+                    frequencies.put(dmer, new int[]{1});
+                else
+                    frequency[0]++;
+            }
+        }
+        final byte[] all = concatenated.toByteArray();
+        if (all.length <= size)
+            return all;
+        int epochs = size / SEGMENT;
+        int epochLength = all.length / epochs;
+        final List<int[]> chosen = new ArrayList<int[]>();
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            int begin = epoch * epochLength;
+            int end = Math.min(all.length, begin + Math.max(epochLength, SEGMENT)) - SEGMENT;
+            int best = -1;
+            long bestScore = 0;
+            long score = 0;
+            // Score of the segment at i: the frequencies of its sequences, sliding along
+            for (int i = begin; i + DMER <= begin + SEGMENT; i++)
+                score += score(frequencies, all, i);
+            for (int i = begin; i <= end; i++) {
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+                if (i + SEGMENT + 1 > all.length)
+                    break;
+                score -= score(frequencies, all, i);
+                score += score(frequencies, all, i + SEGMENT - DMER + 1);
+            }
+            if (best < 0)
+                continue;
+            chosen.add(new int[]{best, (int) Math.min(bestScore, Integer.MAX_VALUE)});
+            // Sequences that are in the dictionary do not count any more
+            for (int i = best; i + DMER <= best + SEGMENT; i++) {
+                int[] frequency = frequencies.get(dmer(all, i));
+                if (frequency != null)
+                    frequency[0] = 0;
+            }
+        }
+        Collections.sort(chosen, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[1], b[1]);
+            }
+        });
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int[] segment : chosen)
+            dictionary.write(all, segment[0], SEGMENT);
+        return dictionary.toByteArray();
+    }
+
+    private static long score(Map<Long, int[]> frequencies, byte[] data, int i) {
+        int[] frequency = frequencies.get(dmer(data, i));
+        return frequency == null || frequency[0] < 2 ? 0 : frequency[0];
+    }
+
+    private static Long dmer(byte[] data, int i) {
+        long value = 0;
+        for (int j = 0; j < DMER; j++)
+            value = (value << 8) | (data[i + j] & 0xff);
+        return value;
+    }
+
+    /**
+     * Walk a data folder and collect its page files.
+     */
+    private static void listPages(File dir, List<File> pages) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory())
+                listPages(file, pages);
+            else if (file.getName().endsWith(".xml"))
+                pages.add(file);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("train")) {
+            if (new File(args[1], DICTIONARY_FILE).exists()) {
+                System.err.println(DICTIONARY_FILE + " already exists, pages compressed with it could no longer be read.");
+                return;
+            }
+            int count = args.length > 2 ? Integer.parseInt(args[2]) : TRAINING_PAGES;
+            List<File> pages = new ArrayList<File>();
+            listPages(new File(args[1]), pages);
+            // Spread the samples over the whole crawl
+            List<byte[]> samples = new ArrayList<byte[]>();
+            for (int i = 0; i < count && i < pages.size(); i++)
+                samples.add(Files.readAllBytes(pages.get((int) ((long) i * pages.size() / Math.min(count, pages.size()))).toPath()));
+            PageCompression compression = open(args[1]);
+            compression.saveDictionary(train(samples, DICTIONARY_SIZE));
+            System.out.println("Trained a dictionary of " + compression.getDictionary().length + " bytes on " + samples.size() + " pages.");
+        }
+        else if (args.length == 2 && args[0].equals("compress")) {
+            PageCompression compression = open(args[1]);
+            if (compression.getDictionary() == null) {
+                System.err.println("No " + DICTIONARY_FILE + " in " + args[1] + ", train one first.");
+                return;
+            }
+            List<File> pages = new ArrayList<File>();
+            listPages(new File(args[1]), pages);
+            long before = 0, after = 0;
+            int compressed = 0;
+            for (File page : pages) {
+                if (isCompressed(page))
+                    continue;
+                byte[] data = Files.readAllBytes(page.toPath());
+                byte[] out = compress(data, compression.getDictionary());
+                File tmp = new File(page.getPath() + ".tmp");
+                Files.write(tmp.toPath(), out);
+                if (!tmp.renameTo(page)) {
+                    System.err.println("Could not rename " + tmp + " to " + page);
+                    tmp.delete();
+                    continue;
+                }
+                before += data.length;
+                after += out.length;
+                compressed++;
+            }
+            System.out.println("Compressed " + compressed + " pages from " + before + " to " + after + " bytes.");
+        }
+        else if (args.length == 3 && args[0].equals("cat")) {
+            try (InputStream in = open(args[1]).read(new File(args[2]))) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    System.out.write(buffer, 0, n);
+            }
+            System.out.flush();
+        }
+        else {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: train datafolder [pages]");
+            System.out.println("       compress datafolder");
+            System.out.println("       cat datafolder pagefile");
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import net.vanlaere.flickr.parse.ParseSpec;
+
+/**
+ * This class holds the schema of the pages of a data folder: the extras
+ * they were downloaded with, and the parse spec those extras were derived
+ * from.
+ *
+ * A crawl with a schema (see ParseSpec) only requests the extras its spec
+ * needs, plus date_upload, which the crawler reads itself. The schema is
+ * written to the data folder with the first pages, and a later download
+ * into the same folder must use the same extras. A data folder without a
+ * schema file holds pages with the default extras, those of every crawl
+ * without a schema.
+ *
+ * The parser reads the schema back: it uses its spec when it is given none,
+ * and refuses a spec that needs fields the pages do not hold.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class PageSchema {
+
+    public static final String PROPERTY = "flickr.schema";
+
+    public static final String FILE = "schema.txt";
+
+    /**
+     * The extras requested without a schema, in the order they are requested.
+     */
+    public static final List<String> DEFAULT_EXTRAS = Collections.unmodifiableList(Arrays.asList(
+            "description", "license", "date_upload", "date_taken", "owner_name", "last_update", "geo",
+            "tags", "machine_tags", "views", "media", "path_alias", "url_o"));
+
+    /**
+     * The extra every crawl requests, to follow new uploads.
+     */
+    private static final String UPLOAD_EXTRA = ParseSpec.Field.DATEUPLOAD.getExtra();
+
+    /**
+     * The spec the extras were derived from, or null for the default extras.
+     */
+    private final String spec;
+
+    private final Set<String> extras;
+
+    private PageSchema(String spec, Set<String> extras) {
+        this.spec = spec;
+        this.extras = extras;
+    }
+
+    /**
+     * @return the schema of a crawl without a spec
+     */
+    public static PageSchema defaultSchema() {
+        return new PageSchema(null, new LinkedHashSet<String>(DEFAULT_EXTRAS));
+    }
+
+    /**
+     * @param spec The spec of the output
+     * @return the schema of the pages that output is parsed from
+     */
+    public static PageSchema forSpec(ParseSpec spec) {
+        Set<String> needed = spec.getExtras();
+        needed.add(UPLOAD_EXTRA);
+        // In the default order, so equal extras give equal requests
+        Set<String> extras = new LinkedHashSet<String>();
+        for (String extra : DEFAULT_EXTRAS) {
+            if (needed.remove(extra))
+                extras.add(extra);
+        }
+        extras.addAll(needed);
+        return new PageSchema(spec.toString(), extras);
+    }
+
+    /**
+     * Read the schema of a data folder.
+     * @param dataDir The data folder
+     * @return its schema, the default schema if it has no schema file
+     * @throws IOException if the schema file cannot be read
+     */
+    public static PageSchema read(String dataDir) throws IOException {
+        File file = new File(dataDir, FILE);
+        if (!file.exists())
+            return defaultSchema();
+        String spec = null;
+        Set<String> extras = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("spec\t"))
+                    spec = line.substring(5);
+                else if (line.startsWith("extras\t"))
+                    extras = new LinkedHashSet<String>(Arrays.asList(line.substring(7).split(",")));
+            }
+        }
+        if (extras == null)
+            throw new IOException("No extras in " + file);
+        return new PageSchema(spec, extras);
+    }
+
+    /**
+     * Write the schema to a data folder.
+     * @param dataDir The data folder
+     * @throws IOException if the schema file cannot be written
+     */
+    public void write(String dataDir) throws IOException {
+        new File(dataDir).mkdirs();
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dataDir, FILE)), StandardCharsets.UTF_8))) {
+            out.println("# The extras the pages of this folder are downloaded with");
+            if (spec != null)
+                out.println("spec\t" + spec);
+            out.println("extras\t" + getExtrasParameter());
+        }
+    }
+
+    /**
+     * Check that pages with this schema can be downloaded into a data
+     * folder, and write the schema there if it has none yet.
+     * @param dataDir The data folder
+     * @return false if the folder holds pages with other extras
+     */
+    public boolean useDataFolder(String dataDir) {
+        try {
+            File file = new File(dataDir, FILE);
+            PageSchema existing = read(dataDir);
+            if (!file.exists() && !hasPages(new File(dataDir))) {
+                write(dataDir);
+                return true;
+            }
+            if (!existing.extras.equals(extras)) {
+                System.err.println(dataDir + " holds pages with extras " + existing.getExtrasParameter()
+                        + ", this crawl requests " + getExtrasParameter() + ". Use another data folder.");
+                return false;
+            }
+            if (!file.exists())
+                write(dataDir);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error reading or writing " + FILE + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean hasPages(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return false;
+        for (File file : files) {
+            if (file.isDirectory() ? hasPages(file) : file.getName().endsWith(".xml"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the spec the extras were derived from, or null for the default extras
+     */
+    public String getSpec() {
+        return spec;
+    }
+
+    public Set<String> getExtras() {
+        return Collections.unmodifiableSet(extras);
+    }
+
+    /**
+     * @return the value of the extras parameter of a search
+     */
+    public String getExtrasParameter() {
+        StringBuilder builder = new StringBuilder();
+        for (String extra : extras) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(extra);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param spec A parse spec
+     * @return the extras the spec needs that the pages do not hold, empty if the pages can be parsed with it
+     */
+    public List<String> missing(ParseSpec spec) {
+        List<String> missing = new ArrayList<String>();
+        for (String extra : spec.getExtras()) {
+            if (!extras.contains(extra))
+                missing.add(extra);
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,180 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.parse.ParseSpec;
+
+/**
+ * This class refreshes a crawl by downloading the photos that changed since
+ * the previous refresh, e.g. to update their views and tags.
+ *
+ * A refresh scans and downloads the dates from the previous refresh to now,
+ * with the search method of the crawler (see SearchMethod), like a scan and a
+ * download of a crawl of its own, so the requests follow the amount of
+ * change, not the size of the crawl. With the default search on the upload
+ * date, that is the photos uploaded since the previous refresh. The public
+ * API cannot select photos by their last update, so the updates of older
+ * photos are only refreshed with a search method that selects on the last
+ * update, on an endpoint that offers it.
+ *
+ * The start of the previous refresh is kept in a state file next to the
+ * interval file, and every refresh starts an overlap period before it, for
+ * changes that show up late. The intervals and the pages of a refresh go to a
+ * folder refresh_TIMESTAMP in the data folder, to be parsed and merged into
+ * the parsed data set by photo id (see RefreshMerge). Photos listed twice are
+ * merged once.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class RefreshCrawler extends Crawler {
+
+    public static final String STATE_SUFFIX = ".refresh";
+
+    public static final String OVERLAP_PROPERTY = "flickr.refresh.overlap";
+
+    /**
+     * File of a refresh folder the intervals of the refresh are scanned to.
+     */
+    public static final String INTERVAL_FILE = "intervals.txt";
+
+    private static final Pattern PHOTO = Pattern.compile("<photo\\s");
+
+    /**
+     * Counter for the photos downloaded by refreshes.
+     */
+    private static final Counter updates = Metrics.get().counter("refresh.photos");
+
+    private final String stateFile;
+
+    /**
+     * Period before the start of the previous refresh that is listed again, in seconds.
+     */
+    private final long overlap;
+
+    /**
+     * Pages of the current refresh that were downloaded.
+     */
+    private int pages;
+
+    /**
+     * Photos of the current refresh that were downloaded.
+     */
+    private long photos;
+
+    /**
+     * Construct a new RefreshCrawler.
+     * @param stateFile File to keep the start of the last refresh in
+     * @param overlap Period before the start of the last refresh to list again, in seconds
+     */
+    public RefreshCrawler(String stateFile, long overlap) {
+        this.stateFile = stateFile;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Scan and download the photos that changed since the previous refresh.
+     * @param dataDir The data folder of the refreshes
+     * @param since The date to start from without a previous refresh
+     * @return the folder with the pages of this refresh, or null if it failed
+     */
+    public String refresh(String dataDir, long since) {
+        // The merge needs the last update of every photo
+        if (!getSchema().getExtras().contains(ParseSpec.Field.LASTUPDATE.getExtra())) {
+            System.err.println("A refresh needs the " + ParseSpec.Field.LASTUPDATE.getExtra() + " extra, add lastupdate to the schema.");
+            return null;
+        }
+        long now = new Date().getTime() / 1000;
+        long from = loadState(since);
+        String dir = dataDir + "refresh_" + now + "/";
+        System.out.println("Refreshing the photos of " + getSearchMethod() + " since " + from + "\t(" + unix2date(from) + ") into " + dir);
+        new File(dir).mkdirs();
+        setLastIntervalFile(dir + LAST_INTERVAL_FILE);
+        // Scan the dates since the previous refresh, from now back to its start
+        setMax_upload_date(now);
+        setMin_upload_date(now - 1);
+        setMinUploadFloor(from);
+        setEndDate(from);
+        setResultsFound(0);
+        queueIntervals(new ArrayList<IntervalResult>());
+        identifyIntervals(dir + INTERVAL_FILE);
+        // Download the intervals of this refresh only
+        queueIntervals(new ArrayList<IntervalResult>(getQueue()));
+        int expected = getPagesToBeDownloaded();
+        synchronized (this) {
+            pages = 0;
+            photos = 0;
+        }
+        downloadData(dir);
+        synchronized (this) {
+            if (pages < expected) {
+                System.err.println("Refresh failed downloading " + (expected - pages) + " of " + expected
+                        + " pages, the next refresh starts at " + from);
+                return null;
+            }
+            saveState(now);
+            updates.add(photos);
+            System.out.println("Refresh done, " + photos + " photos in " + expected + " pages in " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Count the pages and the photos of the refresh.
+     */
+    @Override
+    protected String filterPage(String page) {
+        int count = 0;
+        Matcher photo = PHOTO.matcher(page);
+        while (photo.find())
+            count++;
+        synchronized (this) {
+            photos += count;
+            pages++;
+        }
+        return page;
+    }
+
+    /**
+     * @return the date of the updates to keep: the overlap before the start of
+     * the previous refresh, or the given date without a state file
+     */
+    private long loadState(long since) {
+        File state = new File(stateFile);
+        if (!state.exists())
+            return since;
+        try (BufferedReader in = new BufferedReader(new FileReader(state))) {
+            return Long.parseLong(in.readLine().trim()) - overlap;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading " + stateFile + ", starting from " + since + ": " + e.getMessage());
+            return since;
+        }
+    }
+
+    /**
+     * Write the state to a temporary file first, so a crash never leaves a broken state.
+     */
+    private void saveState(long started) {
+        File tmp = new File(stateFile + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            out.println(started);
+        } catch (IOException e) {
+            System.err.println("Error writing " + stateFile + ": " + e.getMessage());
+            return;
+        }
+        File state = new File(stateFile);
+        state.delete();
+        if (!tmp.renameTo(state))
+            System.err.println("Error renaming " + tmp + " to " + stateFile);
+    }
+}
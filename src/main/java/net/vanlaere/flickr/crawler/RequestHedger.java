@@ -0,0 +1,271 @@
+package net.vanlaere.flickr.crawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * This class hedges page requests to cut the tail latency of a download.
+ *
+ * An interval is only done when its slowest page is, so a single stuck
+ * request holds up the whole interval. When a request runs longer than a
+ * percentile of the latency of the recent requests, the same request is sent
+ * once more, and the first answer wins. Every attempt is sent on a connection
+ * of its own, and the other attempt is aborted: its connection is closed, as
+ * a thread that waits on a socket does not stop when it is interrupted.
+ *
+ * Duplicates cost API calls, so only a share of the requests (the budget)
+ * can be hedged, and a duplicate waits for its turn like any other request
+ * before it is sent. Every request also gets a deadline: if no answer arrived
+ * by then, the request fails like any other failed call.
+ *
+ * The latency of every attempt that was sent is recorded, also of an attempt
+ * that failed, lost or was aborted, with the time it ran, so the percentile
+ * is not taken from the fast requests only.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class RequestHedger {
+
+    public static final String PERCENTILE_PROPERTY = "flickr.hedge.percentile";
+
+    public static final String BUDGET_PROPERTY = "flickr.hedge.budget";
+
+    /**
+     * Number of recent latencies the percentile is taken from.
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * Number of latencies needed before requests are hedged.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Counters for the duplicates sent, the duplicates that answered first,
+     * and the requests that ran past their deadline.
+     */
+    private static final Counter hedged = Metrics.get().counter("api.page.hedged");
+
+    private static final Counter hedge_won = Metrics.get().counter("api.page.hedge_won");
+
+    private static final Counter deadline_exceeded = Metrics.get().counter("api.page.deadline_exceeded");
+
+    private final double percentile;
+
+    private final double budget;
+
+    private final long deadlineMillis;
+
+    /**
+     * Latencies of the recent requests in milliseconds, as a ring.
+     */
+    private final long[] recent = new long[WINDOW];
+
+    private int recentCount = 0;
+
+    private int recentNext = 0;
+
+    private long requests = 0;
+
+    private long duplicates = 0;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hedged-request");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A request that can be sent more than once.
+     */
+    public interface Request {
+
+        /**
+         * Wait until the request may be sent, e.g. for the rate limiter.
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void await() throws InterruptedException;
+
+        /**
+         * @return a new attempt to send the request, on a connection of its own
+         */
+        Attempt newAttempt();
+    }
+
+    /**
+     * One sending of a request.
+     */
+    public interface Attempt {
+
+        /**
+         * Send the request.
+         * @return the answer
+         * @throws XmlRpcException if the request failed or was aborted
+         */
+        Object send() throws XmlRpcException;
+
+        /**
+         * Stop waiting for the answer, e.g. by closing the connection. It may
+         * be called before the attempt is sent, or after it is answered.
+         */
+        void abort();
+    }
+
+    /**
+     * Construct a new RequestHedger.
+     * @param percentile Percentile of the recent latencies after which a request is sent again, e.g. 95
+     * @param budget Share of the requests that may be sent twice, e.g. 0.05
+     * @param deadlineMillis Time after which a request fails, 0 for none
+     */
+    public RequestHedger(double percentile, double budget, long deadlineMillis) {
+        this.percentile = percentile;
+        this.budget = budget;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Execute a request, sending it a second time if it is slow.
+     * @param request The request
+     * @return the first answer
+     * @throws XmlRpcException if both requests failed or the deadline passed
+     */
+    public Object execute(final Request request) throws XmlRpcException {
+        try {
+            request.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XmlRpcException("Interrupted while waiting to send a request", e);
+        }
+        final List<Attempt> attempts = new ArrayList<Attempt>();
+        final Attempt original = request.newAttempt();
+        attempts.add(original);
+        Callable<Object> first = new Callable<Object>() {
+            @Override
+            public Object call() throws XmlRpcException {
+                return send(original);
+            }
+        };
+        long start = System.nanoTime();
+        long deadline = deadlineMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : Long.MAX_VALUE;
+        long threshold = threshold();
+        long hedgeAt = threshold < 0 ? Long.MAX_VALUE : start + TimeUnit.MILLISECONDS.toNanos(threshold);
+        CompletionService<Object> completion = new ExecutorCompletionService<Object>(executor);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        futures.add(completion.submit(first));
+        synchronized (this) {
+            requests++;
+        }
+        boolean hedgeDone = false;
+        int pending = 1;
+        try {
+            while (true) {
+                long wake = hedgeDone ? deadline : Math.min(hedgeAt, deadline);
+                Future<Object> done = wake == Long.MAX_VALUE ? completion.take()
+                        : completion.poll(Math.max(0, wake - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    long now = System.nanoTime();
+                    if (now >= deadline) {
+                        deadline_exceeded.inc();
+                        throw new XmlRpcException("No answer within the deadline of " + deadlineMillis + " ms");
+                    }
+                    if (!hedgeDone && now >= hedgeAt) {
+                        hedgeDone = true;
+                        if (spendBudget()) {
+                            final Attempt second = request.newAttempt();
+                            attempts.add(second);
+                            futures.add(completion.submit(new Callable<Object>() {
+                                @Override
+                                public Object call() throws Exception {
+                                    request.await();
+                                    return send(second);
+                                }
+                            }));
+                            pending++;
+                            hedged.inc();
+                        }
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    Object result = done.get();
+                    if (done != futures.get(0))
+                        hedge_won.inc();
+                    return result;
+                } catch (ExecutionException e) {
+                    // Wait for the other request, if there is one
+                    if (pending > 0)
+                        continue;
+                    if (e.getCause() instanceof XmlRpcException)
+                        throw (XmlRpcException) e.getCause();
+                    throw new XmlRpcException("Request failed: " + e.getCause(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new XmlRpcException("Interrupted while waiting for an answer", e);
+        } finally {
+            // Abort the attempt that lost, or both at the deadline, and stop a
+            // duplicate that still waits for its turn
+            for (Attempt attempt : attempts)
+                attempt.abort();
+            for (Future<Object> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Send an attempt and record its latency, however it ended.
+     */
+    private Object send(Attempt attempt) throws XmlRpcException {
+        long start = System.nanoTime();
+        try {
+            return attempt.send();
+        } finally {
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Spend the budget for one duplicate, if there is any left.
+     */
+    private synchronized boolean spendBudget() {
+        if (duplicates + 1 > budget * requests)
+            return false;
+        duplicates++;
+        return true;
+    }
+
+    private synchronized void record(long millis) {
+        recent[recentNext] = millis;
+        recentNext = (recentNext + 1) % WINDOW;
+        recentCount = Math.min(recentCount + 1, WINDOW);
+    }
+
+    /**
+     * @return the percentile of the recent latencies in milliseconds, or -1 if there are too few
+     */
+    private synchronized long threshold() {
+        if (recentCount < MIN_SAMPLES)
+            return -1;
+        long[] sorted = Arrays.copyOf(recent, recentCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100. * recentCount) - 1;
+        return sorted[Math.max(0, Math.min(recentCount - 1, rank))];
+    }
+}
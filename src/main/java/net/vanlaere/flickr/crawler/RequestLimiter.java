@@ -0,0 +1,225 @@
+package net.vanlaere.flickr.crawler;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.vanlaere.flickr.metrics.Metrics;
+
+/**
+ * This class spreads the requests of one API key over the crawls that share
+ * it, e.g. the jobs of a CrawlService.
+ *
+ * Requests are let through at a fixed rate, the quota of the key, whatever
+ * the number of jobs. When several jobs wait, the next request goes to the
+ * job that used the least of its share so far: every request adds 1 / priority
+ * to the pass of its job, and the job with the lowest pass goes first. A job
+ * with priority 2 gets twice the requests of a job with priority 1, and a big
+ * job cannot starve a small one. A job that was idle or paused does not save
+ * up its share, it starts at the pass of the jobs that kept going.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class RequestLimiter {
+
+    /**
+     * The share of one crawl.
+     */
+    public class Job {
+
+        private final String name;
+
+        private int priority;
+
+        private boolean paused = false;
+
+        /**
+         * Number of threads of the job waiting for a request.
+         */
+        private int waiting = 0;
+
+        private double pass = 0;
+
+        private long requests = 0;
+
+        private long waitNanos = 0;
+
+        private Job(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        /**
+         * Wait until the job may send a request.
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public void acquire() throws InterruptedException {
+            RequestLimiter.this.acquire(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getPriority() {
+            synchronized (RequestLimiter.this) {
+                return priority;
+            }
+        }
+
+        /**
+         * @param priority The share of the job, relative to the other jobs, at least 1
+         */
+        public void setPriority(int priority) {
+            synchronized (RequestLimiter.this) {
+                this.priority = Math.max(1, priority);
+                RequestLimiter.this.notifyAll();
+            }
+        }
+
+        public boolean isPaused() {
+            synchronized (RequestLimiter.this) {
+                return paused;
+            }
+        }
+
+        /**
+         * Pause or resume the job. The requests of a paused job wait until it
+         * is resumed, requests that were already sent complete.
+         * @param paused true to pause, false to resume
+         */
+        public void setPaused(boolean paused) {
+            synchronized (RequestLimiter.this) {
+                if (this.paused && !paused)
+                    pass = Math.max(pass, virtualTime);
+                this.paused = paused;
+                RequestLimiter.this.notifyAll();
+            }
+        }
+
+        /**
+         * @return the number of requests the job sent
+         */
+        public long getRequests() {
+            synchronized (RequestLimiter.this) {
+                return requests;
+            }
+        }
+
+        /**
+         * @return the time the threads of the job waited for requests, in milliseconds
+         */
+        public long getWaitMillis() {
+            synchronized (RequestLimiter.this) {
+                return waitNanos / 1000000;
+            }
+        }
+
+        /**
+         * Stop sharing the key, once the job is done.
+         */
+        public void close() {
+            synchronized (RequestLimiter.this) {
+                jobs.remove(this);
+                RequestLimiter.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Time between two requests.
+     */
+    private final long intervalNanos;
+
+    /**
+     * The time the next request may be sent.
+     */
+    private long next = System.nanoTime();
+
+    /**
+     * The pass of the last job that sent a request.
+     */
+    private double virtualTime = 0;
+
+    private long requests = 0;
+
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    /**
+     * @param requestsPerHour The quota of the key
+     */
+    public RequestLimiter(double requestsPerHour) {
+        this.intervalNanos = (long) (3600e9 / requestsPerHour);
+    }
+
+    /**
+     * @param name Name of the job, for the metrics
+     * @param priority The share of the job, relative to the other jobs, at least 1
+     * @return the share of a new job
+     */
+    public synchronized Job newJob(String name, int priority) {
+        Job job = new Job(name, Math.max(1, priority));
+        job.pass = virtualTime;
+        jobs.add(job);
+        return job;
+    }
+
+    /**
+     * @return the number of requests per hour
+     */
+    public double getRequestsPerHour() {
+        return 3600e9 / intervalNanos;
+    }
+
+    /**
+     * @return the number of requests of all jobs
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    private synchronized void acquire(Job job) throws InterruptedException {
+        long start = System.nanoTime();
+        // An idle job starts at the pass of the others, it does not save up its share
+        if (job.waiting == 0)
+            job.pass = Math.max(job.pass, virtualTime);
+        job.waiting++;
+        try {
+            while (true) {
+                if (!job.paused && next() == job) {
+                    long now = System.nanoTime();
+                    if (now >= next) {
+                        next = Math.max(now, next) + intervalNanos;
+                        virtualTime = job.pass;
+                        job.pass += 1.0 / job.priority;
+                        job.requests++;
+                        requests++;
+                        break;
+                    }
+                    long millis = (next - now) / 1000000;
+                    wait(millis, (int) ((next - now) % 1000000));
+                }
+                else
+                    wait();
+            }
+        } finally {
+            job.waiting--;
+            long waited = System.nanoTime() - start;
+            job.waitNanos += waited;
+            Crawler.rate_limit_wait.recordNanos(waited);
+            // Another job may be next now
+            notifyAll();
+        }
+        Metrics.get().counter("limiter." + job.name + ".requests").inc();
+    }
+
+    /**
+     * @return the waiting job with the lowest pass, the first one on a tie
+     */
+    private Job next() {
+        Job best = null;
+        for (Job job : jobs) {
+            if (job.waiting > 0 && !job.paused && (best == null || job.pass < best.pass))
+                best = job;
+        }
+        return best;
+    }
+}
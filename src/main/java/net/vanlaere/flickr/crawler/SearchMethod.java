@@ -0,0 +1,97 @@
+package net.vanlaere.flickr.crawler;
+
+import java.util.Map;
+
+/**
+ * This class holds the API method a crawler calls, and the parameters that
+ * select the photos of a range of dates with it.
+ *
+ * UPLOADS is the default method of every scan, download and refresh: a search
+ * on the upload date. The public API has no method that selects photos by
+ * their last update: flickr.photos.recentlyUpdated only lists the photos of
+ * the authenticated caller. Another method, e.g. one that selects the photos
+ * of a range of update dates on an endpoint that offers it, extends this
+ * class, and is given to a crawler with setSearchMethod or, by its class
+ * name, with the system property flickr.search.method. A scan, and so a
+ * refresh (see RefreshCrawler), then walks the dates of that method.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public abstract class SearchMethod {
+
+    /**
+     * Minimum accuracy to request for items you want to retrieve from Flickr.
+     */
+    private static final String MIN_ACCURACY = "1";
+
+    public static final String PROPERTY = "flickr.search.method";
+
+    /**
+     * Search the geotagged photos uploaded between two dates.
+     */
+    public static final SearchMethod UPLOADS = new SearchMethod("flickr.photos.search") {
+        @Override
+        public void addParameters(Map<String, Object> parameterMap, long min_date, long max_date, String bbox) {
+            // Limit the results to images with at least region level accuracy on the location
+            parameterMap.put("accuracy", MIN_ACCURACY);
+            // Limit the results to images with geo information
+            parameterMap.put("has_geo", "1");
+            // Limi the results to only photos
+            parameterMap.put("media", "photos");
+            // Use minimum and maximum upload date to define a bounding box which will result
+            // in less or equal of 4000 results (more will not work due to a Flickr bug)
+            // Set the minimum value of the upload date
+            parameterMap.put("min_upload_date","" + min_date);
+            // Set the maximum value of the upload date
+            parameterMap.put("max_upload_date","" + max_date);
+            // Limit the results to a bounding box, for seconds with too many results
+            if (bbox != null)
+                parameterMap.put("bbox", bbox);
+        }
+    };
+
+    private final String name;
+
+    /**
+     * @param name The name of the API method, e.g. "flickr.photos.search"
+     */
+    protected SearchMethod(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name "uploads", or the class name of a search method with a
+     * public constructor without arguments
+     * @return the search method
+     */
+    public static SearchMethod forName(String name) {
+        if (name.equals("uploads"))
+            return UPLOADS;
+        try {
+            return Class.forName(name).asSubclass(SearchMethod.class).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown search method " + name + ": " + e);
+        }
+    }
+
+    /**
+     * @return the name of the API method, e.g. "flickr.photos.search"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add the parameters that select the photos of a range of dates.
+     * @param parameterMap The parameters of the call
+     * @param min_date Minimum date
+     * @param max_date Maximum date
+     * @param bbox Bounding box as min_lon,min_lat,max_lon,max_lat, or null for the whole world
+     */
+    public abstract void addParameters(Map<String, Object> parameterMap, long min_date, long max_date, String bbox);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
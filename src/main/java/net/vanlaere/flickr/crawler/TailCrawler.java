@@ -0,0 +1,434 @@
+package net.vanlaere.flickr.crawler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.vanlaere.flickr.crawler.datatypes.IntervalResult;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+
+/**
+ * This class keeps a crawl up to date by following new uploads.
+ *
+ * It remembers the newest upload date it covered (the high-water mark) in a
+ * state file next to the interval file. On every wake-up, it scans and
+ * downloads the window from the high-water mark to now. The intervals are
+ * appended to the interval file and the pages to the data folder, like a
+ * regular scan and download.
+ *
+ * Photos can show up in search results some time after their upload date, so
+ * every window starts an overlap period before the high-water mark. The
+ * intervals of the overlap are replaced by the ones of the new scan, and
+ * their pages are deleted, so the whole window is downloaded again, also an
+ * interval of the new scan that has the same key, and so the same page
+ * files, as a replaced one. New photos can shift the pages of an interval
+ * while it is downloaded, so a photo listed twice in a window is removed from
+ * the page it shows up on last, using the ids that are kept in the state
+ * file. A page with removed photos is marked with the number of photos
+ * removed, so it is not taken for a failed download.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class TailCrawler extends Crawler {
+
+    public static final String STATE_SUFFIX = ".tail";
+
+    /**
+     * Suffix of the file the intervals of a window are scanned to.
+     */
+    private static final String WINDOW_SUFFIX = ".window";
+
+    public static final String INTERVAL_PROPERTY = "flickr.follow.interval";
+
+    public static final String OVERLAP_PROPERTY = "flickr.follow.overlap";
+
+    /**
+     * Attribute of the photos element of a page with the number of photos
+     * that were dropped from it.
+     */
+    public static final String DUPLICATES_ATTRIBUTE = "duplicates";
+
+    private static final Pattern PHOTOS = Pattern.compile("<photos\\s");
+
+    private static final Pattern PHOTO = Pattern.compile("<photo\\s[^>]*>");
+
+    private static final Pattern ID = Pattern.compile("\\sid=\"(\\d+)\"");
+
+    private static final Pattern UPLOAD = Pattern.compile("\\sdateupload=\"(\\d+)\"");
+
+    private static final Pattern PAGE_FILE = Pattern.compile("response_(\\d+)(_[0-9a-f]+)?_page_\\d+\\.xml");
+
+    /**
+     * Counter for the photos dropped because they were already downloaded.
+     */
+    private static final Counter duplicates = Metrics.get().counter("follow.duplicates");
+
+    private final String stateFile;
+
+    /**
+     * Time between two wake-ups, in seconds.
+     */
+    private final long interval;
+
+    /**
+     * Period before the high-water mark that is scanned again, in seconds.
+     */
+    private final long overlap;
+
+    /**
+     * Newest upload date covered so far.
+     */
+    private long highWater = -1;
+
+    /**
+     * Ids of the photos downloaded in the overlap period, with their upload date.
+     */
+    private final Map<Long, Long> seen = new HashMap<Long, Long>();
+
+    /**
+     * Construct a new TailCrawler.
+     * @param stateFile File to keep the high-water mark and recent photo ids in
+     * @param interval Time between two wake-ups, in seconds
+     * @param overlap Period before the high-water mark to scan again, in seconds
+     */
+    public TailCrawler(String stateFile, long interval, long overlap) {
+        this.stateFile = stateFile;
+        this.interval = interval;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Follow new uploads until the process is stopped.
+     * @param intervalFile The interval file to append to
+     * @param dataDir The data folder to download to
+     */
+    public void follow(String intervalFile, String dataDir) {
+        loadState(intervalFile, dataDir);
+        System.out.println("Following uploads from " + highWater + "\t(" + unix2date(highWater) + ") every "
+                + interval + " s with an overlap of " + overlap + " s");
+        while (true) {
+            long wake = System.currentTimeMillis() + interval * 1000;
+            followOnce(intervalFile, dataDir);
+            long sleep = wake - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted while waiting for the next window: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan and download the window from the high-water mark to now.
+     * @param intervalFile The interval file to append to
+     * @param dataDir The data folder to download to
+     */
+    public void followOnce(String intervalFile, String dataDir) {
+        long now = new Date().getTime() / 1000;
+        long from = Math.max(highWater - overlap, getEndDate());
+        if (from >= now - 1)
+            return;
+        // The intervals of the overlap are replaced, instead of counted twice
+        from = windowStart(intervalFile, from);
+        System.out.println("Window [" + from + ", " + now + "]\t[" + unix2date(from) + ", " + unix2date(now) + "]");
+        // Scan the window, from now back to its start
+        setMax_upload_date(now);
+        setMin_upload_date(now - 1);
+        setMinUploadFloor(from);
+        setEndDate(from);
+        setResultsFound(0);
+        queueIntervals(new ArrayList<IntervalResult>());
+        String windowFile = intervalFile + WINDOW_SUFFIX;
+        new File(windowFile).delete();
+        identifyIntervals(windowFile);
+        // The window is downloaded again as a whole, before the intervals are
+        // replaced, so a crawl that stops in between deletes them again
+        deletePagesFrom(intervalFile, from, dataDir);
+        replaceIntervalsFrom(intervalFile, from, windowFile);
+        // Download the intervals of this window only
+        queueIntervals(new ArrayList<IntervalResult>(getQueue()));
+        downloadData(dataDir);
+        // Move the high-water mark and forget the photos before the next overlap
+        highWater = now;
+        long next = windowStart(intervalFile, highWater - overlap);
+        synchronized (seen) {
+            Iterator<Long> uploads = seen.values().iterator();
+            while (uploads.hasNext()) {
+                if (uploads.next() < next)
+                    uploads.remove();
+            }
+        }
+        saveState();
+        System.out.println("Window done, " + duplicates.get() + " duplicates dropped so far.");
+    }
+
+    /**
+     * The overlap starts at an interval boundary, so the intervals of the
+     * overlap can be replaced as a whole: a date inside an interval moves back
+     * to the start of that interval.
+     * @param intervalFile The interval file
+     * @param from The date to start the overlap at
+     * @return the start of the interval that holds the date, or the date
+     */
+    private long windowStart(String intervalFile, long from) {
+        File intervals = new File(intervalFile);
+        if (!intervals.exists())
+            return from;
+        long start = from;
+        try (BufferedReader in = new BufferedReader(new FileReader(intervals))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                IntervalResult ir = IntervalResult.parse(line);
+                if (ir.getMinDate() < from && ir.getMaxDate() >= from)
+                    start = Math.min(start, ir.getMinDate());
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading " + intervalFile + ": " + e.getMessage());
+        }
+        return start;
+    }
+
+    /**
+     * Delete the pages of the intervals from a date on, and forget the photos
+     * uploaded since, as they are all downloaded again.
+     * @param intervalFile The interval file
+     * @param from The start of an interval, where the window starts
+     * @param dataDir The data folder
+     */
+    private void deletePagesFrom(String intervalFile, long from, String dataDir) {
+        Set<String> pages = new HashSet<String>();
+        File intervals = new File(intervalFile);
+        if (intervals.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(intervals))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    IntervalResult ir = IntervalResult.parse(line);
+                    if (ir.getMinDate() < from)
+                        continue;
+                    // Also the pages past the current number of pages of the interval
+                    for (int page = 1; page <= MAX_PAGES; page++)
+                        pages.add(DownloadWorker.pageFile(DATAFILE_TEMPLATE, ir, page));
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading " + intervalFile + ": " + e.getMessage());
+            }
+        }
+        int deleted = deletePages(new File(dataDir), pages);
+        if (deleted > 0)
+            System.out.println("Deleted the " + deleted + " pages from " + from + " to download them again");
+        synchronized (seen) {
+            Iterator<Long> uploads = seen.values().iterator();
+            while (uploads.hasNext()) {
+                if (uploads.next() >= from)
+                    uploads.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of files deleted in a folder and its subfolders
+     */
+    private static int deletePages(File dir, Set<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null || names.isEmpty())
+            return 0;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isDirectory())
+                deleted += deletePages(file, names);
+            else if (names.contains(file.getName()) && file.delete())
+                deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Replace the intervals from a date on by the intervals of a window. The
+     * interval file is only replaced once the window is scanned, so a crawl
+     * that is stopped during the scan keeps the old intervals.
+     * @param intervalFile The interval file
+     * @param from The start of an interval, where the window starts
+     * @param windowFile The intervals of the window
+     */
+    private void replaceIntervalsFrom(String intervalFile, long from, String windowFile) {
+        File intervals = new File(intervalFile);
+        File window = new File(windowFile);
+        File tmp = new File(intervalFile + ".tmp");
+        int dropped = 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            if (intervals.exists()) {
+                try (BufferedReader in = new BufferedReader(new FileReader(intervals))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (IntervalResult.parse(line).getMinDate() >= from)
+                            dropped++;
+                        else
+                            out.println(line);
+                    }
+                }
+            }
+            try (BufferedReader in = new BufferedReader(new FileReader(window))) {
+                String line;
+                while ((line = in.readLine()) != null)
+                    out.println(line);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing " + tmp + ", the intervals of the window are in " + windowFile + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        intervals.delete();
+        if (!tmp.renameTo(intervals)) {
+            System.err.println("Error renaming " + tmp + " to " + intervalFile);
+            return;
+        }
+        window.delete();
+        if (dropped > 0)
+            System.out.println("Replaced the " + dropped + " intervals from " + from);
+    }
+
+    /**
+     * Drop the photos that were already downloaded, and remember the new ones.
+     */
+    @Override
+    protected String filterPage(String page) {
+        return remember(page, true);
+    }
+
+    /**
+     * Remember the photos of a page.
+     * @param page XML of the page
+     * @param drop If true, photos that were seen before are removed from the page
+     * @return the page without the dropped photos
+     */
+    private String remember(String page, boolean drop) {
+        StringBuffer result = new StringBuffer(page.length());
+        Matcher photo = PHOTO.matcher(page);
+        int dropped = 0;
+        synchronized (seen) {
+            while (photo.find()) {
+                Matcher id = ID.matcher(photo.group());
+                if (!id.find())
+                    continue;
+                long photoId = Long.parseLong(id.group(1));
+                if (drop && seen.containsKey(photoId)) {
+                    duplicates.inc();
+                    dropped++;
+                    photo.appendReplacement(result, "");
+                    continue;
+                }
+                Matcher upload = UPLOAD.matcher(photo.group());
+                seen.put(photoId, upload.find() ? Long.parseLong(upload.group(1)) : highWater);
+            }
+        }
+        photo.appendTail(result);
+        if (dropped == 0)
+            return result.toString();
+        return PHOTOS.matcher(result).replaceFirst("<photos " + DUPLICATES_ATTRIBUTE + "=\"" + dropped + "\" ");
+    }
+
+    /**
+     * Load the high-water mark and the recent photo ids. Without a state file,
+     * follow from the newest interval in the interval file, or from the end
+     * date if there is none, and take the ids from the pages of the overlap.
+     */
+    private void loadState(String intervalFile, String dataDir) {
+        File state = new File(stateFile);
+        if (state.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(state))) {
+                highWater = Long.parseLong(in.readLine().trim());
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] values = line.split(" ");
+                    seen.put(Long.parseLong(values[0]), Long.parseLong(values[1]));
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading " + stateFile + ", starting from the interval file: " + e.getMessage());
+                seen.clear();
+            }
+        }
+        highWater = getEndDate();
+        File intervals = new File(intervalFile);
+        if (intervals.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(intervals))) {
+                String line;
+                while ((line = in.readLine()) != null)
+                    highWater = Math.max(highWater, IntervalResult.parse(line).getMaxDate());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error reading " + intervalFile + ": " + e.getMessage());
+            }
+        }
+        try {
+            seedFromPages(new File(dataDir), highWater - overlap, PageCompression.open(dataDir));
+        } catch (IOException e) {
+            System.err.println("Error reading " + PageCompression.DICTIONARY_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remember the photos of the pages of intervals that end after a date.
+     */
+    private void seedFromPages(File dir, long from, PageCompression compression) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                seedFromPages(file, from, compression);
+                continue;
+            }
+            Matcher name = PAGE_FILE.matcher(file.getName());
+            if (!name.matches() || Long.parseLong(name.group(1)) < from)
+                continue;
+            StringBuilder page = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(compression.read(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null)
+                    page.append(line).append('\n');
+            } catch (IOException e) {
+                System.err.println("Error reading " + file + ": " + e.getMessage());
+                continue;
+            }
+            remember(page.toString(), false);
+        }
+    }
+
+    /**
+     * Write the state to a temporary file first, so a crash never leaves a broken state.
+     */
+    private void saveState() {
+        File tmp = new File(stateFile + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            out.println(highWater);
+            synchronized (seen) {
+                for (Map.Entry<Long, Long> entry : seen.entrySet())
+                    out.println(entry.getKey() + " " + entry.getValue());
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing " + stateFile + ": " + e.getMessage());
+            return;
+        }
+        File state = new File(stateFile);
+        state.delete();
+        if (!tmp.renameTo(state))
+            System.err.println("Error renaming " + tmp + " to " + stateFile);
+    }
+}
@@ -1,5 +1,8 @@
 package net.vanlaere.flickr.crawler.datatypes;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 /**
  * This class represents an interval in time that will
  * result in just less than 4000 Flickr results.
@@ -7,6 +10,10 @@ package net.vanlaere.flickr.crawler.datatypes;
  * Elements from IntervalResult can be queued for threaded
  * processing later on in the crawler.
  *
+ * When a single second holds more than 4000 results, it is split in space:
+ * such an interval also has a bounding box (min_lon, min_lat, max_lon,
+ * max_lat) that limits the results.
+ *
  * @author oliviervanlaere@gmail.com
  */
 public class IntervalResult {
@@ -35,11 +42,50 @@ public class IntervalResult {
         return numberOfResults;
     }
 
+    /**
+     * Bounding box of the interval, or null if it covers the whole world.
+     */
+    private double[] bbox;
+
+    public double[] getBbox(){
+        return bbox;
+    }
+
     public IntervalResult(long min_date, long max_date, int totalPages, int numberOfResults) {
+        this(min_date, max_date, totalPages, numberOfResults, null);
+    }
+
+    public IntervalResult(long min_date, long max_date, int totalPages, int numberOfResults, double[] bbox) {
         this.min_date = min_date;
         this.max_date = max_date;
         this.totalPages = totalPages;
         this.numberOfResults = numberOfResults;
+        // Keep the precision of the text format, so parsed intervals are equal
+        if (bbox != null) {
+            this.bbox = new double[4];
+            for (int i = 0; i < 4; i++)
+                this.bbox[i] = Math.round(bbox[i] * 1e6) / 1e6;
+        }
+    }
+
+    /**
+     * @return the bounding box as the Flickr bbox parameter
+     * (min_lon,min_lat,max_lon,max_lat), or null if there is none
+     */
+    public String getBboxString(){
+        if (bbox == null)
+            return null;
+        return String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f", bbox[0], bbox[1], bbox[2], bbox[3]);
+    }
+
+    /**
+     * @return a key that identifies this interval in file names: the max date,
+     * followed by a hash of the bounding box if there is one
+     */
+    public String getKey(){
+        if (bbox == null)
+            return "" + max_date;
+        return max_date + "_" + Integer.toHexString(getBboxString().hashCode());
     }
 
     @Override
@@ -47,14 +93,39 @@ public class IntervalResult {
         String result = "";
         result += "[ " + min_date + " , " + max_date + " ] results in " +
                     numberOfResults + " results over " + totalPages + " pages.";
+        if (bbox != null)
+            result += " bbox " + getBboxString();
         return result;
     }
 
+    /**
+     * Parse an interval from its toString() representation.
+     * @param line The text of the interval
+     * @return the interval
+     * @throws NumberFormatException if the text is not an interval
+     */
+    public static IntervalResult parse(String line) {
+        String [] values = line.split(" ");
+        long min_date = Long.parseLong(values[1]);
+        long max_date = Long.parseLong(values[3]);
+        int totalPages = Integer.parseInt(values[10]);
+        int numberOfResults = Integer.parseInt(values[7]);
+        double[] bbox = null;
+        if (values.length > 13 && values[12].equals("bbox")) {
+            String[] corners = values[13].split(",");
+            bbox = new double[4];
+            for (int i = 0; i < 4; i++)
+                bbox[i] = Double.parseDouble(corners[i]);
+        }
+        return new IntervalResult(min_date, max_date, totalPages, numberOfResults, bbox);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof IntervalResult) {
             IntervalResult iro = (IntervalResult) o;
-            return (this.min_date == iro.min_date) && (this.max_date == iro.max_date);
+            return (this.min_date == iro.min_date) && (this.max_date == iro.max_date)
+                    && Arrays.equals(this.bbox, iro.bbox);
         }
         else
             return false;
@@ -65,6 +136,7 @@ public class IntervalResult {
         int hash = 5;
         hash = 97 * hash + (int) (this.min_date ^ (this.min_date >>> 32));
         hash = 97 * hash + (int) (this.max_date ^ (this.max_date >>> 32));
+        hash = 97 * hash + Arrays.hashCode(this.bbox);
         return hash;
     }
 }
\ No newline at end of file
@@ -0,0 +1,362 @@
+package net.vanlaere.flickr.crawler.datatypes;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * This class provides a compact binary store of intervals, with random
+ * access by position and binary search by time.
+ *
+ * Intervals are stored as fixed size records, sorted by max date. The file is
+ * memory-mapped, so opening a store with millions of intervals takes no time,
+ * and looking up an interval or the intervals of a time range only touches
+ * the records it needs.
+ *
+ * File layout: a header (magic, version, number of records, longest interval
+ * in seconds, and the length, CRC32 and modification time of the interval
+ * file it was converted from, or -1) followed by the records (min date and max date as 64 bit unix
+ * timestamps, number of pages, number of results and the bounding box in
+ * millionths of a degree, or NO_BBOX).
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class IntervalStore {
+
+    /**
+     * Extension of a store converted from an interval file.
+     */
+    public static final String EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x46495653;
+
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 48;
+
+    /**
+     * Offset of the modification time of the interval file in the header.
+     */
+    private static final int SOURCE_MODIFIED = 40;
+
+    private static final int RECORD_SIZE = 40;
+
+    /**
+     * Marks a record without a bounding box.
+     */
+    private static final int NO_BBOX = Integer.MIN_VALUE;
+
+    /**
+     * Order of the records: by max date, then by min date, then by bounding box.
+     */
+    private static final Comparator<IntervalResult> ORDER = new Comparator<IntervalResult>() {
+        @Override
+        public int compare(IntervalResult a, IntervalResult b) {
+            int c = Long.compare(a.getMaxDate(), b.getMaxDate());
+            if (c == 0)
+                c = Long.compare(a.getMinDate(), b.getMinDate());
+            for (int i = 0; c == 0 && i < 4; i++)
+                c = Integer.compare(degrees(a.getBbox(), i), degrees(b.getBbox(), i));
+            return c;
+        }
+    };
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    private final long maxSpan;
+
+    private final long sourceLength;
+
+    private final long sourceChecksum;
+
+    private final long sourceModified;
+
+    private IntervalStore(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Not an interval store");
+        this.size = (int) buffer.getLong(8);
+        this.maxSpan = buffer.getLong(16);
+        this.sourceLength = buffer.getLong(24);
+        this.sourceChecksum = buffer.getLong(32);
+        this.sourceModified = buffer.getLong(SOURCE_MODIFIED);
+    }
+
+    /**
+     * Open a store.
+     * @param filename The file of the store
+     * @return the store
+     * @throws IOException if the file cannot be read or is not a store
+     */
+    public static IntervalStore open(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            FileChannel channel = file.getChannel();
+            return new IntervalStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write intervals to a new store.
+     * @param filename The file of the store
+     * @param intervals The intervals, in any order
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String filename, List<IntervalResult> intervals) throws IOException {
+        write(filename, intervals, -1, -1, -1);
+    }
+
+    /**
+     * Write intervals to a new store.
+     * @param filename The file of the store
+     * @param intervals The intervals, in any order
+     * @param sourceLength The length of the interval file of the intervals
+     * @param sourceChecksum The CRC32 of the interval file of the intervals
+     * @param sourceModified The modification time of the interval file of the intervals
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(String filename, List<IntervalResult> intervals, long sourceLength,
+            long sourceChecksum, long sourceModified) throws IOException {
+        List<IntervalResult> sorted = new ArrayList<IntervalResult>(intervals);
+        Collections.sort(sorted, ORDER);
+        long maxSpan = 0;
+        for (IntervalResult ir : sorted)
+            maxSpan = Math.max(maxSpan, ir.getMaxDate() - ir.getMinDate());
+        File tmp = new File(filename + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sorted.size());
+            out.writeLong(maxSpan);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceChecksum);
+            out.writeLong(sourceModified);
+            for (IntervalResult ir : sorted) {
+                out.writeLong(ir.getMinDate());
+                out.writeLong(ir.getMaxDate());
+                out.writeInt(ir.getTotalPages());
+                out.writeInt(ir.getNumberOfResults());
+                for (int i = 0; i < 4; i++)
+                    out.writeInt(degrees(ir.getBbox(), i));
+            }
+        }
+        File store = new File(filename);
+        store.delete();
+        if (!tmp.renameTo(store))
+            throw new IOException("Could not rename " + tmp + " to " + filename);
+    }
+
+    /**
+     * Convert an interval file (one IntervalResult.toString() per line) to a store.
+     * @param textFile The interval file
+     * @param storeFile The file of the store
+     * @return the number of intervals
+     * @throws IOException if a file cannot be read or written
+     */
+    public static int convert(String textFile, String storeFile) throws IOException {
+        List<IntervalResult> intervals = new ArrayList<IntervalResult>();
+        CRC32 crc = new CRC32();
+        // Before reading, so a file that changes meanwhile is converted again next time
+        long modified = new File(textFile).lastModified();
+        long length;
+        try (FileInputStream file = new FileInputStream(textFile);
+                BufferedReader in = new BufferedReader(new InputStreamReader(new CheckedInputStream(file, crc)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    intervals.add(IntervalResult.parse(line));
+            }
+            length = file.getChannel().position();
+        }
+        write(storeFile, intervals, length, crc.getValue(), modified);
+        return intervals.size();
+    }
+
+    /**
+     * @param textFile An interval file
+     * @return the CRC32 of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static long checksum(String textFile) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(textFile)) {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A file with the length and the modification time of the file the store
+     * was converted from is taken to be that file, without reading it. Only a
+     * file with the same length and another time, e.g. one that was copied or
+     * touched, is compared by its checksum.
+     * @param textFile An interval file
+     * @return true if the store was converted from the file as it is now
+     * @throws IOException if the file cannot be read
+     */
+    public boolean isConvertedFrom(String textFile) throws IOException {
+        File file = new File(textFile);
+        if (sourceLength != file.length())
+            return false;
+        if (sourceModified == file.lastModified())
+            return true;
+        return sourceChecksum == checksum(textFile);
+    }
+
+    /**
+     * @return the modification time of the interval file the store was converted from
+     */
+    public long getSourceModified() {
+        return sourceModified;
+    }
+
+    /**
+     * Set the modification time of the interval file of a store, once its
+     * checksum showed it is the same file, so it is not read again.
+     * @param storeFile The file of the store
+     * @param modified The modification time of the interval file
+     * @throws IOException if the store cannot be written
+     */
+    public static void setSourceModified(String storeFile, long modified) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "rw")) {
+            file.seek(SOURCE_MODIFIED);
+            file.writeLong(modified);
+        }
+    }
+
+    /**
+     * @return the number of intervals
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get an interval by position.
+     * @param index Position, 0 is the interval with the oldest max date
+     * @return the interval
+     */
+    public IntervalResult get(int index) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        double[] bbox = null;
+        if (buffer.getInt(offset + 24) != NO_BBOX) {
+            bbox = new double[4];
+            for (int i = 0; i < 4; i++)
+                bbox[i] = buffer.getInt(offset + 24 + 4 * i) / 1e6;
+        }
+        return new IntervalResult(buffer.getLong(offset), buffer.getLong(offset + 8),
+                buffer.getInt(offset + 16), buffer.getInt(offset + 20), bbox);
+    }
+
+    private long maxDate(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 8);
+    }
+
+    /**
+     * @return the position of the first interval with a max date of at least time
+     */
+    public int lowerBound(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxDate(mid) < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Find the position of an interval.
+     * @param ir The interval
+     * @return the position, or -1 if the store does not hold it
+     */
+    public int indexOf(IntervalResult ir) {
+        for (int i = lowerBound(ir.getMaxDate()); i < size && maxDate(i) == ir.getMaxDate(); i++) {
+            if (get(i).equals(ir))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Select the intervals that overlap a time range.
+     * @param from Start of the range (unix timestamp, inclusive)
+     * @param to End of the range (unix timestamp, inclusive)
+     * @return the intervals, sorted by max date
+     */
+    public List<IntervalResult> range(long from, long to) {
+        List<IntervalResult> result = new ArrayList<IntervalResult>();
+        // No interval that ends after to + maxSpan can start before to
+        long last = to > Long.MAX_VALUE - maxSpan ? Long.MAX_VALUE : to + maxSpan;
+        for (int i = lowerBound(from); i < size && maxDate(i) <= last; i++) {
+            IntervalResult ir = get(i);
+            if (ir.getMinDate() <= to)
+                result.add(ir);
+        }
+        return result;
+    }
+
+    /**
+     * @return the oldest min date of all intervals, or Long.MAX_VALUE if there are none
+     */
+    public long getMinDate() {
+        long min = Long.MAX_VALUE;
+        long last = size == 0 ? 0 : maxDate(0) + maxSpan;
+        for (int i = 0; i < size && maxDate(i) <= last; i++)
+            min = Math.min(min, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE));
+        return min;
+    }
+
+    /**
+     * @return the sum of the number of results of all intervals
+     */
+    public long getTotalResults() {
+        long total = 0;
+        for (int i = 0; i < size; i++)
+            total += buffer.getInt(HEADER_SIZE + i * RECORD_SIZE + 20);
+        return total;
+    }
+
+    private static int degrees(double[] bbox, int i) {
+        return bbox == null ? NO_BBOX : (int) Math.round(bbox[i] * 1e6);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("convert")) {
+            long start = System.currentTimeMillis();
+            int intervals = convert(args[1], args[2]);
+            System.out.println("Converted " + intervals + " intervals in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        else if (args.length == 4 && args[0].equals("range")) {
+            IntervalStore store = open(args[1]);
+            for (IntervalResult ir : store.range(Long.parseLong(args[2]), Long.parseLong(args[3])))
+                System.out.println(ir);
+        }
+        else {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: convert intervalfile storefile");
+            System.out.println("       range storefile timestamp_from timestamp_to");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package net.vanlaere.flickr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free counter that can be updated from any number of threads.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+}
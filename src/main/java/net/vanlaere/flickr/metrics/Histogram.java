@@ -0,0 +1,108 @@
+package net.vanlaere.flickr.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram.
+ *
+ * Values are recorded in microseconds into power of two buckets: bucket i
+ * holds the values in [2^(i-1), 2^i). Percentiles are reported as the upper
+ * bound of the bucket they fall in, which is accurate within a factor two
+ * and more than enough to spot tail latency.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Histogram {
+
+    /**
+     * Number of buckets, enough for values up to 2^40 us (about 12 days).
+     */
+    private static final int BUCKETS = 41;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * @param nanos The duration in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Record a duration.
+     * @param millis The duration in milliseconds
+     */
+    public void recordMillis(long millis) {
+        record(TimeUnit.MILLISECONDS.toMicros(millis));
+    }
+
+    /**
+     * Record a value.
+     * @param micros The value in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros))
+            current = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all values, in microseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return the largest value, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean value, in microseconds
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() * 1. / n;
+    }
+
+    /**
+     * Estimate a percentile.
+     * @param percentile The percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100. * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+        }
+        return max.get();
+    }
+}
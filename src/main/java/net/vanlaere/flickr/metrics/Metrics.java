@@ -0,0 +1,281 @@
+package net.vanlaere.flickr.metrics;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class holds all metrics of the crawler and the parser.
+ *
+ * Metrics are identified by name and created on first use. Counters and
+ * histograms are lock-free, so they can be updated from every download and
+ * parser thread. All metrics are exposed over JMX under
+ * net.vanlaere.flickr:type=Metrics, and can be written as a periodic snapshot
+ * (one JSON object per line) to a file.
+ *
+ * The snapshot file is enabled with the system properties flickr.metrics.file
+ * and flickr.metrics.interval (in seconds, default 10).
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Metrics {
+
+    public static final String OBJECT_NAME = "net.vanlaere.flickr:type=Metrics";
+
+    public static final String FILE_PROPERTY = "flickr.metrics.file";
+
+    public static final String INTERVAL_PROPERTY = "flickr.metrics.interval";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * @return the metrics of this process
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Counter values at the previous snapshot, used to compute rates.
+     */
+    private Map<String, Long> previous = new HashMap<String, Long>();
+
+    private long previousTime = System.currentTimeMillis();
+
+    private Thread snapshotThread = null;
+
+    private Metrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get a counter, creating it if needed.
+     * @param name The name of the counter
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Get a histogram, creating it if needed.
+     * @param name The name of the histogram
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Flatten all metrics into name/value pairs. Histograms are reported in
+     * milliseconds as name.count, name.mean, name.p50, name.p99 and name.max.
+     * @return the current values, sorted by name
+     */
+    public Map<String, Number> values() {
+        Map<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean() / 1000.);
+            values.put(name + ".p50", histogram.getPercentile(50) / 1000.);
+            values.put(name + ".p99", histogram.getPercentile(99) / 1000.);
+            values.put(name + ".max", histogram.getMax() / 1000.);
+        }
+        return values;
+    }
+
+    /**
+     * Build a snapshot of all metrics as a single line of JSON. Counters
+     * also get a rate per second since the previous snapshot.
+     * @return the snapshot
+     */
+    public synchronized String snapshot() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - previousTime) / 1000.;
+        Map<String, Long> current = new HashMap<String, Long>();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(now);
+        json.append(",\"counters\":{");
+        StringBuilder rates = new StringBuilder();
+        boolean first = true;
+        for (String name : new TreeMap<String, Counter>(counters).keySet()) {
+            long value = counters.get(name).get();
+            current.put(name, value);
+            Long before = previous.get(name);
+            double rate = (value - (before == null ? 0 : before)) / seconds;
+            if (!first) {
+                json.append(',');
+                rates.append(',');
+            }
+            json.append('"').append(name).append("\":").append(value);
+            rates.append('"').append(name).append("\":").append(String.format(Locale.ROOT, "%.2f", rate));
+            first = false;
+        }
+        json.append("},\"rates\":{").append(rates).append('}');
+        json.append(",\"histograms\":{");
+        first = true;
+        for (String name : new TreeMap<String, Histogram>(histograms).keySet()) {
+            Histogram histogram = histograms.get(name);
+            if (!first)
+                json.append(',');
+            json.append('"').append(name).append("\":{");
+            json.append("\"count\":").append(histogram.getCount());
+            json.append(",\"mean_ms\":").append(String.format(Locale.ROOT, "%.3f", histogram.getMean() / 1000.));
+            json.append(",\"p50_ms\":").append(histogram.getPercentile(50) / 1000.);
+            json.append(",\"p90_ms\":").append(histogram.getPercentile(90) / 1000.);
+            json.append(",\"p99_ms\":").append(histogram.getPercentile(99) / 1000.);
+            json.append(",\"max_ms\":").append(histogram.getMax() / 1000.);
+            json.append('}');
+            first = false;
+        }
+        json.append("}}");
+        previous = current;
+        previousTime = now;
+        return json.toString();
+    }
+
+    /**
+     * Start writing a snapshot to a file at a fixed interval, from a daemon thread.
+     * A final snapshot is written when the JVM shuts down.
+     * @param filename The file to append the snapshots to
+     * @param intervalMillis Time between two snapshots
+     */
+    public synchronized void startSnapshots(final String filename, final long intervalMillis) {
+        if (snapshotThread != null)
+            return;
+        snapshotThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    writeSnapshot(filename);
+                }
+            }
+        }, "MetricsSnapshot");
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(filename);
+            }
+        }));
+    }
+
+    /**
+     * Start the periodic snapshots if the system properties ask for it.
+     */
+    public void startFromSystemProperties() {
+        String filename = System.getProperty(FILE_PROPERTY);
+        if (filename != null) {
+            long interval = Long.parseLong(System.getProperty(INTERVAL_PROPERTY, "10"));
+            System.out.println("Writing metrics to " + filename + " every " + interval + " s");
+            startSnapshots(filename, interval * 1000);
+        }
+    }
+
+    private void writeSnapshot(String filename) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename, true))) {
+            out.println(snapshot());
+        } catch (IOException e) {
+            System.err.println("Error writing metrics snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Exposes every value of values() as a read-only JMX attribute.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = values().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value.doubleValue();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null)
+                    list.add(new Attribute(attribute, value.doubleValue()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : values().keySet())
+                attributes.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+            return new MBeanInfo(Metrics.class.getName(), "Flickr crawler metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
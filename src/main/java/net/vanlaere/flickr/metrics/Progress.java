@@ -0,0 +1,204 @@
+package net.vanlaere.flickr.metrics;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class tracks the progress of a long running phase (downloading pages,
+ * parsing files) without locking the threads doing the work.
+ *
+ * Workers only increment striped counters. A single reporter thread prints
+ * the totals, the rate and the estimated time remaining at a fixed interval.
+ * Per-event messages can optionally be logged as well; they are queued and
+ * printed by the reporter thread, and dropped if the queue is full, so a
+ * slow console never blocks a worker.
+ *
+ * The interval and the per-event logging are set with the system properties
+ * flickr.progress.interval (in seconds, default 10) and flickr.progress.events.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Progress {
+
+    public static final String INTERVAL_PROPERTY = "flickr.progress.interval";
+
+    public static final String EVENTS_PROPERTY = "flickr.progress.events";
+
+    private final NumberFormat formatter = new DecimalFormat("#00.00");
+
+    /**
+     * Maximum number of queued event messages.
+     */
+    private static final int EVENT_QUEUE_SIZE = 4096;
+
+    /**
+     * Provides the total amount of work, which may be an estimate that changes.
+     */
+    public interface Total {
+        long get();
+    }
+
+    private final String name;
+
+    private final Total total;
+
+    private final StripedCounter done = new StripedCounter();
+
+    private final StripedCounter skipped = new StripedCounter();
+
+    private final long intervalMillis;
+
+    private final boolean logEvents;
+
+    private final BlockingQueue<String> events = new ArrayBlockingQueue<String>(EVENT_QUEUE_SIZE);
+
+    private long startTime;
+
+    private Thread reporter = null;
+
+    /**
+     * Construct a new Progress using the system properties for the interval
+     * and the per-event logging.
+     * @param name Name of the phase, printed on every report
+     * @param total Provides the total amount of work
+     */
+    public Progress(String name, Total total) {
+        this(name, total, Long.parseLong(System.getProperty(INTERVAL_PROPERTY, "10")) * 1000,
+                Boolean.parseBoolean(System.getProperty(EVENTS_PROPERTY, "false")));
+    }
+
+    /**
+     * Construct a new Progress.
+     * @param name Name of the phase, printed on every report
+     * @param total Provides the total amount of work
+     * @param intervalMillis Time between two reports
+     * @param logEvents If true, per-event messages are printed as well
+     */
+    public Progress(String name, Total total, long intervalMillis, boolean logEvents) {
+        this.name = name;
+        this.total = total;
+        this.intervalMillis = intervalMillis;
+        this.logEvents = logEvents;
+    }
+
+    /**
+     * Start the reporter thread. A progress that is started again after it
+     * was stopped starts counting from zero, so the rate and the estimated
+     * time remaining only cover the new run.
+     */
+    public synchronized void start() {
+        if (reporter != null)
+            return;
+        done.reset();
+        skipped.reset();
+        events.clear();
+        startTime = System.currentTimeMillis();
+        reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = System.currentTimeMillis() + intervalMillis;
+                while (true) {
+                    try {
+                        String event = events.poll(Math.max(1, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        if (event != null)
+                            System.out.println(event);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (System.currentTimeMillis() >= next) {
+                        System.out.println(report());
+                        next += intervalMillis;
+                    }
+                }
+            }
+        }, "Progress-" + name);
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Stop the reporter thread and print the final report.
+     */
+    public synchronized void stop() {
+        if (reporter != null) {
+            reporter.interrupt();
+            try {
+                reporter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reporter = null;
+        }
+        String event;
+        while ((event = events.poll()) != null)
+            System.out.println(event);
+        System.out.println(report());
+    }
+
+    /**
+     * Mark one unit of work as done.
+     */
+    public void done() {
+        done.inc();
+    }
+
+    /**
+     * Mark one unit of work as done without doing it, because it was skipped or failed.
+     */
+    public void skipped() {
+        done.inc();
+        skipped.inc();
+    }
+
+    /**
+     * @return the number of units done so far, including the skipped ones
+     */
+    public long getDone() {
+        return done.get();
+    }
+
+    /**
+     * @return true if per-event messages are logged
+     */
+    public boolean isLoggingEvents() {
+        return logEvents;
+    }
+
+    /**
+     * Log a per-event message, if enabled. Never blocks.
+     * @param message The message
+     */
+    public void event(String message) {
+        if (logEvents)
+            events.offer(message);
+    }
+
+    /**
+     * Build a report line with totals, rate and estimated time remaining.
+     * @return the report
+     */
+    public String report() {
+        long count = done.get();
+        long all = total.get();
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.;
+        double rate = count / seconds;
+        StringBuilder builder = new StringBuilder();
+        builder.append(name).append(": ").append(count).append('/').append(all);
+        if (all > 0)
+            builder.append(" (").append(formatter.format(count * 100. / all)).append(" %)");
+        builder.append(" | ").append(String.format("%.2f", rate)).append("/s");
+        if (all > count && rate > 0)
+            builder.append(" | ETA ").append(duration((long) ((all - count) / rate)));
+        long skips = skipped.get();
+        if (skips > 0)
+            builder.append(" | skipped/failed ").append(skips);
+        return builder.toString();
+    }
+
+    private static String duration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,55 @@
+package net.vanlaere.flickr.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, so threads that increment it at a
+ * high rate do not contend on a single value. Each thread updates the cell
+ * picked by its id; reading the counter sums all cells.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class StripedCounter {
+
+    /**
+     * Distance between two cells, so each cell sits on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final int stripes;
+
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public StripedCounter(int stripes) {
+        this.stripes = Math.max(1, stripes);
+        this.cells = new AtomicLongArray(this.stripes * PADDING);
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int) (Thread.currentThread().getId() % stripes);
+        cells.addAndGet(stripe * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * Set the counter back to zero, while no thread updates it.
+     */
+    public void reset() {
+        for (int i = 0; i < stripes; i++)
+            cells.set(i * PADDING, 0);
+    }
+}
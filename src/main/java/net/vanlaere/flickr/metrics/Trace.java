@@ -0,0 +1,354 @@
+package net.vanlaere.flickr.metrics;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records a timeline of the crawler and the parser: spans around
+ * every probe, page, retry, sleep, file write, parse batch and merge, to see
+ * where the time of a run goes. The timeline is written in the trace event
+ * format of Chrome, to be opened in chrome://tracing or ui.perfetto.dev.
+ *
+ * Every thread records into its own buffer, so the threads never wait for
+ * each other. A buffer is kept until the trace is written, and every thread
+ * is a row of the timeline, so work should run on long-lived threads, e.g. a
+ * pool, not on a new thread per task. Only the top level spans of a thread
+ * are sampled: a span that is not sampled drops the spans inside it. Work
+ * that a span hands to another thread is begun with that span as its parent,
+ * and is recorded when the parent is, so a sampled span comes with all of its
+ * work. The number of recorded spans is limited, spans that end after the
+ * limit is reached are dropped and counted as trace.dropped. A span must be
+ * ended by the thread that began it, in a finally block, or the spans after
+ * it on that thread are no longer sampled.
+ *
+ * Tracing is enabled with the system property flickr.trace.file, the file the
+ * trace is written to when the JVM shuts down. flickr.trace.sample is the
+ * share of the top level spans to record (default 1) and flickr.trace.limit
+ * the maximum number of spans (default 1000000).
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Trace {
+
+    public static final String FILE_PROPERTY = "flickr.trace.file";
+
+    public static final String SAMPLE_PROPERTY = "flickr.trace.sample";
+
+    public static final String LIMIT_PROPERTY = "flickr.trace.limit";
+
+    private static final Trace INSTANCE = new Trace();
+
+    /**
+     * @return the trace of this process
+     */
+    public static Trace get() {
+        return INSTANCE;
+    }
+
+    /**
+     * A span of time on one thread.
+     */
+    public class Span {
+
+        private final Local local;
+
+        private final String category;
+
+        private final String name;
+
+        private final String detail;
+
+        private final long start;
+
+        private final boolean recorded;
+
+        private Span(Local local, String category, String name, String detail, boolean recorded) {
+            this.local = local;
+            this.category = category;
+            this.name = name;
+            this.detail = detail;
+            this.recorded = recorded;
+            this.start = recorded ? System.nanoTime() : 0;
+        }
+
+        /**
+         * End the span, on the thread that began it.
+         */
+        public void end() {
+            if (local == null)
+                return;
+            local.depth--;
+            if (recorded)
+                local.add(category, name, detail, start, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The state and the spans of one thread.
+     */
+    private class Local {
+
+        private final long threadId;
+
+        private final String threadName;
+
+        /**
+         * Number of open spans.
+         */
+        private int depth = 0;
+
+        /**
+         * Whether the open top level span is recorded.
+         */
+        private boolean recording = false;
+
+        private boolean registered = false;
+
+        private int size = 0;
+
+        private String[] categories = new String[16];
+
+        private String[] names = new String[16];
+
+        private String[] details = new String[16];
+
+        private long[] starts = new long[16];
+
+        private long[] durations = new long[16];
+
+        Local(Thread thread) {
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+        }
+
+        private void add(String category, String name, String detail, long start, long duration) {
+            if (recorded.incrementAndGet() > limit) {
+                dropped.inc();
+                return;
+            }
+            if (!registered) {
+                synchronized (locals) {
+                    locals.add(this);
+                }
+                registered = true;
+            }
+            // Only the writer reads the spans of another thread
+            synchronized (this) {
+                if (size == starts.length) {
+                    int capacity = 2 * size;
+                    categories = Arrays.copyOf(categories, capacity);
+                    names = Arrays.copyOf(names, capacity);
+                    details = Arrays.copyOf(details, capacity);
+                    starts = Arrays.copyOf(starts, capacity);
+                    durations = Arrays.copyOf(durations, capacity);
+                }
+                categories[size] = category;
+                names[size] = name;
+                details[size] = detail;
+                starts[size] = start;
+                durations[size] = duration;
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Span returned while tracing is off, or by a thread that is not tracing.
+     */
+    private final Span none = new Span(null, null, null, null, false);
+
+    private final ThreadLocal<Local> local = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+            return new Local(Thread.currentThread());
+        }
+    };
+
+    /**
+     * The threads that recorded spans, also after they ended.
+     */
+    private final List<Local> locals = new ArrayList<Local>();
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final Counter dropped = Metrics.get().counter("trace.dropped");
+
+    /**
+     * Wall clock time and System.nanoTime() at the same moment, so the traces
+     * of several processes line up.
+     */
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+
+    private final long baseNanos = System.nanoTime();
+
+    private volatile boolean enabled = false;
+
+    private volatile double sample = 1;
+
+    private volatile long limit = 0;
+
+    private Trace() {
+    }
+
+    /**
+     * Begin a span on the current thread.
+     * @param category The part of the run, e.g. scan, download or parse
+     * @param name The name of the span
+     * @return the span, to end when the work is done
+     */
+    public Span begin(String category, String name) {
+        return begin(category, name, null);
+    }
+
+    /**
+     * Begin a span on the current thread.
+     * @param category The part of the run, e.g. scan, download or parse
+     * @param name The name of the span
+     * @param detail What the span works on, e.g. the interval or the file, or null
+     * @return the span, to end when the work is done
+     */
+    public Span begin(String category, String name, String detail) {
+        if (!enabled)
+            return none;
+        Local current = local.get();
+        // The top level span decides for the spans inside it
+        if (current.depth == 0)
+            current.recording = sample >= 1 || ThreadLocalRandom.current().nextDouble() < sample;
+        current.depth++;
+        return new Span(current, category, name, detail, current.recording);
+    }
+
+    /**
+     * Begin a span on the current thread, for work that a span of another
+     * thread handed to it. If it is a top level span, it is recorded when the
+     * parent is, instead of being sampled on its own.
+     * @param parent The span the work belongs to
+     * @param category The part of the run, e.g. scan, download or parse
+     * @param name The name of the span
+     * @param detail What the span works on, e.g. the interval or the file, or null
+     * @return the span, to end when the work is done
+     */
+    public Span begin(Span parent, String category, String name, String detail) {
+        if (!enabled)
+            return none;
+        Local current = local.get();
+        if (current.depth == 0)
+            current.recording = parent.recorded;
+        current.depth++;
+        return new Span(current, category, name, detail, current.recording);
+    }
+
+    /**
+     * Start recording spans, and write them to a file when the JVM shuts down.
+     * @param filename The file to write the trace to
+     * @param sample The share of the top level spans to record, between 0 and 1
+     * @param limit The maximum number of spans to record
+     */
+    public synchronized void start(final String filename, double sample, long limit) {
+        if (enabled)
+            return;
+        this.sample = sample;
+        this.limit = limit;
+        this.enabled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(filename);
+                } catch (IOException e) {
+                    System.err.println("Error writing trace: " + e.getMessage());
+                }
+            }
+        }));
+    }
+
+    /**
+     * Start recording spans if the system properties ask for it.
+     */
+    public void startFromSystemProperties() {
+        String filename = System.getProperty(FILE_PROPERTY);
+        if (filename != null) {
+            double sample = Double.parseDouble(System.getProperty(SAMPLE_PROPERTY, "1"));
+            long limit = Long.parseLong(System.getProperty(LIMIT_PROPERTY, "1000000"));
+            System.out.println("Writing a trace of " + (sample * 100) + "% of the spans to " + filename);
+            start(filename, sample, limit);
+        }
+    }
+
+    /**
+     * Write the spans recorded so far as a Chrome trace. Spans that are still
+     * open are not written.
+     * @param filename The file to write the trace to
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String filename) throws IOException {
+        List<Local> threads;
+        synchronized (locals) {
+            threads = new ArrayList<Local>(locals);
+        }
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        try (Writer out = new BufferedWriter(new FileWriter(filename))) {
+            out.write("{\"traceEvents\":[\n");
+            boolean first = true;
+            for (Local thread : threads) {
+                synchronized (thread) {
+                    if (!first)
+                        out.write(",\n");
+                    first = false;
+                    out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + thread.threadId
+                            + ",\"args\":{\"name\":" + quote(thread.threadName) + "}}");
+                    for (int i = 0; i < thread.size; i++) {
+                        StringBuilder event = new StringBuilder(",\n{\"name\":");
+                        event.append(quote(thread.names[i])).append(",\"cat\":").append(quote(thread.categories[i]));
+                        event.append(",\"ph\":\"X\",\"ts\":");
+                        appendMicros(event, baseMicros * 1000 + thread.starts[i] - baseNanos);
+                        event.append(",\"dur\":");
+                        appendMicros(event, thread.durations[i]);
+                        event.append(",\"pid\":").append(pid).append(",\"tid\":").append(thread.threadId);
+                        if (thread.details[i] != null)
+                            event.append(",\"args\":{\"detail\":").append(quote(thread.details[i])).append('}');
+                        event.append('}');
+                        out.write(event.toString());
+                    }
+                }
+            }
+            out.write("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"sample\":\"" + sample
+                    + "\",\"dropped\":\"" + dropped.get() + "\"}}\n");
+        }
+    }
+
+    /**
+     * Append nanoseconds as microseconds with three decimals.
+     */
+    private static void appendMicros(StringBuilder builder, long nanos) {
+        long fraction = nanos % 1000;
+        builder.append(nanos / 1000).append('.');
+        if (fraction < 100)
+            builder.append('0');
+        if (fraction < 10)
+            builder.append('0');
+        builder.append(fraction);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,446 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class discovers the raw XML files in a data folder and streams them
+ * to the parser workers through a bounded queue.
+ *
+ * Every directory found directly under the data folder (the chunk_NNN
+ * directories written by the crawler) is listed by its own task, so parsing
+ * can start as soon as the first files are listed. Files are kept as a
+ * directory id plus a filename instead of a full absolute path.
+ *
+ * Files are handed out in a fixed order, the same on every run: first the
+ * files directly in the data folder, then the directories under it, each one
+ * depth first with its files and subdirectories sorted by name. A directory
+ * is only handed out once the ones before it are. Its task passes the files
+ * on through a small bounded queue of its own while it lists, and only as
+ * many directories as there are threads are listed ahead, so the files held
+ * in memory are bounded by the queues, not by the size of the data folder.
+ *
+ * The discovery can be limited to a shard of the data folder, so several
+ * processes can parse it together. The files directly in the data folder
+ * (".") and the directories under it, sorted by name, are assigned to the
+ * shards in turn: the k-th of them goes to shard k % shards.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class FileDiscovery {
+
+    /**
+     * Capacity of the queue between the discovery tasks and the parser workers.
+     */
+    private static final int QUEUE_CAPACITY = 8192;
+
+    /**
+     * Capacity of the queue of a directory that is being listed.
+     */
+    private static final int LISTING_CAPACITY = 1024;
+
+    /**
+     * Number of files assumed in a directory that has not been listed yet.
+     * This matches the maximum number of files per directory of the crawler.
+     */
+    private static final int ASSUMED_FILES_PER_DIR = 10000;
+
+    /**
+     * Marker put on the queue once all directories have been listed, and on
+     * the queue of a listing once its directory has been listed.
+     */
+    private static final Entry END = new Entry(-1, null);
+
+    /**
+     * A file found during discovery: the id of its directory, its name, and
+     * its position in the order the files are handed out.
+     */
+    public static class Entry {
+
+        private final int dir;
+
+        public int getDir() {
+            return dir;
+        }
+
+        private final String name;
+
+        public String getName() {
+            return name;
+        }
+
+        private long position = -1;
+
+        /**
+         * @return the position of the file in the fixed order of the discovery, from 0
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        public Entry(int dir, String name) {
+            this.dir = dir;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A task that lists a top level directory, and the files it found that
+     * were not handed out yet.
+     */
+    private class Listing implements Runnable {
+
+        private final int id;
+
+        private final boolean recursive;
+
+        private final BlockingQueue<Entry> files = new ArrayBlockingQueue<Entry>(LISTING_CAPACITY);
+
+        /**
+         * Why the listing failed, if it did, set before the end marker.
+         */
+        private volatile Exception failure = null;
+
+        Listing(int id, boolean recursive) {
+            this.id = id;
+            this.recursive = recursive;
+        }
+
+        @Override
+        public void run() {
+            try {
+                list(id, recursive, files);
+                if (recursive) {
+                    pendingDirs.decrementAndGet();
+                    completedDirs.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // The discovery stopped, nobody takes the files anymore
+                failure = e;
+                return;
+            }
+            try {
+                files.put(END);
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * The data folder to scan.
+     */
+    private final File root;
+
+    /**
+     * Number of threads used for listing directories.
+     */
+    private final int nrThreads;
+
+    /**
+     * All directories seen so far, indexed by their directory id.
+     */
+    private final List<String> directories = new ArrayList<String>();
+
+    /**
+     * The top level directory every directory id belongs to, "." for the data folder itself.
+     */
+    private final List<String> topLevelNames = new ArrayList<String>();
+
+    /**
+     * The shard to discover, and the number of shards; 0 of 1 is everything.
+     */
+    private int shard = 0;
+
+    private int shards = 1;
+
+    /**
+     * The top level directories assigned to the shard, in assignment order.
+     */
+    private final List<String> assigned = new ArrayList<String>();
+
+    /**
+     * Number of top level directories in the data folder, including ".".
+     */
+    private int totalTopLevel = 0;
+
+    /**
+     * Queue that feeds the discovered files to the parser workers.
+     */
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+    /**
+     * Number of files discovered so far.
+     */
+    private final AtomicInteger discovered = new AtomicInteger();
+
+    /**
+     * Number of top level directories that still need to be listed.
+     */
+    private final AtomicInteger pendingDirs = new AtomicInteger();
+
+    /**
+     * Number of top level directories that have been completely listed.
+     */
+    private final AtomicInteger completedDirs = new AtomicInteger();
+
+    /**
+     * Set once every directory has been listed.
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * Why the discovery stopped before every file was handed out, if it did.
+     */
+    private volatile Exception failure = null;
+
+    /**
+     * Construct a new FileDiscovery for a data folder.
+     * @param dir The data folder containing the raw XML files
+     * @param nrThreads Number of threads used to list the directories
+     */
+    public FileDiscovery(String dir, int nrThreads) {
+        this.root = new File(dir);
+        this.nrThreads = nrThreads;
+    }
+
+    /**
+     * Only discover the files of one shard of the data folder. Call before start().
+     * @param shard The shard, from 0 to shards - 1
+     * @param shards The number of shards
+     */
+    public void setShard(int shard, int shards) {
+        if (shards < 1 || shard < 0 || shard >= shards)
+            throw new IllegalArgumentException("Not a shard: " + shard + "/" + shards);
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Start discovering files in the background. This method returns
+     * immediately; the files can be consumed using take().
+     */
+    public void start() {
+        System.out.println("Scanning directory " + root);
+        final List<Integer> topLevel = new ArrayList<Integer>();
+        final int rootId = register(root.getPath(), ".");
+        final boolean listRoot = shards == 1 || shard == 0;
+        if (listRoot)
+            assigned.add(".");
+        totalTopLevel = 1;
+        File[] subdirs = root.listFiles();
+        if (subdirs != null) {
+            // Sorted, so every process assigns the same directories to a shard
+            Arrays.sort(subdirs);
+            for (File subdir : subdirs) {
+                if (!subdir.isDirectory())
+                    continue;
+                if (totalTopLevel++ % shards != shard)
+                    continue;
+                assigned.add(subdir.getName());
+                topLevel.add(register(subdir.getPath(), subdir.getName()));
+            }
+        }
+        pendingDirs.set(topLevel.size());
+        final List<Listing> listings = new ArrayList<Listing>();
+        // The files directly inside the data folder
+        if (listRoot)
+            listings.add(new Listing(rootId, false));
+        // One task per chunk directory
+        for (Integer id : topLevel)
+            listings.add(new Listing(id, true));
+        final int window = Math.max(1, nrThreads);
+        final ExecutorService executor = Executors.newFixedThreadPool(window);
+        // Hand out the listings in order, and signal the end of the discovery
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The next listings are started ahead, while the first one is handed out
+                    int started = 0;
+                    for (; started < Math.min(window, listings.size()); started++)
+                        executor.execute(listings.get(started));
+                    long position = 0;
+                    for (int i = 0; i < listings.size(); i++) {
+                        Listing listing = listings.get(i);
+                        Entry entry;
+                        while ((entry = listing.files.take()) != END) {
+                            entry.position = position++;
+                            queue.put(entry);
+                        }
+                        if (listing.failure != null)
+                            throw new IOException(listing.failure.getMessage(), listing.failure);
+                        // Drop the listing, and start the next one
+                        listings.set(i, null);
+                        if (started < listings.size())
+                            executor.execute(listings.get(started++));
+                    }
+                    executor.shutdown();
+                    System.out.println("Total files: " + discovered.get());
+                } catch (InterruptedException e) {
+                    failure = e;
+                    executor.shutdownNow();
+                    System.err.println("Interrupted while discovering files. " + e.getMessage());
+                } catch (IOException e) {
+                    failure = e;
+                    executor.shutdownNow();
+                    System.err.println("Error discovering files: " + e.getMessage());
+                }
+                finished = true;
+                // The workers wait for the marker, also after a failure
+                while (true) {
+                    try {
+                        queue.put(END);
+                        break;
+                    } catch (InterruptedException e) {
+                        queue.clear();
+                    }
+                }
+            }
+        }, "FileDiscovery");
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+
+    /**
+     * Take the next file to process, waiting for discovery if needed.
+     * @return the next file, or null once all files have been handed out
+     * @throws IllegalStateException if the discovery failed, or the thread was
+     * interrupted while waiting, so not every file will be parsed
+     */
+    public Entry take() {
+        try {
+            Entry entry = queue.take();
+            if (entry == END) {
+                // Leave the marker for the other workers
+                queue.put(END);
+                if (failure != null)
+                    throw new IllegalStateException("Discovering the files of " + root + " failed", failure);
+                return null;
+            }
+            return entry;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for files", e);
+        }
+    }
+
+    /**
+     * Resolve a discovered file to its full path.
+     * @param entry The discovered file
+     * @return The path of the file
+     */
+    public String getPath(Entry entry) {
+        String dir;
+        synchronized (directories) {
+            dir = directories.get(entry.getDir());
+        }
+        return dir + File.separator + entry.getName();
+    }
+
+    /**
+     * @param entry A discovered file
+     * @return the name of the top level directory the file is in, "." for the data folder itself
+     */
+    public String getTopLevelName(Entry entry) {
+        synchronized (directories) {
+            return topLevelNames.get(entry.getDir());
+        }
+    }
+
+    /**
+     * @return the top level directories of the shard, "." for the data folder itself. Known after start().
+     */
+    public List<String> getAssignedDirectories() {
+        return assigned;
+    }
+
+    /**
+     * @return the number of top level directories of all shards, including ".". Known after start().
+     */
+    public int getTotalDirectories() {
+        return totalTopLevel;
+    }
+
+    /**
+     * Estimate the total number of files in the data folder. This is exact once
+     * the discovery has finished. Before that, directories not yet listed are
+     * assumed to hold as many files as the average completed directory.
+     * @return the estimated number of files
+     */
+    public int getEstimatedTotal() {
+        int found = discovered.get();
+        if (finished)
+            return found;
+        int completed = completedDirs.get();
+        int perDir = completed == 0 ? ASSUMED_FILES_PER_DIR : found / completed;
+        return found + pendingDirs.get() * perDir;
+    }
+
+    /**
+     * @return true once every directory has been listed
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Register a directory and hand out its id.
+     * @param path The path of the directory
+     * @param topLevelName The top level directory it is in
+     * @return the id of the directory
+     */
+    private int register(String path, String topLevelName) {
+        synchronized (directories) {
+            directories.add(path);
+            topLevelNames.add(topLevelName);
+            return directories.size() - 1;
+        }
+    }
+
+    /**
+     * List a directory, depth first in order of name.
+     * @param id The id of the directory
+     * @param recursive If true, subdirectories are listed as well
+     * @param files The queue to pass the XML files on to, waiting while it is full
+     * @throws IOException if the directory cannot be listed
+     * @throws InterruptedException if the discovery stopped
+     */
+    private void list(int id, boolean recursive, BlockingQueue<Entry> files) throws IOException, InterruptedException {
+        String path;
+        String topLevelName;
+        synchronized (directories) {
+            path = directories.get(id);
+            topLevelName = topLevelNames.get(id);
+        }
+        List<Path> children = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(path).toPath())) {
+            for (Path child : stream)
+                children.add(child);
+        }
+        Collections.sort(children);
+        for (Path child : children) {
+            String name = child.getFileName().toString();
+            if (name.endsWith(".xml")) {
+                discovered.incrementAndGet();
+                files.put(new Entry(id, name));
+            }
+            else if (recursive && Files.isDirectory(child))
+                list(register(child.toString(), topLevelName), true, files);
+        }
+    }
+}
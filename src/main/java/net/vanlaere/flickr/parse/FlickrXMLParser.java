@@ -1,25 +1,27 @@
 package net.vanlaere.flickr.parse;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import net.vanlaere.flickr.crawler.CrawlSample;
+import net.vanlaere.flickr.crawler.PageCompression;
+import net.vanlaere.flickr.crawler.PageSchema;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.metrics.Progress;
+import net.vanlaere.flickr.metrics.Trace;
 import javax.annotation.processing.FilerException;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
@@ -35,321 +37,630 @@ public class FlickrXMLParser {
      */
     private static final int NR_THREADS = Runtime.getRuntime().availableProcessors();
 
+    /**
+     * Number of slots of the output ring for every worker.
+     */
+    private static final int RING_SLOTS_PER_THREAD = 4;
+
     /**
      * Numberformat.
      */
     protected  static final NumberFormat formatter = new DecimalFormat("#00.00");
 
-    private static final int REPORT_SIZE = 1000;
+    private FileDiscovery discovery;
+
+    /**
+     * Reads the raw pages, inflating compressed ones with the dictionary of the data folder.
+     */
+    private PageCompression compression;
+
+    /**
+     * Weight of the photos of every page of a sample, by file name, or null
+     * if the data folder holds a full download.
+     */
+    private Map<String, String> weights = null;
+
+    /**
+     * The fields to write and the filters to apply to each photo.
+     */
+    private ParseSpec spec = new ParseSpec();
+
+    /**
+     * True if the spec was set, false to take the spec of the schema of the data folder, if any.
+     */
+    private boolean specGiven = false;
+
+    /**
+     * Set the fields to write and the filters to apply to each photo.
+     * @param spec The spec to use
+     */
+    public void setSpec(ParseSpec spec) {
+        this.spec = spec;
+        this.specGiven = true;
+    }
+
+    /**
+     * Directory to write the tag index to, or null to skip building it.
+     */
+    private String tagIndexDir = null;
+
+    /**
+     * Build a tag dictionary and inverted tag index while parsing.
+     * @param tagIndexDir Directory to write the index to, or null to disable
+     */
+    public void setTagIndexDir(String tagIndexDir) {
+        this.tagIndexDir = tagIndexDir;
+    }
+
+    /**
+     * Builder for the tag index, if enabled.
+     */
+    private TagIndex.Builder tagIndex = null;
+
+    /**
+     * File to write the spatial grid index to, or null to skip building it.
+     */
+    private String gridIndexFile = null;
+
+    /**
+     * Level of the quadtree used for the grid index.
+     */
+    private int gridLevel = GridIndex.DEFAULT_LEVEL;
+
+    /**
+     * Build a spatial grid index over the parsed photos.
+     * @param gridIndexFile File to write the index to, or null to disable
+     * @param gridLevel Level of the quadtree
+     */
+    public void setGridIndex(String gridIndexFile, int gridLevel) {
+        this.gridIndexFile = gridIndexFile;
+        this.gridLevel = gridLevel;
+    }
+
+    /**
+     * Builder for the grid index, if enabled.
+     */
+    private GridIndex.Builder gridIndex = null;
+
+    /**
+     * Time field to partition the output on, or null for a single output file.
+     */
+    private PartitionedOutput.TimeField partitionField = null;
+
+    private PartitionedOutput.Granularity partitionGranularity = PartitionedOutput.Granularity.MONTH;
+
+    /**
+     * Split the output into partitions by time. The output file passed to
+     * run() is then used as the directory for the partitions.
+     * @param field The time field to partition on, or null to disable
+     * @param granularity The size of a partition
+     */
+    public void setPartitioning(PartitionedOutput.TimeField field, PartitionedOutput.Granularity granularity) {
+        this.partitionField = field;
+        this.partitionGranularity = granularity;
+    }
+
+    /**
+     * The partitioned output, if enabled.
+     */
+    private PartitionedOutput partitions = null;
+
+    /**
+     * Write the records in the order the files are taken from the discovery
+     * queue, like a single threaded parse would, instead of as they are parsed.
+     */
+    private boolean ordered = false;
+
+    /**
+     * Write the records in the order the files are taken from the discovery queue.
+     * @param ordered If true, the output does not depend on the parse speed of the workers
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * The shard of the data folder to parse, and the number of shards; 0
+     * shards parses the whole folder.
+     */
+    private int shard = 0;
+
+    private int shards = 0;
+
+    /**
+     * Only parse one shard of the data folder. The output file passed to run()
+     * is then used as the output directory of all shards, in which the shard
+     * writes its part and manifest. See ShardManifest.
+     * @param shard The shard, from 0 to shards - 1
+     * @param shards The number of shards, or 0 to parse the whole folder
+     */
+    public void setShard(int shard, int shards) {
+        if (shards < 0 || (shards > 0 && (shard < 0 || shard >= shards)))
+            throw new IllegalArgumentException("Not a shard: " + shard + "/" + shards);
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Number of files parsed and records written per top level directory, for the manifest of a shard.
+     */
+    private final Map<String, long[]> directoryCounts = new HashMap<String, long[]>();
+
+    /**
+     * The ring the workers publish their records to, unless the output is partitioned.
+     */
+    private OutputRing ring = null;
+
+    /**
+     * Counters for the number of files parsed and photos written.
+     */
+    private static final Counter files_parsed = Metrics.get().counter("parser.files");
+
+    private static final Counter records_written = Metrics.get().counter("parser.records");
 
-    private int total_to_process = 0;
+    /**
+     * Timeline of the parse batches and merges, if enabled.
+     */
+    private static final Trace trace = Trace.get();
 
-    private int total_processed = 0;
+    /**
+     * Progress of the parsing, reported periodically from a single thread.
+     */
+    private Progress progress;
 
-    public synchronized void report() {
-        total_processed += REPORT_SIZE;
-        double percent = total_processed * 100. / total_to_process;
-        System.out.println(total_processed + "/" + total_to_process +
-                " ("+ formatter.format(percent) +" %)");
+    /**
+     * Construct a parser with the default spec. Call run() to start parsing.
+     */
+    public FlickrXMLParser() {
     }
 
     public FlickrXMLParser(String dir, String outputFile) {
-        ArrayList<String> filenames = getFileQueue(dir);
-        this.total_to_process = filenames.size();
-        System.out.println("Total files: " + total_to_process);
+        this(dir, outputFile, new ParseSpec());
+    }
+
+    public FlickrXMLParser(String dir, String outputFile, ParseSpec spec) {
+        setSpec(spec);
+        run(dir, outputFile);
+    }
+
+    /**
+     * Parse all XML files in a directory and write the results to file.
+     * @param dir The directory containing the raw XML data
+     * @param outputFile The file to write the parsed data to
+     * @return true if every file was parsed and the output is complete
+     */
+    public boolean run(String dir, String outputFile) {
+        if (partitionField != null && (tagIndexDir != null || gridIndexFile != null)) {
+            System.err.println("The tag and grid index refer to lines of a single output file, "
+                    + "they cannot be combined with partitioned output.");
+            return false;
+        }
+        if (shards > 0 && (partitionField != null || tagIndexDir != null || gridIndexFile != null)) {
+            System.err.println("A shard writes a single part, it cannot be combined with "
+                    + "partitioned output or the tag and grid index.");
+            return false;
+        }
+        String outputDir = null;
+        if (shards > 0) {
+            outputDir = outputFile;
+            new File(outputDir).mkdirs();
+            outputFile = new File(outputDir, ShardManifest.partName(shard)).getPath();
+            // The ring appends, a part left by an earlier run is replaced
+            new File(outputFile).delete();
+            new File(outputDir, ShardManifest.manifestName(shard)).delete();
+        }
+        if (partitionField != null)
+            this.partitions = new PartitionedOutput(outputFile, partitionField, partitionGranularity);
+        if (tagIndexDir != null)
+            this.tagIndex = new TagIndex.Builder();
+        if (gridIndexFile != null)
+            this.gridIndex = new GridIndex.Builder(gridLevel);
+        try {
+            this.compression = PageCompression.open(dir);
+        } catch (IOException e) {
+            System.err.println("Error reading " + PageCompression.DICTIONARY_FILE + ": " + e.getMessage());
+            return false;
+        }
+        // The pages only hold the fields of the schema they were downloaded with
+        try {
+            PageSchema schema = PageSchema.read(dir);
+            if (!specGiven && schema.getSpec() != null) {
+                this.spec = ParseSpec.parse(schema.getSpec());
+                System.out.println("Using the spec of the schema of " + dir + ": " + spec);
+            }
+            List<String> missing = schema.missing(spec);
+            if (!missing.isEmpty()) {
+                System.err.println("The pages in " + dir + " were downloaded with extras " + schema.getExtrasParameter()
+                        + ", the spec " + spec + " also needs " + missing + ".");
+                return false;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading " + PageSchema.FILE + ": " + e.getMessage());
+            return false;
+        }
+        // The photos of a sample get the weight of their page
+        try {
+            this.weights = CrawlSample.readWeights(dir);
+            if (weights != null)
+                System.out.println("Adding the weights of the sample of " + dir);
+        } catch (IOException e) {
+            System.err.println("Error reading " + CrawlSample.FILE + ": " + e.getMessage());
+            return false;
+        }
+        // Start listing the files, the workers consume them as they are found
+        this.discovery = new FileDiscovery(dir, NR_THREADS);
+        if (shards > 0)
+            discovery.setShard(shard, shards);
+        discovery.start();
+        this.progress = new Progress("parse", new Progress.Total() {
+            @Override
+            public long get() {
+                return discovery.getEstimatedTotal();
+            }
+        });
+        progress.start();
         // if the outputfile has a path in between
-        if (outputFile.contains(File.separator)) {
+        if (partitions == null && shards == 0 && outputFile.contains(File.separator)) {
             System.out.println(outputFile + " making dir");
             String path = outputFile.substring(0, outputFile.lastIndexOf("/"));
             // Make the directories in this path
             new File(path).mkdirs();
         }
         ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
-        List<Future<File>> list = new ArrayList<Future<File>>();
-        int length = (int) (filenames.size() * 1.0 / NR_THREADS);
-        for (int i = 0; i < NR_THREADS; i++) {
-            int begin = i * length;
-            if (i == NR_THREADS - 1) {
-                length = filenames.size() - (i * length);
-            }
-            int end = begin + length;
-            Callable<File> worker = new DataProcessorMultiFileHelper(filenames, begin, end);
-            Future<File> submit = executor.submit(worker);
-            list.add(submit);
-        }
+        List<Future<Void>> list = new ArrayList<Future<Void>>();
+        boolean failed = false;
         try {
-            OutputStream out = new FileOutputStream(outputFile, true);
-            for (Future<File> future : list) {            
-                File tmp_file = future.get();
-                System.out.println("Processing " + tmp_file.getName());
-                // BLOCK COPY
-                InputStream in = new FileInputStream(tmp_file);
-                // Transfer bytes from in to out
-                byte[] buf = new byte[1024*4]; // 4KB blocks
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+            // The writer feeds the indexes, in the order of the output
+            TagIndex.Postings postings = tagIndex != null ? tagIndex.newPostings() : null;
+            GridIndex.Cells cells = gridIndex != null ? gridIndex.newCells() : null;
+            if (partitions == null)
+                this.ring = new OutputRing(outputFile, RING_SLOTS_PER_THREAD * NR_THREADS, postings, cells);
+            for (int i = 0; i < NR_THREADS; i++)
+                list.add(executor.submit(new DataProcessorMultiFileHelper(discovery)));
+            // Wait for every worker, a worker that failed leaves files unparsed
+            for (Future<Void> future : list) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Parser worker failed: " + e.getCause());
+                    failed = true;
+                }
+            }
+            // Partitions are written by the workers directly
+            if (partitions != null)
+                partitions.close(!failed);
+            else {
+                ring.close();
+                if (failed)
+                    throw new IOException("Not every file was parsed");
+                if (tagIndex != null) {
+                    postings.close();
+                    Trace.Span span = trace.begin("parse", "tagindex", tagIndexDir);
+                    tagIndex.write(tagIndexDir, postings);
+                    span.end();
+                }
+                if (gridIndex != null) {
+                    List<GridIndex.Cells> parts = new ArrayList<GridIndex.Cells>();
+                    parts.add(cells);
+                    Trace.Span span = trace.begin("parse", "gridindex", gridIndexFile);
+                    gridIndex.write(gridIndexFile, parts, new int[]{0}, NR_THREADS);
+                    span.end();
                 }
-                in.close();
-                tmp_file.delete();
+                if (shards > 0)
+                    writeManifest(outputDir);
             }
-            out.close();
         } catch (FilerException e) {
             e.printStackTrace();
+            failed = true;
         } catch (IOException e) {
             e.printStackTrace();
+            failed = true;
         }catch (InterruptedException e) {
             e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+            failed = true;
         }
+        progress.stop();
         // This will make the executor accept no new threads
         // and finish all existinkeyg threads in the queue
         executor.shutdown();
         // Wait until all threads are finish
         while (!executor.isTerminated()) {}
+        if (failed) {
+            System.err.println("Parsing failed, " + outputFile + " is incomplete");
+            return false;
+        }
         System.out.println("Processed data can be found in " + outputFile);
+        return true;
     }
 
-    private ArrayList<String> getFileQueue(String dir) {
-        System.out.println("Scanning directory " + dir);
-        ArrayList<String> filenames = new ArrayList<String>();
-        File directory = new File(dir);
-        File[] files = directory.listFiles();
-        Arrays.sort(files);
-        for (File file : files) {
-            if (file.isDirectory())
-                filenames.addAll(getFileQueue(file.getPath()));
-            else if (file.getName().endsWith(".xml"))
-                filenames.add(file.getAbsolutePath());
+    /**
+     * Write the manifest of the shard, after its part is closed.
+     * @param outputDir The output directory of the shards
+     * @throws IOException if the manifest cannot be written
+     */
+    private void writeManifest(String outputDir) throws IOException {
+        ShardManifest manifest = new ShardManifest(shard, shards, spec.toString(), discovery.getTotalDirectories());
+        // The k-th directory of a shard is the (shard + k * shards)-th of the data folder
+        int k = 0;
+        for (String name : discovery.getAssignedDirectories()) {
+            long[] counts = directoryCounts.get(name);
+            manifest.addDirectory(name, shard + k++ * shards, counts != null ? counts[0] : 0, counts != null ? counts[1] : 0);
         }
-        return filenames;
+        manifest.setPart(ring.getRecords(), ring.getBytes(), ring.getChecksum());
+        manifest.write(new File(outputDir, ShardManifest.manifestName(shard)));
+        System.out.println("Shard " + shard + " of " + shards + ": " + ring.getRecords() + " records from "
+                + k + " directories");
     }
 
     /**
      * Helper class for multithreaded processing of XML files.
      */
-    private class DataProcessorMultiFileHelper implements Callable<File> {
+    private class DataProcessorMultiFileHelper implements Callable<Void> {
 
         /**
-         * Index of the beginning of the data this thread has to process.
+         * The discovery providing the files to process.
          */
-        private int begin;
+        private FileDiscovery data;
 
         /**
-         * Index of the end of the data this thread has to process.
+         * The records of the file being parsed, published to the ring after the file.
          */
-        private int end;
+        private OutputRing.Batch batch = null;
 
         /**
-         * The data to process.
+         * The pending partitioned output of this worker, if enabled.
          */
-        private List<String> data;
+        private PartitionedOutput.Batches batches = null;
 
-        private int processed = 0;
+        /**
+         * Builder reused for every photo written by this worker.
+         */
+        private final StringBuilder builder = new StringBuilder();
+
+        /**
+         * Number of records written by this worker.
+         */
+        private long records = 0;
+
+        /**
+         * Files parsed and records written per top level directory, when parsing a shard.
+         */
+        private final Map<String, long[]> counts = new HashMap<String, long[]>();
 
         /**
          * Constructor.
-         * @param data Data to process
-         * @param begin index of the beginning of the processing
-         * @param end index of the end of the processing
+         * @param data Discovery providing the files to process
          */
-        public DataProcessorMultiFileHelper(List<String> data, int begin, int end) {
+        public DataProcessorMultiFileHelper(FileDiscovery data) {
             this.data = data;
-            this.begin = begin;
-            this.end = end;
         }
 
         /**
          * Process the files in the queue.
-         * @return a File containing the processed results
+         * @return nothing, the records are published to the ring or the partitions
          * @throws Exception
          */
         @Override
-        public File call() throws Exception {
-            File file = null;
-            try {
-                File tmp_file = File.createTempFile("DataProcessor_", ".tmp");
-                String filename = tmp_file.getName();
-                file = new File(filename);
-                System.out.println(file.getName());
-                tmp_file.delete();
-                PrintWriter out = new PrintWriter(new FileWriter(file), true);
-                for (int i = begin; i < end; i++) {
-                    String xmlfile = data.get(i);
-                    FlickrXMLParseImpl parser = new FlickrXMLParseImpl(xmlfile, out);
-                    if (++processed % REPORT_SIZE == 0) {
-                        report();
+        public Void call() throws Exception {
+            if (partitions != null)
+                batches = partitions.newBatches();
+            else
+                batch = ring.newBatch();
+            while (true) {
+                FileDiscovery.Entry entry = data.take();
+                if (entry == null)
+                    break;
+                // In order, the sequence number is the position of the file in the discovery
+                long sequence = ordered && ring != null ? entry.getPosition() : -1;
+                String xmlfile = data.getPath(entry);
+                long before = records;
+                Trace.Span span = trace.begin("parse", "batch", xmlfile);
+                try {
+                    FlickrXMLParseImpl parser = new FlickrXMLParseImpl(xmlfile, this);
+                } finally {
+                    // A taken sequence number is always published, or the writer waits forever
+                    Trace.Span publish = trace.begin("parse", "publish");
+                    if (sequence >= 0)
+                        batch = ring.publish(sequence, batch);
+                    else if (ring != null && batch.records() > 0)
+                        batch = ring.publish(batch);
+                    publish.end();
+                    span.end();
+                }
+                if (shards > 0) {
+                    String name = data.getTopLevelName(entry);
+                    long[] count = counts.get(name);
+                    if (count == null) {
+                        count = new long[2];
+                        counts.put(name, count);
                     }
+                    count[0]++;
+                    count[1] += records - before;
                 }
-                out.close();
+                files_parsed.inc();
+                progress.done();
+                progress.event(xmlfile);
             }
-            catch (Exception e) {
-                e.printStackTrace();
+            if (batches != null) {
+                Trace.Span span = trace.begin("parse", "flush");
+                batches.flush();
+                span.end();
             }
-            return file;
+            synchronized (directoryCounts) {
+                for (Map.Entry<String, long[]> count : counts.entrySet()) {
+                    long[] total = directoryCounts.get(count.getKey());
+                    if (total == null) {
+                        total = new long[2];
+                        directoryCounts.put(count.getKey(), total);
+                    }
+                    total[0] += count.getValue()[0];
+                    total[1] += count.getValue()[1];
+                }
+            }
+            return null;
         }
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Missing arguments.");
-            System.out.println("Usage: inputdir outputfile");
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        // Start recording a trace, if requested
+        Trace.get().startFromSystemProperties();
+        if (args[0].equals("merge")) {
+            if (args.length != 3) {
+                usage();
+                return;
+            }
+            try {
+                if (!ShardManifest.merge(args[1], args[2]))
+                    System.exit(1);
+            } catch (IOException e) {
+                System.err.println("Error merging the shards: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (args[0].equals("update")) {
+            if (args.length != 4) {
+                usage();
+                return;
+            }
+            try {
+                RefreshMerge merge = RefreshMerge.merge(args[1], args[2], args[3]);
+                System.out.println("Replaced " + merge.getReplaced() + " photos, added " + merge.getAdded()
+                        + ", kept " + merge.getKept() + (merge.getOlder() > 0
+                        ? ", " + merge.getOlder() + " updates were older than the data set" : "")
+                        + ". Updated data can be found in " + args[3]);
+            } catch (IOException e) {
+                System.err.println("Error merging the refresh: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
         }
-        else {
-            FlickrXMLParser parser = new FlickrXMLParser(args[0], args[1]);
+        // Start writing metric snapshots, if requested
+        Metrics.get().startFromSystemProperties();
+        FlickrXMLParser parser = new FlickrXMLParser();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-tagindex") && i + 1 < args.length)
+                parser.setTagIndexDir(args[++i]);
+            else if (args[i].equals("-gridindex") && i + 1 < args.length)
+                parser.setGridIndex(args[++i], parser.gridLevel);
+            else if (args[i].equals("-gridlevel") && i + 1 < args.length)
+                parser.setGridIndex(parser.gridIndexFile, Integer.parseInt(args[++i]));
+            else if (args[i].equals("-ordered"))
+                parser.setOrdered(true);
+            else if (args[i].equals("-shard") && i + 1 < args.length) {
+                String[] shard = args[++i].split("/");
+                if (shard.length != 2) {
+                    usage();
+                    return;
+                }
+                parser.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+            }
+            else if (args[i].equals("-partition") && i + 2 < args.length)
+                parser.setPartitioning(PartitionedOutput.TimeField.valueOf(args[++i].toUpperCase()),
+                        PartitionedOutput.Granularity.valueOf(args[++i].toUpperCase()));
+            else if (!args[i].startsWith("-") && i == 2)
+                parser.setSpec(ParseSpec.parse(args[i]));
+            else {
+                usage();
+                return;
+            }
         }
+        if (!parser.run(args[0], args[1]))
+            System.exit(1);
+    }
+
+    private static void usage() {
+        System.out.println("Missing arguments.");
+        System.out.println("Usage: inputdir outputfile [spec] [options]");
+        System.out.println("       merge outputdir outputfile");
+        System.out.println("       update datafile refreshfile outputfile");
+        System.out.println(" spec           \t(Optional) Fields and filters, e.g. \"fields=id,latitude,longitude,tags;bbox=50.6,2.5,51.5,6.4\"");
+        System.out.println("                \tKeys: fields, bbox, taken, upload, license, tags, geo");
+        System.out.println(" -tagindex dir  \t(Optional) Build a tag dictionary and inverted tag index in dir");
+        System.out.println(" -gridindex file\t(Optional) Build a spatial grid index in file");
+        System.out.println(" -gridlevel n   \t(Optional) Quadtree level of the grid index (default " + GridIndex.DEFAULT_LEVEL + ")");
+        System.out.println(" -ordered       \t(Optional) Write the records in the order the files are found, not as they are parsed");
+        System.out.println(" -shard i/N     \t(Optional) Only parse shard i (0 to N-1) of the directories, outputfile becomes");
+        System.out.println("                \tthe output directory of the shards, see merge");
+        System.out.println(" -partition <upload|taken> <day|month>");
+        System.out.println("                \t(Optional) Split the output by time, outputfile becomes a directory");
     }
 
     private class FlickrXMLParseImpl extends DefaultHandler {
 
-        private PrintWriter file;
+        private DataProcessorMultiFileHelper worker;
 
-        public FlickrXMLParseImpl(String filename, PrintWriter file) {
-            this.file = file;
-            try {
+        private final StringBuilder builder;
+
+        /**
+         * Weight of the photos of this page, or null if it is not part of a sample.
+         */
+        private final String weight;
+
+        /**
+         * Parse a file. A file that cannot be read or parsed is skipped.
+         * @param filename The file to parse
+         * @param worker The worker that parses it
+         * @throws IOException if a record cannot be written
+         */
+        public FlickrXMLParseImpl(String filename, DataProcessorMultiFileHelper worker) throws IOException {
+            this.worker = worker;
+            this.builder = worker.builder;
+            this.weight = weights == null ? null : weights.get(new File(filename).getName());
+            try (InputStream in = compression.read(new File(filename))) {
                 XMLReader xmlReader = XMLReaderFactory.createXMLReader();
                 xmlReader.setContentHandler(this);
-                xmlReader.parse(new InputSource(new FileReader(filename)));
+                xmlReader.parse(new InputSource(in));
                 xmlReader = null;
             } catch (FileNotFoundException e) {
                 System.out.println("Error in file " + filename);
             } catch (IOException e) {
                 System.out.println("Error in file " + filename);
             } catch (SAXException e) {
+                // A record that cannot be written fails the worker, the output would miss it
+                if (e.getException() instanceof IOException)
+                    throw (IOException) e.getException();
                 System.out.println("Error in file " + filename);
             }
         }
 
         @Override
         public void startElement(String uri, String name, String qName,
-                        Attributes atts) {
-
-            if (name.equals("photo")) {
-
-                long id = -1L;
-                String owner = "";
-                String title = "";
-                int license = -1;
-                String datetaken = "";
-                String ownername = "";
-                long lastupdate = -1L;
-                double latitude = -200.;
-                double longitude = -200.;
-                int accuracy = -1;
-                String place_id = "";
-                long woeid = -1L;
-                String tags = "";
-                String machine_tags = "";
-                int views = -1;
-                String url_o = "";
-
-                String element;
-
-                element = atts.getValue("id");
-                if (element != null)
-                    id = Long.parseLong(element);
-
-                element = atts.getValue("owner");
-                if (element != null)
-                    owner = element;
-
-                element = atts.getValue("title");
-                if (element != null)
-                    title = element;
-
-                element = atts.getValue("license");
-                if (element != null)
-                    license = Integer.parseInt(element);
-
-                element = atts.getValue("datetaken");
-                if (element != null)
-                    datetaken = element;
-
-                element = atts.getValue("ownername");
-                if (element != null)
-                    ownername = element;
-
-                element = atts.getValue("lastupdate");
-                if (element != null)
-                    lastupdate = Long.parseLong(element);
-
-                element = atts.getValue("latitude");
-                if (element != null)
-                    latitude = Double.parseDouble(element);
-
-                element = atts.getValue("longitude");
-                if (element != null)
-                    longitude = Double.parseDouble(element);
-
-                element = atts.getValue("accuracy");
-                if (element != null)
-                    accuracy = Integer.parseInt(element);
-
-                element = atts.getValue("place_id");
-                if (element != null)
-                    place_id = element;
-
-                element = atts.getValue("woeid");
-                if (element != null)
-                    woeid = Long.parseLong(element);
-
-                element = atts.getValue("tags");
-                if (element != null)
-                    tags = element;
-
-                element = atts.getValue("machine_tags");
-                if (element != null)
-                    machine_tags = element;
-
-                element = atts.getValue("views");
-                if (element != null)
-                    views = Integer.parseInt(element);
-
-                element = atts.getValue("url_o");
-                if (element != null)
-                    url_o = element;
-
-                // Only process valid geocoords and photos with tags
-                if (latitude > -200 && longitude > -200 && !tags.equals("")) {
-
-                    StringBuilder builder = new StringBuilder();
-                    builder.append("owner=\"");
-                    builder.append(owner);
-                    builder.append("\";id=\"");
-                    builder.append(id);
-                    builder.append("\";title=\"");
-                    builder.append(title);
-                    builder.append("\";license=\"");
-                    builder.append(license);
-                    builder.append("\";datetaken=\"");
-                    builder.append(datetaken);
-                    builder.append("\";ownername=\"");
-                    builder.append(ownername);
-                    builder.append("\";lastupdate=\"");
-                    builder.append(lastupdate);
-                    builder.append("\";latitude=\"");
-                    builder.append(latitude);
-                    builder.append("\";longitude=\"");
-                    builder.append(longitude);
-                    builder.append("\";accuracy=\"");
-                    builder.append(accuracy);
-                    builder.append("\";place_id=\"");
-                    builder.append(place_id);
-                    builder.append("\";woeid=\"");
-                    builder.append(woeid);
-                    builder.append("\";tags=\"");
-                    builder.append(tags);
-                    builder.append("\";machine_tags=\"");
-                    builder.append(machine_tags);
-                    builder.append("\";views=\"");
-                    builder.append(views);
-                    builder.append("\";url_o=\"");
-                    builder.append(url_o);
-                    builder.append("\"");
-
-                    file.println(builder.toString());
+                        Attributes atts) throws SAXException {
+
+            // Filter on the raw attributes, only format the photos we keep
+            if (name.equals("photo") && spec.accept(atts)) {
+                builder.setLength(0);
+                spec.format(atts, builder);
+                if (weight != null)
+                    builder.append(";weight=\"").append(weight).append('"');
+                if (worker.batches != null) {
+                    try {
+                        worker.batches.add(atts.getValue(partitions.getAttribute()), builder);
+                    } catch (IOException e) {
+                        throw new SAXException("Error writing partition", e);
+                    }
+                }
+                else {
+                    String tags = tagIndex != null ? atts.getValue("tags") : null;
+                    double latitude = Double.NaN;
+                    double longitude = Double.NaN;
+                    if (gridIndex != null) {
+                        String lat = atts.getValue("latitude");
+                        String lon = atts.getValue("longitude");
+                        if (lat != null && lon != null && !lat.isEmpty() && !lon.isEmpty()) {
+                            latitude = Double.parseDouble(lat);
+                            longitude = Double.parseDouble(lon);
+                        }
+                    }
+                    worker.batch.add(builder, tags, latitude, longitude);
                 }
+                worker.records++;
+                records_written.inc();
             }
         }
     }
@@ -0,0 +1,658 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class provides a spatial index over the parsed geotagged photos.
+ *
+ * Every photo is assigned to a cell of a quadtree over the whole world. A cell
+ * at the finest level is identified by the Z-order (Morton) interleaving of its
+ * column and row, so the cell of a coarser level is found by dropping two bits
+ * per level, and every quadtree cell maps to one contiguous range of keys.
+ *
+ * The index file holds all photos sorted by cell, cut in fixed size blocks.
+ * The first and last cell of every block are kept in a small block index at
+ * the start of the file, so queries only read the blocks they need.
+ *
+ * File layout: a header (magic, level, block size, number of records, number
+ * of blocks), the block index (first and last cell per block), and the records
+ * (cell, photo ordinal, latitude, longitude). A photo ordinal is the (0 based)
+ * line number of the photo in the final file.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class GridIndex {
+
+    private static final int MAGIC = 0x46474944;
+
+    /**
+     * Default level of the quadtree. Level 12 results in cells of about
+     * 10 by 5 km at the equator.
+     */
+    public static final int DEFAULT_LEVEL = 12;
+
+    /**
+     * Maximum level, so cells fit in an int.
+     */
+    public static final int MAX_LEVEL = 15;
+
+    /**
+     * Number of records per block.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4;
+
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8;
+
+    /**
+     * A photo found in the index.
+     */
+    public static class Hit {
+
+        private final int cell;
+
+        private final int ordinal;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        public Hit(int cell, int ordinal, double latitude, double longitude) {
+            this.cell = cell;
+            this.ordinal = ordinal;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public int getCell() {
+            return cell;
+        }
+
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Override
+        public String toString() {
+            return ordinal + "\t" + latitude + "\t" + longitude + "\t" + cell;
+        }
+    }
+
+    /**
+     * A non empty cell of the index.
+     */
+    public static class Cell {
+
+        private final int key;
+
+        private final int count;
+
+        private final double distance;
+
+        public Cell(int key, int count, double distance) {
+            this.key = key;
+            this.count = count;
+            this.distance = distance;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        /**
+         * @return the number of photos in this cell
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the distance from the query point to the cell center, in cells
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        @Override
+        public String toString() {
+            return key + "\t" + count + " photos\t" + "distance " + distance;
+        }
+    }
+
+    /**
+     * Compute the cell of a coordinate at a given level.
+     * @param level The level of the quadtree
+     * @param latitude The latitude
+     * @param longitude The longitude
+     * @return the Morton key of the cell
+     */
+    public static int cell(int level, double latitude, double longitude) {
+        return interleave(column(level, longitude), row(level, latitude));
+    }
+
+    /**
+     * Get the parent of a cell at a coarser level.
+     * @param cell The cell key
+     * @param level The level of the cell
+     * @param parentLevel The level of the parent
+     * @return the key of the parent cell
+     */
+    public static int parent(int cell, int level, int parentLevel) {
+        return cell >>> (2 * (level - parentLevel));
+    }
+
+    private static int column(int level, double longitude) {
+        int size = 1 << level;
+        return Math.max(0, Math.min(size - 1, (int) ((longitude + 180.) / 360. * size)));
+    }
+
+    private static int row(int level, double latitude) {
+        int size = 1 << level;
+        return Math.max(0, Math.min(size - 1, (int) ((latitude + 90.) / 180. * size)));
+    }
+
+    private static int interleave(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * The inverse of spread: the even bits of v.
+     */
+    private static int compact(int v) {
+        v &= 0x55555555;
+        v = (v | (v >>> 1)) & 0x33333333;
+        v = (v | (v >>> 2)) & 0x0F0F0F0F;
+        v = (v | (v >>> 4)) & 0x00FF00FF;
+        v = (v | (v >>> 8)) & 0x0000FFFF;
+        return v;
+    }
+
+    private static int spread(int v) {
+        v &= 0x0000FFFF;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Collects the cells of all workers and writes the index.
+     */
+    public static class Builder {
+
+        private final int level;
+
+        public Builder(int level) {
+            if (level < 1 || level > MAX_LEVEL)
+                throw new IllegalArgumentException("Grid level should be between 1 and " + MAX_LEVEL);
+            this.level = level;
+        }
+
+        /**
+         * Create the cell list for a single worker.
+         * @return a new Cells instance, to be used by one thread only
+         */
+        public Cells newCells() {
+            return new Cells(level);
+        }
+
+        /**
+         * Sort the cells of all workers and write the index.
+         * @param filename The file to write the index to
+         * @param parts The cells of the workers, in the order of the final file
+         * @param base The ordinal of the first photo of each worker
+         * @param nrThreads Number of threads used for sorting
+         * @throws IOException if the index cannot be written
+         */
+        public void write(String filename, final List<Cells> parts, int[] base, int nrThreads) throws IOException {
+            // Sort each part by cell, in parallel
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+            for (final Cells part : parts) {
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        // Cell in the high bits, index within the part in the low bits
+                        long[] keys = new long[part.size];
+                        for (int i = 0; i < part.size; i++)
+                            keys[i] = ((long) part.cells[i] << 32) | i;
+                        Arrays.sort(keys);
+                        return keys;
+                    }
+                }));
+            }
+            executor.shutdown();
+            final long[][] sorted = new long[parts.size()][];
+            int total = 0;
+            try {
+                for (int p = 0; p < parts.size(); p++) {
+                    sorted[p] = futures.get(p).get();
+                    total += sorted[p].length;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Error sorting grid cells", e);
+            }
+            int nrBlocks = (total + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int[] firstCell = new int[nrBlocks];
+            int[] lastCell = new int[nrBlocks];
+            // Merge the sorted parts, ties are broken on ordinal
+            final int[] position = new int[parts.size()];
+            PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(1, parts.size()), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long ka = sorted[a][position[a]] >>> 32;
+                    long kb = sorted[b][position[b]] >>> 32;
+                    return ka != kb ? Long.compare(ka, kb) : Integer.compare(a, b);
+                }
+            });
+            for (int p = 0; p < parts.size(); p++) {
+                if (sorted[p].length > 0)
+                    heads.add(p);
+            }
+            File records = File.createTempFile("GridIndex_", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(records), 1 << 16))) {
+                int written = 0;
+                while (!heads.isEmpty()) {
+                    int p = heads.poll();
+                    long key = sorted[p][position[p]++];
+                    int cell = (int) (key >>> 32);
+                    int i = (int) key;
+                    Cells part = parts.get(p);
+                    out.writeInt(cell);
+                    out.writeInt(base[p] + part.ordinals[i]);
+                    out.writeDouble(part.latitudes[i]);
+                    out.writeDouble(part.longitudes[i]);
+                    int block = written / BLOCK_SIZE;
+                    if (written++ % BLOCK_SIZE == 0)
+                        firstCell[block] = cell;
+                    lastCell[block] = cell;
+                    if (position[p] < sorted[p].length)
+                        heads.add(p);
+                }
+            }
+            // Write header, block index and the records
+            File file = new File(filename);
+            if (file.getParentFile() != null)
+                file.getParentFile().mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(level);
+                out.writeInt(BLOCK_SIZE);
+                out.writeLong(total);
+                out.writeInt(nrBlocks);
+                for (int b = 0; b < nrBlocks; b++) {
+                    out.writeInt(firstCell[b]);
+                    out.writeInt(lastCell[b]);
+                }
+                Files.copy(records.toPath(), out);
+            } finally {
+                records.delete();
+            }
+            System.out.println("Grid index with " + total + " photos in " + nrBlocks + " blocks written to " + filename);
+        }
+    }
+
+    /**
+     * The cells of the photos written by a single parser worker.
+     */
+    public static class Cells {
+
+        private final int level;
+
+        private int[] cells = new int[1024];
+
+        private int[] ordinals = new int[1024];
+
+        private double[] latitudes = new double[1024];
+
+        private double[] longitudes = new double[1024];
+
+        private int size = 0;
+
+        private Cells(int level) {
+            this.level = level;
+        }
+
+        /**
+         * Add a photo.
+         * @param ordinal The ordinal of the photo within this worker
+         * @param latitude The latitude of the photo
+         * @param longitude The longitude of the photo
+         */
+        public void add(int ordinal, double latitude, double longitude) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                latitudes = Arrays.copyOf(latitudes, size * 2);
+                longitudes = Arrays.copyOf(longitudes, size * 2);
+            }
+            cells[size] = cell(level, latitude, longitude);
+            ordinals[size] = ordinal;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+        }
+    }
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final int level;
+
+    private final int blockSize;
+
+    private final long total;
+
+    private final int[] firstCell;
+
+    private final int[] lastCell;
+
+    private final long dataOffset;
+
+    /**
+     * Open an index file.
+     * @param filename The index file
+     * @throws IOException if the file cannot be read or is not a grid index
+     */
+    public GridIndex(String filename) throws IOException {
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        if (file.readInt() != MAGIC)
+            throw new IOException(filename + " is not a grid index");
+        this.level = file.readInt();
+        this.blockSize = file.readInt();
+        this.total = file.readLong();
+        int nrBlocks = file.readInt();
+        ByteBuffer index = ByteBuffer.allocate(nrBlocks * 8);
+        channel.read(index, HEADER_SIZE);
+        index.flip();
+        this.firstCell = new int[nrBlocks];
+        this.lastCell = new int[nrBlocks];
+        for (int b = 0; b < nrBlocks; b++) {
+            firstCell[b] = index.getInt();
+            lastCell[b] = index.getInt();
+        }
+        this.dataOffset = HEADER_SIZE + (long) nrBlocks * 8;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the number of photos in the index
+     */
+    public long size() {
+        return total;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Find all photos inside a bounding box.
+     * @return the photos inside the box, ordered by cell
+     * @throws IOException if the index cannot be read
+     */
+    public List<Hit> bbox(double minLat, double minLon, double maxLat, double maxLon) throws IOException {
+        int minX = column(level, minLon);
+        int maxX = column(level, maxLon);
+        int minY = row(level, minLat);
+        int maxY = row(level, maxLat);
+        // Collect the blocks overlapping the key ranges of the quadtree cover
+        TreeSet<Integer> blocks = new TreeSet<Integer>();
+        cover(0, 0, minX, minY, maxX, maxY, blocks);
+        List<Hit> hits = new ArrayList<Hit>();
+        for (int block : blocks) {
+            for (Hit hit : readBlock(block)) {
+                if (hit.latitude >= minLat && hit.latitude <= maxLat
+                        && hit.longitude >= minLon && hit.longitude <= maxLon)
+                    hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Recursively cover a rectangle of columns and rows with quadtree cells,
+     * adding the blocks holding each fully covered cell.
+     */
+    private void cover(int prefix, int depth, int minX, int minY, int maxX, int maxY, TreeSet<Integer> blocks) {
+        int shift = level - depth;
+        int x0 = 0, y0 = 0;
+        for (int d = 0; d < depth; d++) {
+            int quadrant = (prefix >>> (2 * (depth - 1 - d))) & 3;
+            x0 = (x0 << 1) | (quadrant & 1);
+            y0 = (y0 << 1) | (quadrant >>> 1);
+        }
+        x0 <<= shift;
+        y0 <<= shift;
+        int x1 = x0 + (1 << shift) - 1;
+        int y1 = y0 + (1 << shift) - 1;
+        // Disjoint
+        if (x1 < minX || x0 > maxX || y1 < minY || y0 > maxY)
+            return;
+        // Fully covered or finest level: the whole key range of this cell
+        if ((x0 >= minX && x1 <= maxX && y0 >= minY && y1 <= maxY) || depth == level) {
+            int from = prefix << (2 * shift);
+            int to = from + (1 << (2 * shift)) - 1;
+            addBlocks(from, to, blocks);
+            return;
+        }
+        for (int quadrant = 0; quadrant < 4; quadrant++)
+            cover((prefix << 2) | quadrant, depth + 1, minX, minY, maxX, maxY, blocks);
+    }
+
+    /**
+     * Add all blocks that may hold cells in a key range.
+     */
+    private void addBlocks(int from, int to, TreeSet<Integer> blocks) {
+        // First block whose last cell is not before the range
+        int lo = 0, hi = lastCell.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastCell[mid] < from)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int b = lo; b < firstCell.length && firstCell[b] <= to; b++)
+            blocks.add(b);
+    }
+
+    /**
+     * A quadtree cell to search, or a non empty cell of the result.
+     */
+    private static class Candidate {
+
+        private final int x;
+
+        private final int y;
+
+        private final int depth;
+
+        /**
+         * Lower bound of the distance of the cells inside, exact for a result.
+         */
+        private final double bound;
+
+        private final Cell cell;
+
+        Candidate(int x, int y, int depth, double bound, Cell cell) {
+            this.x = x;
+            this.y = y;
+            this.depth = depth;
+            this.bound = bound;
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * Find the k non empty cells closest to a point, by the distance of their
+     * center in cells. The quadtree is searched best first: a quadtree cell
+     * is only opened when no cell found so far is closer than the nearest
+     * point inside it, so the result is exact. Quadtree cells without blocks
+     * are skipped, and a quadtree cell within a single block is read at once,
+     * so each block is read at most once and empty parts of the world cost
+     * nothing.
+     * @param latitude The latitude of the point
+     * @param longitude The longitude of the point
+     * @param k The number of cells to return
+     * @return up to k non empty cells, closest first
+     * @throws IOException if the index cannot be read
+     */
+    public List<Cell> nearestCells(double latitude, double longitude, int k) throws IOException {
+        int size = 1 << level;
+        final double px = (longitude + 180.) / 360. * size;
+        final double py = (latitude + 90.) / 180. * size;
+        Map<Integer, List<Hit>> cache = new HashMap<Integer, List<Hit>>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(64, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(a.bound, b.bound);
+            }
+        });
+        queue.add(new Candidate(0, 0, 0, 0, null));
+        List<Cell> found = new ArrayList<Cell>();
+        while (found.size() < k && !queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            // Nothing left in the queue is closer
+            if (candidate.cell != null) {
+                found.add(candidate.cell);
+                continue;
+            }
+            int shift = level - candidate.depth;
+            int from = interleave(candidate.x << shift, candidate.y << shift);
+            int to = from + (1 << (2 * shift)) - 1;
+            TreeSet<Integer> blocks = new TreeSet<Integer>();
+            addBlocks(from, to, blocks);
+            if (blocks.isEmpty())
+                continue;
+            if (blocks.size() > 1 && shift > 0) {
+                for (int quadrant = 0; quadrant < 4; quadrant++) {
+                    int x = (candidate.x << 1) | (quadrant & 1);
+                    int y = (candidate.y << 1) | (quadrant >>> 1);
+                    queue.add(new Candidate(x, y, candidate.depth + 1,
+                            distance(px, py, x << (shift - 1), y << (shift - 1), 1 << (shift - 1)), null));
+                }
+                continue;
+            }
+            // Count the cells of the range in its blocks
+            Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+            for (int block : blocks) {
+                List<Hit> hits = cache.get(block);
+                if (hits == null) {
+                    hits = readBlock(block);
+                    cache.put(block, hits);
+                }
+                for (Hit hit : hits) {
+                    if (hit.cell < from || hit.cell > to)
+                        continue;
+                    Integer count = counts.get(hit.cell);
+                    counts.put(hit.cell, count == null ? 1 : count + 1);
+                }
+            }
+            for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+                int key = count.getKey();
+                double distance = distance(px, py, compact(key), compact(key >>> 1), 1);
+                queue.add(new Candidate(0, 0, level, distance, new Cell(key, count.getValue(), distance)));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the distance from a point to the nearest center of the cells of a square
+     */
+    private static double distance(double px, double py, int x0, int y0, int width) {
+        double dx = Math.max(0, Math.max(x0 + 0.5 - px, px - (x0 + width - 0.5)));
+        double dy = Math.max(0, Math.max(y0 + 0.5 - py, py - (y0 + width - 0.5)));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Read all records of a block.
+     */
+    private List<Hit> readBlock(int block) throws IOException {
+        long first = (long) block * blockSize;
+        int records = (int) Math.min(blockSize, total - first);
+        ByteBuffer buffer = ByteBuffer.allocate(records * RECORD_SIZE);
+        long position = dataOffset + first * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of grid index");
+        }
+        buffer.flip();
+        List<Hit> hits = new ArrayList<Hit>(records);
+        for (int i = 0; i < records; i++)
+            hits.add(new Hit(buffer.getInt(), buffer.getInt(), buffer.getDouble(), buffer.getDouble()));
+        return hits;
+    }
+
+    /**
+     * Query a grid index from the command line.
+     * @param args indexfile bbox minLat minLon maxLat maxLon, or indexfile nearest lat lon k
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 6 && args[1].equals("bbox")) {
+            GridIndex index = new GridIndex(args[0]);
+            long start = System.nanoTime();
+            List<Hit> hits = index.bbox(Double.parseDouble(args[2]), Double.parseDouble(args[3]),
+                    Double.parseDouble(args[4]), Double.parseDouble(args[5]));
+            long stop = System.nanoTime();
+            for (Hit hit : hits)
+                System.out.println(hit);
+            System.out.println(hits.size() + " photos (" + (stop - start) / 1000 + " us)");
+            index.close();
+        }
+        else if (args.length == 5 && args[1].equals("nearest")) {
+            GridIndex index = new GridIndex(args[0]);
+            List<Cell> cells = index.nearestCells(Double.parseDouble(args[2]), Double.parseDouble(args[3]),
+                    Integer.parseInt(args[4]));
+            for (Cell cell : cells)
+                System.out.println(cell);
+            index.close();
+        }
+        else {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: indexfile bbox minLat minLon maxLat maxLon");
+            System.out.println("       indexfile nearest lat lon k");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.vanlaere.flickr.parse;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to long counts, used to
+ * aggregate without boxing a key or a value per row.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+class LongCountMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int size = 0;
+
+    /**
+     * Set when the key Long.MIN_VALUE, which marks empty slots, is counted.
+     */
+    private boolean hasEmptyKey = false;
+
+    private long emptyKeyValue = 0;
+
+    LongCountMap() {
+        this(1024);
+    }
+
+    LongCountMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+        keys = new long[n];
+        values = new long[n];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Add to the count of a key.
+     * @return true if the key was new
+     */
+    boolean add(long key, long delta) {
+        if (key == EMPTY) {
+            boolean added = !hasEmptyKey;
+            hasEmptyKey = true;
+            emptyKeyValue += delta;
+            return added;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                values[slot] += delta;
+                return false;
+            }
+            if (k == EMPTY) {
+                keys[slot] = key;
+                values[slot] = delta;
+                if (++size * 2 > keys.length)
+                    grow();
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    long get(long key) {
+        if (key == EMPTY)
+            return hasEmptyKey ? emptyKeyValue : 0;
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key)
+                return values[slot];
+            if (k == EMPTY)
+                return 0;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int size() {
+        return size + (hasEmptyKey ? 1 : 0);
+    }
+
+    /**
+     * Add all counts of another map to this one.
+     */
+    void addAll(LongCountMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != EMPTY)
+                add(other.keys[i], other.values[i]);
+        }
+        if (other.hasEmptyKey)
+            add(EMPTY, other.emptyKeyValue);
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    long[] keys() {
+        long[] result = new long[size()];
+        int n = 0;
+        for (long key : keys) {
+            if (key != EMPTY)
+                result[n++] = key;
+        }
+        if (hasEmptyKey)
+            result[n] = EMPTY;
+        return result;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY)
+                add(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
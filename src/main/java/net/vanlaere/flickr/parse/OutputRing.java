@@ -0,0 +1,297 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import net.vanlaere.flickr.metrics.Counter;
+import net.vanlaere.flickr.metrics.Metrics;
+import net.vanlaere.flickr.metrics.Trace;
+
+/**
+ * Bounded ring of record batches between the parser workers and a single
+ * writer thread.
+ *
+ * A worker encodes the records of a file into a batch of its own, then
+ * publishes it in the slot of its sequence number, taking the batch that was
+ * written from that slot before in return. The batches are preallocated and
+ * reused, so the ring holds a fixed amount of memory, and a worker blocks
+ * while its slot is still waiting to be written. The writer takes the slots
+ * in sequence order and writes them to the output file in large sequential
+ * writes.
+ *
+ * Sequence numbers are handed out when a batch is published, or, to write
+ * the records in the order the files were discovered, are the positions of
+ * the files in the discovery. In the latter case, a worker publishes an empty
+ * batch for a file without records, so no sequence number is skipped.
+ *
+ * The writer also feeds the tag and grid index, if enabled, so their
+ * ordinals are the line numbers of the output file, and keeps a checksum of
+ * the bytes it wrote for the manifest of a shard.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+class OutputRing {
+
+    /**
+     * Initial size of the encoded records of a batch, about one page of 250 photos.
+     */
+    private static final int BATCH_SIZE = 1 << 18;
+
+    /**
+     * Counter for the bytes written to the output file.
+     */
+    private static final Counter bytes_written = Metrics.get().counter("parser.bytes_written");
+
+    private static final Trace trace = Trace.get();
+
+    /**
+     * The encoded records of one file, with what the indexes need of them.
+     */
+    static class Batch {
+
+        private byte[] bytes = new byte[BATCH_SIZE];
+
+        private int length = 0;
+
+        private int records = 0;
+
+        private String[] tags = new String[256];
+
+        private double[] latitudes = new double[256];
+
+        private double[] longitudes = new double[256];
+
+        int records() {
+            return records;
+        }
+
+        private void clear() {
+            length = 0;
+            Arrays.fill(tags, 0, records, null);
+            records = 0;
+        }
+
+        /**
+         * Add a record.
+         * @param line The formatted record
+         * @param tags The tags of the photo, for the tag index
+         * @param latitude The latitude of the photo, or NaN, for the grid index
+         * @param longitude The longitude of the photo, or NaN, for the grid index
+         */
+        void add(CharSequence line, String tags, double latitude, double longitude) {
+            byte[] encoded = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            if (length + encoded.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + encoded.length));
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+            if (records == this.tags.length) {
+                this.tags = Arrays.copyOf(this.tags, records * 2);
+                latitudes = Arrays.copyOf(latitudes, records * 2);
+                longitudes = Arrays.copyOf(longitudes, records * 2);
+            }
+            this.tags[records] = tags;
+            latitudes[records] = latitude;
+            longitudes[records] = longitude;
+            records++;
+        }
+    }
+
+    private final Batch[] slots;
+
+    private final boolean[] ready;
+
+    private final OutputStream out;
+
+    private final TagIndex.Postings postings;
+
+    private final GridIndex.Cells cells;
+
+    private final Thread writer;
+
+    private final Object lock = new Object();
+
+    /**
+     * Next sequence number to hand out, after the highest one published.
+     */
+    private long assigned = 0;
+
+    /**
+     * Number of batches written.
+     */
+    private long written = 0;
+
+    private boolean closed = false;
+
+    private int records = 0;
+
+    private long bytes = 0;
+
+    private final CRC32 checksum = new CRC32();
+
+    private IOException error = null;
+
+    /**
+     * Open the output file and start the writer.
+     * @param outputFile The file to append the records to
+     * @param capacity Number of slots of the ring
+     * @param postings The tag postings to feed, or null
+     * @param cells The grid cells to feed, or null
+     * @throws IOException if the output file cannot be opened
+     */
+    OutputRing(String outputFile, int capacity, TagIndex.Postings postings, GridIndex.Cells cells) throws IOException {
+        this.slots = new Batch[capacity];
+        this.ready = new boolean[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Batch();
+        this.out = new BufferedOutputStream(new FileOutputStream(outputFile, true), 1 << 20);
+        this.postings = postings;
+        this.cells = cells;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "parser-writer");
+        writer.start();
+    }
+
+    /**
+     * @return a new empty batch for a worker
+     */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Publish a batch in the slot of a sequence number, blocking while the
+     * slot still holds a batch that is not written.
+     * @param sequence The sequence number, the position of a file in the discovery
+     * @param batch The batch to publish
+     * @return an empty batch to fill next
+     * @throws InterruptedException if interrupted while waiting for the slot
+     */
+    Batch publish(long sequence, Batch batch) throws InterruptedException {
+        int slot = (int) (sequence % slots.length);
+        synchronized (lock) {
+            while (sequence >= written + slots.length)
+                lock.wait();
+            assigned = Math.max(assigned, sequence + 1);
+            Batch previous = slots[slot];
+            slots[slot] = batch;
+            ready[slot] = true;
+            lock.notifyAll();
+            previous.clear();
+            return previous;
+        }
+    }
+
+    /**
+     * Publish a batch under the next sequence number.
+     * @see #publish(long, Batch)
+     */
+    Batch publish(Batch batch) throws InterruptedException {
+        synchronized (lock) {
+            return publish(assigned++, batch);
+        }
+    }
+
+    /**
+     * Write the slots in sequence order until the ring is closed and empty.
+     */
+    private void drain() {
+        while (true) {
+            Batch batch;
+            int slot;
+            synchronized (lock) {
+                slot = (int) (written % slots.length);
+                while (!ready[slot] && !(closed && written == assigned)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        System.err.println("Parser writer was interrupted. " + e.getMessage());
+                        return;
+                    }
+                }
+                if (!ready[slot])
+                    break;
+                batch = slots[slot];
+            }
+            Trace.Span span = trace.begin("parse", "write");
+            write(batch);
+            span.end();
+            synchronized (lock) {
+                ready[slot] = false;
+                written++;
+                lock.notifyAll();
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (error == null)
+                error = e;
+        }
+    }
+
+    private void write(Batch batch) {
+        if (error != null)
+            return;
+        try {
+            out.write(batch.bytes, 0, batch.length);
+            checksum.update(batch.bytes, 0, batch.length);
+            bytes += batch.length;
+            bytes_written.add(batch.length);
+            for (int i = 0; i < batch.records; i++) {
+                int ordinal = records++;
+                if (postings != null)
+                    postings.add(batch.tags[i]);
+                if (cells != null && !Double.isNaN(batch.latitudes[i]) && !Double.isNaN(batch.longitudes[i]))
+                    cells.add(ordinal, batch.latitudes[i], batch.longitudes[i]);
+            }
+        } catch (IOException e) {
+            // Keep draining, so no worker waits for a slot forever
+            error = e;
+            System.err.println("Error writing output: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait until every sequence number handed out is written, and close the output.
+     * @throws IOException if writing failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close() throws IOException, InterruptedException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        writer.join();
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * @return the number of records written. Final after close().
+     */
+    int getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of bytes written. Final after close().
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the CRC-32 of the bytes written. Final after close().
+     */
+    long getChecksum() {
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,436 @@
+package net.vanlaere.flickr.parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.xml.sax.Attributes;
+
+/**
+ * This class describes which photos the parser keeps and which of their
+ * fields are written to the output.
+ *
+ * A spec is written as a list of key=value pairs separated by ';', e.g.
+ * <pre>fields=id,latitude,longitude,tags;bbox=50.6,2.5,51.5,6.4;taken=2011-01-01,2011-12-31</pre>
+ *
+ * Supported keys:
+ * <ul>
+ * <li>fields : comma separated list of attributes to write, in that order</li>
+ * <li>bbox : minLat,minLon,maxLat,maxLon</li>
+ * <li>taken : datetaken range, min,max (inclusive, either bound may be empty)</li>
+ * <li>upload : dateupload range as unix timestamps, min,max (inclusive)</li>
+ * <li>license : comma separated list of accepted licenses</li>
+ * <li>tags : true to only keep photos with tags (default), false to keep all</li>
+ * <li>geo : true to only keep photos with coordinates (default), false to keep all</li>
+ * </ul>
+ *
+ * A spec is also the schema of a crawl: getExtras() tells the crawler which
+ * extras to request, so that the pages hold exactly what the spec needs.
+ *
+ * All filters are evaluated on the raw attribute values. Only the coordinates
+ * are parsed, and only if a bounding box is set. Attributes that are not
+ * selected and not filtered on are never read.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class ParseSpec {
+
+    /**
+     * The attributes of a photo that can be written by the parser. The order
+     * of this enum is the order of the default output.
+     */
+    public enum Field {
+        OWNER("owner", Kind.STRING, null),
+        ID("id", Kind.LONG, null),
+        TITLE("title", Kind.STRING, null),
+        LICENSE("license", Kind.INT, "license"),
+        DATETAKEN("datetaken", Kind.STRING, "date_taken"),
+        OWNERNAME("ownername", Kind.STRING, "owner_name"),
+        LASTUPDATE("lastupdate", Kind.LONG, "last_update"),
+        LATITUDE("latitude", Kind.DOUBLE, "geo"),
+        LONGITUDE("longitude", Kind.DOUBLE, "geo"),
+        ACCURACY("accuracy", Kind.INT, "geo"),
+        PLACE_ID("place_id", Kind.STRING, "geo"),
+        WOEID("woeid", Kind.LONG, "geo"),
+        TAGS("tags", Kind.STRING, "tags"),
+        MACHINE_TAGS("machine_tags", Kind.STRING, "machine_tags"),
+        VIEWS("views", Kind.INT, "views"),
+        URL_O("url_o", Kind.STRING, "url_o"),
+        DATEUPLOAD("dateupload", Kind.LONG, "date_upload");
+
+        private final String attribute;
+
+        private final Kind kind;
+
+        private final String extra;
+
+        Field(String attribute, Kind kind, String extra) {
+            this.attribute = attribute;
+            this.kind = kind;
+            this.extra = extra;
+        }
+
+        public String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * @return the value of the extras parameter of a search that returns this attribute,
+         *         or null if every search returns it
+         */
+        public String getExtra() {
+            return extra;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Look up a field by its attribute name.
+         * @param attribute The name of the XML attribute
+         * @return the matching Field
+         */
+        public static Field forAttribute(String attribute) {
+            for (Field field : values()) {
+                if (field.attribute.equals(attribute))
+                    return field;
+            }
+            throw new IllegalArgumentException("Unknown field: " + attribute);
+        }
+    }
+
+    /**
+     * The type of the value of a field, determining how it is written.
+     */
+    public enum Kind {
+        STRING(""), INT("-1"), LONG("-1"), DOUBLE("-200.0");
+
+        /**
+         * Value written when the attribute is missing.
+         */
+        private final String missing;
+
+        Kind(String missing) {
+            this.missing = missing;
+        }
+    }
+
+    /**
+     * The fields to write, in order.
+     */
+    private Field[] fields;
+
+    private boolean requireTags = true;
+
+    private boolean requireGeo = true;
+
+    private boolean bbox = false;
+
+    private double minLat, minLon, maxLat, maxLon;
+
+    private String minTaken = null;
+
+    private String maxTaken = null;
+
+    private String minUpload = null;
+
+    private String maxUpload = null;
+
+    private Set<String> licenses = null;
+
+    /**
+     * Construct the default spec: all fields but dateupload, photos with
+     * coordinates and tags only.
+     */
+    public ParseSpec() {
+        this.fields = Arrays.copyOf(Field.values(), Field.DATEUPLOAD.ordinal());
+    }
+
+    /**
+     * Parse a spec from its textual form.
+     * @param spec The spec, see the class documentation for the format
+     * @return the parsed ParseSpec
+     */
+    public static ParseSpec parse(String spec) {
+        ParseSpec result = new ParseSpec();
+        for (String entry : spec.split(";")) {
+            if (entry.trim().isEmpty())
+                continue;
+            int eq = entry.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected key=value in spec: " + entry);
+            String key = entry.substring(0, eq).trim();
+            String value = entry.substring(eq + 1).trim();
+            String[] values = value.split(",", -1);
+            switch (key) {
+                case "fields":
+                    List<Field> list = new ArrayList<Field>();
+                    for (String name : values)
+                        list.add(Field.forAttribute(name.trim()));
+                    result.setFields(list.toArray(new Field[list.size()]));
+                    break;
+                case "bbox":
+                    if (values.length != 4)
+                        throw new IllegalArgumentException("bbox needs minLat,minLon,maxLat,maxLon");
+                    result.setBoundingBox(Double.parseDouble(values[0]), Double.parseDouble(values[1]),
+                            Double.parseDouble(values[2]), Double.parseDouble(values[3]));
+                    break;
+                case "taken":
+                    result.setTakenRange(bound(values, 0), bound(values, 1));
+                    break;
+                case "upload":
+                    result.setUploadRange(bound(values, 0), bound(values, 1));
+                    break;
+                case "license":
+                    Set<String> licenses = new HashSet<String>();
+                    for (String license : values)
+                        licenses.add(license.trim());
+                    result.setLicenses(licenses);
+                    break;
+                case "tags":
+                    result.setRequireTags(Boolean.parseBoolean(value));
+                    break;
+                case "geo":
+                    result.setRequireGeo(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown key in spec: " + key);
+            }
+        }
+        return result;
+    }
+
+    private static String bound(String[] values, int index) {
+        if (index >= values.length || values[index].trim().isEmpty())
+            return null;
+        return values[index].trim();
+    }
+
+    public Field[] getFields() {
+        return fields;
+    }
+
+    public void setFields(Field[] fields) {
+        this.fields = fields;
+    }
+
+    public boolean hasField(Field field) {
+        for (Field f : fields) {
+            if (f == field)
+                return true;
+        }
+        return false;
+    }
+
+    public void setRequireTags(boolean requireTags) {
+        this.requireTags = requireTags;
+    }
+
+    public void setRequireGeo(boolean requireGeo) {
+        this.requireGeo = requireGeo;
+    }
+
+    public void setBoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+        this.bbox = true;
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+    }
+
+    /**
+     * Only keep photos taken in a given range. Dates are compared as text,
+     * so a bound like "2011-12" or "2011-12-31" matches the whole month or day.
+     * @param min Lower bound, or null
+     * @param max Upper bound, or null
+     */
+    public void setTakenRange(String min, String max) {
+        this.minTaken = min;
+        this.maxTaken = max;
+    }
+
+    /**
+     * Only keep photos uploaded in a given range.
+     * @param min Lower bound as unix timestamp, or null
+     * @param max Upper bound as unix timestamp, or null
+     */
+    public void setUploadRange(String min, String max) {
+        this.minUpload = min;
+        this.maxUpload = max;
+    }
+
+    public void setLicenses(Set<String> licenses) {
+        this.licenses = licenses;
+    }
+
+    /**
+     * The extras a search must request for the pages to hold every field
+     * this spec writes or filters on.
+     * @return the extras, sorted by name
+     */
+    public Set<String> getExtras() {
+        Set<String> extras = new TreeSet<String>();
+        for (Field field : fields) {
+            if (field.extra != null)
+                extras.add(field.extra);
+        }
+        if (requireTags)
+            extras.add(Field.TAGS.extra);
+        if (requireGeo || bbox)
+            extras.add(Field.LATITUDE.extra);
+        if (licenses != null)
+            extras.add(Field.LICENSE.extra);
+        if (minTaken != null || maxTaken != null)
+            extras.add(Field.DATETAKEN.extra);
+        if (minUpload != null || maxUpload != null)
+            extras.add(Field.DATEUPLOAD.extra);
+        return extras;
+    }
+
+    /**
+     * @return the spec in its textual form, which parse() reads back to an equal spec
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("fields=");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(fields[i].attribute);
+        }
+        builder.append(";tags=").append(requireTags).append(";geo=").append(requireGeo);
+        if (bbox)
+            builder.append(";bbox=").append(minLat).append(',').append(minLon).append(',')
+                    .append(maxLat).append(',').append(maxLon);
+        if (minTaken != null || maxTaken != null)
+            builder.append(";taken=").append(minTaken != null ? minTaken : "").append(',')
+                    .append(maxTaken != null ? maxTaken : "");
+        if (minUpload != null || maxUpload != null)
+            builder.append(";upload=").append(minUpload != null ? minUpload : "").append(',')
+                    .append(maxUpload != null ? maxUpload : "");
+        if (licenses != null) {
+            List<String> sorted = new ArrayList<String>(licenses);
+            Collections.sort(sorted);
+            builder.append(";license=");
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(sorted.get(i));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Check whether a photo passes all filters of this spec.
+     * @param atts The raw attributes of the photo element
+     * @return true if the photo should be kept
+     */
+    public boolean accept(Attributes atts) {
+        // Cheapest checks first: presence and plain text comparisons
+        if (requireTags && isEmpty(atts.getValue("tags")))
+            return false;
+        if (licenses != null && !licenses.contains(atts.getValue("license")))
+            return false;
+        if (minTaken != null || maxTaken != null) {
+            String taken = atts.getValue("datetaken");
+            if (taken == null)
+                return false;
+            if (minTaken != null && taken.compareTo(minTaken) < 0)
+                return false;
+            if (maxTaken != null && !taken.startsWith(maxTaken) && taken.compareTo(maxTaken) > 0)
+                return false;
+        }
+        if (minUpload != null || maxUpload != null) {
+            String upload = atts.getValue("dateupload");
+            if (upload == null)
+                return false;
+            if (minUpload != null && compareDigits(upload, minUpload) < 0)
+                return false;
+            if (maxUpload != null && compareDigits(upload, maxUpload) > 0)
+                return false;
+        }
+        if (requireGeo || bbox) {
+            String lat = atts.getValue("latitude");
+            String lon = atts.getValue("longitude");
+            if (isEmpty(lat) || isEmpty(lon))
+                return false;
+            // Only now parse the coordinates
+            if (bbox) {
+                double latitude = Double.parseDouble(lat);
+                double longitude = Double.parseDouble(lon);
+                if (latitude < minLat || latitude > maxLat || longitude < minLon || longitude > maxLon)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the selected fields of a photo to a builder.
+     * @param atts The raw attributes of the photo element
+     * @param builder The builder to append to
+     */
+    public void format(Attributes atts, StringBuilder builder) {
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            if (i > 0)
+                builder.append(';');
+            builder.append(field.attribute);
+            builder.append("=\"");
+            builder.append(value(atts.getValue(field.attribute), field.kind));
+            builder.append('"');
+        }
+    }
+
+    /**
+     * Normalise a raw attribute value the way the parser always wrote it:
+     * numbers are written as parsed, missing values as their default.
+     */
+    private static String value(String raw, Kind kind) {
+        if (raw == null)
+            return kind.missing;
+        switch (kind) {
+            case INT:
+                return isDigits(raw) ? raw : Integer.toString(Integer.parseInt(raw));
+            case LONG:
+                return isDigits(raw) ? raw : Long.toString(Long.parseLong(raw));
+            case DOUBLE:
+                return Double.toString(Double.parseDouble(raw));
+            default:
+                return raw;
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    /**
+     * @return true if the value is a number without sign or leading zeros
+     */
+    private static boolean isDigits(String value) {
+        int length = value.length();
+        if (length == 0 || (length > 1 && value.charAt(0) == '0'))
+            return false;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare two non negative integers given as text without parsing them.
+     */
+    static int compareDigits(String a, String b) {
+        if (a.length() != b.length())
+            return a.length() - b.length();
+        return a.compareTo(b);
+    }
+}
@@ -0,0 +1,385 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class splits the parser output into partitions by time.
+ *
+ * Photos are assigned to a partition using either their upload date or the
+ * date they were taken, per day or per month. Every partition is a separate
+ * file in the output directory, written concurrently by the parser workers
+ * through one buffered writer per partition. Workers collect their lines per
+ * partition and hand them over in large batches, so the lock of a partition
+ * is only taken once per batch. The lines a worker holds are limited, so many
+ * partitions do not fill the heap: when the limit is reached, all of them are
+ * handed over.
+ *
+ * Only the writers of the partitions written last are kept open. When more
+ * partitions are written, the one written longest ago is closed, and opened
+ * again to append to it when it gets more lines. Day partitions over many
+ * years thus never use thousands of file descriptors.
+ *
+ * When all workers are done, a manifest is written listing every partition
+ * with its file and number of photos. No manifest is written if a partition
+ * could not be written or not every file was parsed, so an incomplete
+ * partition is never taken for a complete one. Partitions are named after their date,
+ * e.g. 2011-03.txt or 2011-03-15.txt, so date range consumers can pick the
+ * files they need by name.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class PartitionedOutput {
+
+    public static final String MANIFEST_FILE = "_manifest.tsv";
+
+    /**
+     * Partition for photos without a valid date.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    /**
+     * Size of a worker batch for a partition before it is handed over.
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /**
+     * Buffer size of the writer of a partition.
+     */
+    private static final int WRITER_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of characters a worker holds for all partitions together.
+     */
+    private static final int WORKER_LIMIT = 1024 * 1024;
+
+    /**
+     * Maximum number of partition writers that are open at the same time.
+     */
+    private static final int MAX_OPEN_WRITERS = 64;
+
+    /**
+     * The time field to partition on.
+     */
+    public enum TimeField {
+        UPLOAD("dateupload"), TAKEN("datetaken");
+
+        private final String attribute;
+
+        TimeField(String attribute) {
+            this.attribute = attribute;
+        }
+    }
+
+    /**
+     * The size of a partition.
+     */
+    public enum Granularity {
+        DAY(10), MONTH(7);
+
+        /**
+         * Length of the partition key, a prefix of yyyy-MM-dd.
+         */
+        private final int length;
+
+        Granularity(int length) {
+            this.length = length;
+        }
+    }
+
+    /**
+     * A partition file with its writer, if it is open.
+     */
+    private static class Partition {
+
+        private final File file;
+
+        private Writer writer = null;
+
+        /**
+         * Whether the file was created, so it is appended to when opened again.
+         */
+        private boolean created = false;
+
+        private long count = 0;
+
+        /**
+         * Whether writing the partition failed, so it misses lines.
+         */
+        private boolean failed = false;
+
+        Partition(File file) {
+            this.file = file;
+        }
+
+        synchronized void write(CharSequence lines, int count) throws IOException {
+            try {
+                if (writer == null) {
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(file, created), StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+                    created = true;
+                }
+                writer.append(lines);
+                this.count += count;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        synchronized void closeWriter() throws IOException {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    writer = null;
+                }
+            }
+        }
+    }
+
+    private final File dir;
+
+    private final TimeField field;
+
+    private final Granularity granularity;
+
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+    /**
+     * The partitions that may have an open writer, the one written longest ago first.
+     */
+    private final LinkedHashMap<String, Partition> open = new LinkedHashMap<String, Partition>(16, 0.75f, true);
+
+    /**
+     * Construct a new PartitionedOutput.
+     * @param dir The directory to write the partitions to
+     * @param field The time field to partition on
+     * @param granularity The size of a partition
+     */
+    public PartitionedOutput(String dir, TimeField field, Granularity granularity) {
+        this.dir = new File(dir);
+        this.field = field;
+        this.granularity = granularity;
+        this.dir.mkdirs();
+    }
+
+    /**
+     * @return the attribute the partitions are based on
+     */
+    public String getAttribute() {
+        return field.attribute;
+    }
+
+    /**
+     * Create the batches for a single worker.
+     * @return a new Batches instance, to be used by one thread only
+     */
+    public Batches newBatches() {
+        return new Batches();
+    }
+
+    /**
+     * Compute the partition of a photo from the raw value of the time field.
+     * @param value The raw attribute value
+     * @return the partition key
+     */
+    public String key(String value) {
+        if (value == null || value.isEmpty())
+            return UNKNOWN;
+        if (field == TimeField.TAKEN) {
+            // datetaken is formatted as yyyy-MM-dd HH:mm:ss
+            if (value.length() < granularity.length || value.startsWith("0000"))
+                return UNKNOWN;
+            return value.substring(0, granularity.length);
+        }
+        try {
+            return date(Long.parseLong(value)).substring(0, granularity.length);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Format a unix timestamp as a UTC yyyy-MM-dd date, without going through
+     * Calendar. Uses the days-to-civil conversion by Howard Hinnant.
+     */
+    static String date(long timestamp) {
+        long days = timestamp / 86400L;
+        if (timestamp < 0 && timestamp % 86400L != 0)
+            days--;
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        StringBuilder builder = new StringBuilder(10);
+        builder.append(year).append('-');
+        if (month < 10)
+            builder.append('0');
+        builder.append(month).append('-');
+        if (day < 10)
+            builder.append('0');
+        builder.append(day);
+        return builder.toString();
+    }
+
+    /**
+     * Write lines to a partition, closing the writer of the partition written
+     * longest ago if too many are open.
+     */
+    private void write(String key, CharSequence lines, int count) throws IOException {
+        Partition partition = partition(key);
+        partition.write(lines, count);
+        Partition eldest = null;
+        synchronized (open) {
+            open.put(key, partition);
+            if (open.size() > MAX_OPEN_WRITERS) {
+                Map.Entry<String, Partition> entry = open.entrySet().iterator().next();
+                eldest = entry.getValue();
+                open.remove(entry.getKey());
+            }
+        }
+        // Outside the lock of the open writers, a partition lock is never taken inside it
+        if (eldest != null)
+            eldest.closeWriter();
+    }
+
+    private Partition partition(String key) {
+        Partition partition = partitions.get(key);
+        if (partition == null) {
+            synchronized (partitions) {
+                partition = partitions.get(key);
+                if (partition == null) {
+                    partition = new Partition(new File(dir, key + ".txt"));
+                    partitions.put(key, partition);
+                }
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Close all partitions and write the manifest, if they are complete.
+     * @param complete Whether every file was parsed
+     * @throws IOException if a partition or the manifest cannot be written
+     */
+    public void close(boolean complete) throws IOException {
+        List<String> keys = new ArrayList<String>(partitions.keySet());
+        Collections.sort(keys);
+        // A manifest of an earlier run must not vouch for these partitions
+        File manifestFile = new File(dir, MANIFEST_FILE);
+        manifestFile.delete();
+        List<String> failed = new ArrayList<String>();
+        for (String key : keys) {
+            Partition partition = partitions.get(key);
+            try {
+                partition.closeWriter();
+            } catch (IOException e) {
+                System.err.println("Error closing partition " + key + ": " + e.getMessage());
+            }
+            if (partition.failed)
+                failed.add(key);
+        }
+        if (!failed.isEmpty())
+            throw new IOException("Partitions " + failed + " could not be written, no manifest written to " + dir);
+        if (!complete) {
+            System.err.println("Not every file was parsed, no manifest written to " + dir);
+            return;
+        }
+        long total = 0;
+        try (PrintWriter manifest = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(manifestFile), StandardCharsets.UTF_8))) {
+            manifest.println("# partition\tfile\tphotos\tfield=" + field.attribute + "\tgranularity=" + granularity);
+            for (String key : keys) {
+                Partition partition = partitions.get(key);
+                manifest.println(key + "\t" + partition.file.getName() + "\t" + partition.count);
+                total += partition.count;
+            }
+        }
+        System.out.println(total + " photos written to " + keys.size() + " partitions in " + dir);
+    }
+
+    /**
+     * The pending lines of a single worker, per partition.
+     */
+    public class Batches {
+
+        private final Map<String, StringBuilder> lines = new HashMap<String, StringBuilder>();
+
+        private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        /**
+         * Number of characters pending over all partitions.
+         */
+        private int pending = 0;
+
+        private Batches() {
+        }
+
+        /**
+         * Add a line to a partition, handing the batch over when it is full.
+         * @param value The raw value of the time field of the photo
+         * @param line The line to write
+         * @throws IOException if the partition cannot be written
+         */
+        public void add(String value, CharSequence line) throws IOException {
+            String key = key(value);
+            StringBuilder batch = lines.get(key);
+            if (batch == null) {
+                // Grows as needed, most partitions of a worker stay small
+                batch = new StringBuilder();
+                lines.put(key, batch);
+                counts.put(key, 0);
+            }
+            batch.append(line).append('\n');
+            pending += line.length() + 1;
+            counts.put(key, counts.get(key) + 1);
+            if (batch.length() >= BATCH_SIZE)
+                flush(key, batch);
+            else if (pending >= WORKER_LIMIT)
+                flush();
+        }
+
+        private void flush(String key, StringBuilder batch) throws IOException {
+            write(key, batch, counts.get(key));
+            pending -= batch.length();
+            batch.setLength(0);
+            counts.put(key, 0);
+        }
+
+        /**
+         * Hand over all pending lines, and release the buffers.
+         * @throws IOException if a partition cannot be written
+         */
+        public void flush() throws IOException {
+            for (Map.Entry<String, StringBuilder> entry : lines.entrySet()) {
+                if (entry.getValue().length() > 0)
+                    write(entry.getKey(), entry.getValue(), counts.get(entry.getKey()));
+            }
+            lines.clear();
+            counts.clear();
+            pending = 0;
+        }
+    }
+}
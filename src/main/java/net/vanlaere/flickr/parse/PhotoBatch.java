@@ -0,0 +1,423 @@
+package net.vanlaere.flickr.parse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A batch of photos stored column by column, to process parsed data in the
+ * JVM without creating an object per photo.
+ *
+ * Every numeric field is a primitive array indexed by the position of the
+ * photo in the batch. The text fields of all photos share one byte array
+ * holding their UTF-8 bytes; a photo's value of a text field is the slice
+ * textOffset(i, text) .. textOffset(i, text) + textLength(i, text).
+ * Missing values are stored the way the parser writes them: -1 for numbers,
+ * -200.0 for coordinates and an empty slice for text.
+ *
+ * Batches are meant to be reused: PhotoBatchReader clears and refills the
+ * same batch, so its arrays only grow until they fit the largest batch. The
+ * arrays returned by the getters are only valid up to size(), and until the
+ * batch is filled again.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class PhotoBatch {
+
+    /**
+     * Default number of photos in a batch.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Value of a missing integer field.
+     */
+    public static final int MISSING = -1;
+
+    /**
+     * Value of a missing coordinate.
+     */
+    public static final double MISSING_COORDINATE = -200.0;
+
+    /**
+     * The text fields of a photo.
+     */
+    public enum Text {
+        OWNER, TITLE, OWNERNAME, PLACE_ID, TAGS, MACHINE_TAGS, URL_O
+    }
+
+    private static final int TEXTS = Text.values().length;
+
+    private final int capacity;
+
+    private int size = 0;
+
+    private long[] ids;
+
+    private double[] latitudes;
+
+    private double[] longitudes;
+
+    private long[] datesTaken;
+
+    private long[] datesUpload;
+
+    private long[] lastUpdates;
+
+    private int[] views;
+
+    private int[] licenses;
+
+    private int[] accuracies;
+
+    private long[] woeids;
+
+    /**
+     * Start and length of every text field, TEXTS entries per photo.
+     */
+    private int[] textOffsets;
+
+    private int[] textLengths;
+
+    private byte[] bytes = new byte[1 << 16];
+
+    private int length = 0;
+
+    /**
+     * Construct a batch of DEFAULT_CAPACITY photos.
+     */
+    public PhotoBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a batch.
+     * @param capacity Maximum number of photos in the batch
+     */
+    public PhotoBatch(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("A batch holds at least one photo");
+        this.capacity = capacity;
+        this.ids = new long[capacity];
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.datesTaken = new long[capacity];
+        this.datesUpload = new long[capacity];
+        this.lastUpdates = new long[capacity];
+        this.views = new int[capacity];
+        this.licenses = new int[capacity];
+        this.accuracies = new int[capacity];
+        this.woeids = new long[capacity];
+        this.textOffsets = new int[capacity * TEXTS];
+        this.textLengths = new int[capacity * TEXTS];
+    }
+
+    /**
+     * @return the number of photos in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Remove all photos, keeping the arrays.
+     */
+    public void clear() {
+        size = 0;
+        length = 0;
+    }
+
+    public long[] getIds() {
+        return ids;
+    }
+
+    public double[] getLatitudes() {
+        return latitudes;
+    }
+
+    public double[] getLongitudes() {
+        return longitudes;
+    }
+
+    /**
+     * @return datetaken as seconds since the epoch, reading the local time of the photo as if it were UTC
+     */
+    public long[] getDatesTaken() {
+        return datesTaken;
+    }
+
+    /**
+     * @return dateupload as unix timestamps
+     */
+    public long[] getDatesUpload() {
+        return datesUpload;
+    }
+
+    public long[] getLastUpdates() {
+        return lastUpdates;
+    }
+
+    public int[] getViews() {
+        return views;
+    }
+
+    public int[] getLicenses() {
+        return licenses;
+    }
+
+    public int[] getAccuracies() {
+        return accuracies;
+    }
+
+    public long[] getWoeids() {
+        return woeids;
+    }
+
+    /**
+     * @return the UTF-8 bytes of all text fields of the batch
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param photo The position of the photo in the batch
+     * @param text The text field
+     * @return the start of the value in getBytes()
+     */
+    public int textOffset(int photo, Text text) {
+        return textOffsets[photo * TEXTS + text.ordinal()];
+    }
+
+    /**
+     * @param photo The position of the photo in the batch
+     * @param text The text field
+     * @return the number of bytes of the value
+     */
+    public int textLength(int photo, Text text) {
+        return textLengths[photo * TEXTS + text.ordinal()];
+    }
+
+    /**
+     * Decode a text field. This creates a String, use the byte slice in loops.
+     * @param photo The position of the photo in the batch
+     * @param text The text field
+     * @return the value
+     */
+    public String getText(int photo, Text text) {
+        int slot = photo * TEXTS + text.ordinal();
+        return new String(bytes, textOffsets[slot], textLengths[slot], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Start a new photo at the end of the batch, with all fields missing.
+     * @return the position of the photo
+     */
+    int begin() {
+        int photo = size;
+        ids[photo] = MISSING;
+        latitudes[photo] = MISSING_COORDINATE;
+        longitudes[photo] = MISSING_COORDINATE;
+        datesTaken[photo] = MISSING;
+        datesUpload[photo] = MISSING;
+        lastUpdates[photo] = MISSING;
+        views[photo] = MISSING;
+        licenses[photo] = MISSING;
+        accuracies[photo] = MISSING;
+        woeids[photo] = MISSING;
+        Arrays.fill(textOffsets, photo * TEXTS, (photo + 1) * TEXTS, length);
+        Arrays.fill(textLengths, photo * TEXTS, (photo + 1) * TEXTS, 0);
+        return photo;
+    }
+
+    /**
+     * Keep the photo started with begin().
+     */
+    void commit() {
+        size++;
+    }
+
+    /**
+     * Set a field of the photo started with begin().
+     * @param field The field
+     * @param line The bytes holding the value
+     * @param start Start of the value
+     * @param end End of the value
+     * @param escaped True if the value is XML text, with entities to decode
+     */
+    void set(ParseSpec.Field field, byte[] line, int start, int end, boolean escaped) {
+        int photo = size;
+        switch (field) {
+            case ID: ids[photo] = parseLong(line, start, end); break;
+            case LICENSE: licenses[photo] = (int) parseLong(line, start, end); break;
+            case DATETAKEN: datesTaken[photo] = parseDateTime(line, start, end); break;
+            case LASTUPDATE: lastUpdates[photo] = parseLong(line, start, end); break;
+            case LATITUDE: latitudes[photo] = parseCoordinate(line, start, end); break;
+            case LONGITUDE: longitudes[photo] = parseCoordinate(line, start, end); break;
+            case ACCURACY: accuracies[photo] = (int) parseLong(line, start, end); break;
+            case WOEID: woeids[photo] = parseLong(line, start, end); break;
+            case VIEWS: views[photo] = (int) parseLong(line, start, end); break;
+            case DATEUPLOAD: datesUpload[photo] = parseLong(line, start, end); break;
+            case OWNER: setText(Text.OWNER, line, start, end, escaped); break;
+            case TITLE: setText(Text.TITLE, line, start, end, escaped); break;
+            case OWNERNAME: setText(Text.OWNERNAME, line, start, end, escaped); break;
+            case PLACE_ID: setText(Text.PLACE_ID, line, start, end, escaped); break;
+            case TAGS: setText(Text.TAGS, line, start, end, escaped); break;
+            case MACHINE_TAGS: setText(Text.MACHINE_TAGS, line, start, end, escaped); break;
+            case URL_O: setText(Text.URL_O, line, start, end, escaped); break;
+        }
+    }
+
+    private void setText(Text text, byte[] line, int start, int end, boolean escaped) {
+        int slot = size * TEXTS + text.ordinal();
+        if (length + end - start > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + end - start));
+        textOffsets[slot] = length;
+        if (!escaped) {
+            System.arraycopy(line, start, bytes, length, end - start);
+            length += end - start;
+        }
+        else {
+            // Decoded text is never longer than the escaped text
+            for (int i = start; i < end; i++) {
+                if (line[i] == '&') {
+                    int semicolon = i + 1;
+                    while (semicolon < end && semicolon - i <= 10 && line[semicolon] != ';')
+                        semicolon++;
+                    if (semicolon < end && line[semicolon] == ';' && decodeEntity(line, i + 1, semicolon)) {
+                        i = semicolon;
+                        continue;
+                    }
+                }
+                bytes[length++] = line[i];
+            }
+        }
+        textLengths[slot] = length - textOffsets[slot];
+    }
+
+    /**
+     * Append the character of an XML entity, without its &amp; and ;.
+     * @return false if it is not an entity
+     */
+    private boolean decodeEntity(byte[] line, int start, int end) {
+        int c;
+        if (end - start >= 2 && line[start] == '#') {
+            boolean hex = line[start + 1] == 'x';
+            c = 0;
+            for (int i = start + (hex ? 2 : 1); i < end; i++) {
+                int digit = Character.digit(line[i], hex ? 16 : 10);
+                if (digit < 0)
+                    return false;
+                c = c * (hex ? 16 : 10) + digit;
+                if (c > Character.MAX_CODE_POINT)
+                    return false;
+            }
+        }
+        else if (is(line, start, end, "amp"))
+            c = '&';
+        else if (is(line, start, end, "lt"))
+            c = '<';
+        else if (is(line, start, end, "gt"))
+            c = '>';
+        else if (is(line, start, end, "quot"))
+            c = '"';
+        else if (is(line, start, end, "apos"))
+            c = '\'';
+        else
+            return false;
+        // UTF-8, at most 4 bytes for an entity of at least 4
+        if (c < 0x80)
+            bytes[length++] = (byte) c;
+        else if (c < 0x800) {
+            bytes[length++] = (byte) (0xC0 | c >> 6);
+            bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        else if (c < 0x10000) {
+            bytes[length++] = (byte) (0xE0 | c >> 12);
+            bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        else {
+            bytes[length++] = (byte) (0xF0 | c >> 18);
+            bytes[length++] = (byte) (0x80 | c >> 12 & 0x3F);
+            bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        return true;
+    }
+
+    private static boolean is(byte[] line, int start, int end, String name) {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (line[start + i] != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse a decimal integer, MISSING if there are no digits.
+     */
+    static long parseLong(byte[] line, int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end)
+            return MISSING;
+        long value = 0;
+        for (; i < end; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9)
+                return MISSING;
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a coordinate with the parser of the queries.
+     * @return the coordinate, or MISSING_COORDINATE if the value is not a number
+     */
+    private static double parseCoordinate(byte[] line, int start, int end) {
+        double value = Query.parseDouble(line, start, end);
+        return Double.isNaN(value) ? MISSING_COORDINATE : value;
+    }
+
+    /**
+     * Parse "yyyy-MM-dd HH:mm:ss" to seconds since the epoch, as if it were
+     * UTC, or MISSING if it is not a valid date.
+     */
+    static long parseDateTime(byte[] line, int start, int end) {
+        if (end - start < 10 || line[start + 4] != '-' || line[start + 7] != '-')
+            return MISSING;
+        long year = parseLong(line, start, start + 4);
+        long month = parseLong(line, start + 5, start + 7);
+        long day = parseLong(line, start + 8, start + 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31)
+            return MISSING;
+        long seconds = 0;
+        if (end - start >= 19 && line[start + 13] == ':' && line[start + 16] == ':') {
+            long hour = parseLong(line, start + 11, start + 13);
+            long minute = parseLong(line, start + 14, start + 16);
+            long second = parseLong(line, start + 17, start + 19);
+            if (hour < 0 || minute < 0 || second < 0)
+                return MISSING;
+            seconds = hour * 3600 + minute * 60 + second;
+        }
+        // Days since the epoch of a proleptic Gregorian date
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        return days * 86400 + seconds;
+    }
+}
@@ -0,0 +1,541 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.vanlaere.flickr.crawler.PageCompression;
+import org.xml.sax.Attributes;
+
+/**
+ * This class streams photos into reusable PhotoBatch objects, either from
+ * the raw XML pages of a data folder or from the output of the parser.
+ *
+ * Both readers work on bytes: the pages and lines are scanned for their
+ * attributes, numbers are parsed in place and text is copied into the
+ * batch. No object is created per photo, and a consumer only has to loop
+ * over the arrays of the batch:
+ * <pre>
+ * PhotoBatch batch = new PhotoBatch();
+ * try (PhotoBatchReader reader = PhotoBatchReader.fromOutput("photos.txt")) {
+ *     while (reader.next(batch)) {
+ *         for (int i = 0; i &lt; batch.size(); i++)
+ *             ... batch.getLatitudes()[i] ...
+ *     }
+ * }
+ * </pre>
+ *
+ * Pages are read in the order of their directory and file names, compressed
+ * pages are inflated with the dictionary of the data folder. Fields that are
+ * not in the parser output, because its spec left them out, are missing in
+ * the batch.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public abstract class PhotoBatchReader implements Closeable {
+
+    /**
+     * The attribute names of the fields, to match them as bytes.
+     */
+    private static final ParseSpec.Field[] FIELDS = ParseSpec.Field.values();
+
+    private static final byte[][] NAMES = new byte[FIELDS.length][];
+
+    static {
+        for (int i = 0; i < FIELDS.length; i++)
+            NAMES[i] = FIELDS[i].getAttribute().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Read the raw XML pages of a data folder.
+     * @param dir The data folder
+     * @param spec The spec whose filters the photos must pass, or null to read every photo.
+     *             Its fields are ignored, a batch always holds all fields.
+     * @return the reader
+     * @throws IOException if the dictionary of the data folder cannot be read
+     */
+    public static PhotoBatchReader fromXml(String dir, ParseSpec spec) throws IOException {
+        return new XmlReader(dir, spec);
+    }
+
+    /**
+     * Read the output of the parser, a single file or a directory of partitions.
+     * @param path The output file, or the directory of a partitioned output
+     * @return the reader
+     * @throws IOException if the output cannot be opened
+     */
+    public static PhotoBatchReader fromOutput(String path) throws IOException {
+        return new OutputReader(path);
+    }
+
+    /**
+     * Clear a batch and fill it with the next photos.
+     * @param batch The batch to fill
+     * @return false if there were no photos left, and the batch is empty
+     * @throws IOException if reading fails
+     */
+    public abstract boolean next(PhotoBatch batch) throws IOException;
+
+    /**
+     * Find the field of an attribute name.
+     * @return the field, or null if it is not one the parser knows
+     */
+    static ParseSpec.Field field(byte[] line, int start, int end) {
+        int length = end - start;
+        outer:
+        for (int f = 0; f < NAMES.length; f++) {
+            byte[] name = NAMES[f];
+            if (name.length != length)
+                continue;
+            for (int i = 0; i < length; i++) {
+                if (line[start + i] != name[i])
+                    continue outer;
+            }
+            return FIELDS[f];
+        }
+        return null;
+    }
+
+    /**
+     * Read the lines of the parser output.
+     */
+    private static class OutputReader extends PhotoBatchReader {
+
+        private final List<File> files = new ArrayList<File>();
+
+        private int nextFile = 0;
+
+        private InputStream in = null;
+
+        private final byte[] buffer = new byte[1 << 20];
+
+        private int bufferPosition = 0;
+
+        private int bufferLength = 0;
+
+        private byte[] line = new byte[4096];
+
+        private final int[] fields = new int[4 * 32];
+
+        OutputReader(String path) throws IOException {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                // The partitions of the manifest, in the order of their dates, a
+                // run that failed wrote no manifest
+                File manifest = new File(file, PartitionedOutput.MANIFEST_FILE);
+                if (!manifest.isFile())
+                    throw new IOException("No " + PartitionedOutput.MANIFEST_FILE + " in " + path + ", the partitions are incomplete");
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                    String entry;
+                    while ((entry = in.readLine()) != null) {
+                        if (!entry.startsWith("#") && !entry.isEmpty())
+                            files.add(new File(file, entry.split("\t")[1]));
+                    }
+                }
+            }
+            else if (file.isFile())
+                files.add(file);
+            else
+                throw new IOException("No parser output at " + path);
+        }
+
+        @Override
+        public boolean next(PhotoBatch batch) throws IOException {
+            batch.clear();
+            while (!batch.isFull()) {
+                int length = readLine();
+                if (length < 0)
+                    break;
+                if (length == 0)
+                    continue;
+                int nrFields = Query.split(line, length, fields);
+                batch.begin();
+                for (int f = 0; f < nrFields; f++) {
+                    ParseSpec.Field field = field(line, fields[4 * f], fields[4 * f + 1]);
+                    if (field != null)
+                        batch.set(field, line, fields[4 * f + 2], fields[4 * f + 3], false);
+                }
+                batch.commit();
+            }
+            return batch.size() > 0;
+        }
+
+        /**
+         * Read the next line into the line buffer, moving on to the next file at the end of one.
+         * @return the length of the line, or -1 after the last file
+         */
+        private int readLine() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (nextFile == files.size())
+                        return -1;
+                    in = new FileInputStream(files.get(nextFile++));
+                    bufferPosition = 0;
+                    bufferLength = 0;
+                }
+                int length = 0;
+                boolean newline = false;
+                while (!newline) {
+                    if (bufferPosition == bufferLength) {
+                        bufferLength = Math.max(0, in.read(buffer));
+                        bufferPosition = 0;
+                        if (bufferLength == 0)
+                            break;
+                    }
+                    int end = bufferPosition;
+                    while (end < bufferLength && buffer[end] != '\n')
+                        end++;
+                    if (length + end - bufferPosition > line.length)
+                        line = Arrays.copyOf(line, Math.max(line.length * 2, length + end - bufferPosition));
+                    System.arraycopy(buffer, bufferPosition, line, length, end - bufferPosition);
+                    length += end - bufferPosition;
+                    newline = end < bufferLength;
+                    bufferPosition = newline ? end + 1 : end;
+                }
+                if (length > 0 && line[length - 1] == '\r')
+                    length--;
+                if (newline || length > 0)
+                    return length;
+                in.close();
+                in = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+            nextFile = files.size();
+        }
+    }
+
+    /**
+     * Scan the photo elements of the raw XML pages.
+     */
+    private static class XmlReader extends PhotoBatchReader {
+
+        private static final byte[] PHOTO = "<photo".getBytes(StandardCharsets.US_ASCII);
+
+        private final File root;
+
+        private final ParseSpec spec;
+
+        private final PageCompression compression;
+
+        /**
+         * The directories still to read, and the pages of the current one.
+         */
+        private final List<File> dirs = new ArrayList<File>();
+
+        private int nextDir = 0;
+
+        private String[] pages = new String[0];
+
+        private File pageDir = null;
+
+        private int nextPage = 0;
+
+        /**
+         * The current page, and the position of the next photo in it.
+         */
+        private byte[] page = new byte[1 << 18];
+
+        private int pageLength = 0;
+
+        private int position = 0;
+
+        /**
+         * Start and end of the name and the value of every attribute of a photo.
+         */
+        private int[] attributes = new int[4 * 32];
+
+        private int nrAttributes = 0;
+
+        private final ScannedAttributes view = new ScannedAttributes();
+
+        XmlReader(String dir, ParseSpec spec) throws IOException {
+            this.root = new File(dir);
+            if (!root.isDirectory())
+                throw new IOException("Not a data folder: " + dir);
+            this.spec = spec;
+            this.compression = PageCompression.open(dir);
+            // The pages directly in the data folder, then those of every chunk directory
+            dirs.add(root);
+            addDirs(root);
+        }
+
+        private void addDirs(File dir) {
+            File[] children = dir.listFiles();
+            if (children == null)
+                return;
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    dirs.add(child);
+                    addDirs(child);
+                }
+            }
+        }
+
+        @Override
+        public boolean next(PhotoBatch batch) throws IOException {
+            batch.clear();
+            while (!batch.isFull()) {
+                if (!nextPhoto()) {
+                    if (!nextPage())
+                        break;
+                    continue;
+                }
+                if (spec != null && !spec.accept(view))
+                    continue;
+                batch.begin();
+                for (int a = 0; a < nrAttributes; a++) {
+                    ParseSpec.Field field = field(page, attributes[4 * a], attributes[4 * a + 1]);
+                    if (field != null)
+                        batch.set(field, page, attributes[4 * a + 2], attributes[4 * a + 3], true);
+                }
+                batch.commit();
+            }
+            return batch.size() > 0;
+        }
+
+        /**
+         * Load the next page, listing the next directory when needed.
+         * @return false after the last page
+         */
+        private boolean nextPage() throws IOException {
+            while (nextPage == pages.length) {
+                if (nextDir == dirs.size())
+                    return false;
+                pageDir = dirs.get(nextDir++);
+                String[] names = pageDir.list();
+                List<String> xml = new ArrayList<String>();
+                if (names != null) {
+                    for (String name : names) {
+                        if (name.endsWith(".xml"))
+                            xml.add(name);
+                    }
+                }
+                pages = xml.toArray(new String[xml.size()]);
+                Arrays.sort(pages);
+                nextPage = 0;
+            }
+            File file = new File(pageDir, pages[nextPage++]);
+            pageLength = 0;
+            position = 0;
+            try (InputStream in = compression.read(file)) {
+                int n;
+                while ((n = in.read(page, pageLength, page.length - pageLength)) >= 0) {
+                    pageLength += n;
+                    if (pageLength == page.length)
+                        page = Arrays.copyOf(page, page.length * 2);
+                }
+            } catch (IOException e) {
+                System.out.println("Error in file " + file);
+                pageLength = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Find the next photo element of the page and record its attributes.
+         * @return false at the end of the page
+         */
+        private boolean nextPhoto() {
+            int start = indexOf(page, position, pageLength, PHOTO);
+            while (start >= 0 && start + PHOTO.length < pageLength && !isSpace(page[start + PHOTO.length]))
+                start = indexOf(page, start + 1, pageLength, PHOTO);
+            if (start < 0 || start + PHOTO.length >= pageLength) {
+                position = pageLength;
+                return false;
+            }
+            int pos = start + PHOTO.length;
+            nrAttributes = 0;
+            while (pos < pageLength) {
+                while (pos < pageLength && isSpace(page[pos]))
+                    pos++;
+                if (pos >= pageLength || page[pos] == '/' || page[pos] == '>')
+                    break;
+                int nameStart = pos;
+                while (pos < pageLength && page[pos] != '=' && !isSpace(page[pos]))
+                    pos++;
+                int nameEnd = pos;
+                while (pos < pageLength && (isSpace(page[pos]) || page[pos] == '='))
+                    pos++;
+                if (pos >= pageLength || (page[pos] != '"' && page[pos] != '\''))
+                    break;
+                byte quote = page[pos];
+                int valueStart = ++pos;
+                while (pos < pageLength && page[pos] != quote)
+                    pos++;
+                if (4 * nrAttributes == attributes.length)
+                    attributes = Arrays.copyOf(attributes, attributes.length * 2);
+                attributes[4 * nrAttributes] = nameStart;
+                attributes[4 * nrAttributes + 1] = nameEnd;
+                attributes[4 * nrAttributes + 2] = valueStart;
+                attributes[4 * nrAttributes + 3] = pos;
+                nrAttributes++;
+                pos++;
+            }
+            position = pos;
+            return true;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+        }
+
+        private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+            outer:
+            for (int i = from; i + pattern.length <= to; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j])
+                        continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            nextDir = dirs.size();
+            nextPage = pages.length;
+            position = pageLength;
+        }
+
+        /**
+         * The attributes of the current photo, as the spec filters them. Only
+         * the values the spec asks for are turned into Strings.
+         */
+        private class ScannedAttributes implements Attributes {
+
+            private final PhotoBatch decoder = new PhotoBatch(1);
+
+            @Override
+            public int getLength() {
+                return nrAttributes;
+            }
+
+            @Override
+            public String getURI(int index) {
+                return "";
+            }
+
+            @Override
+            public String getLocalName(int index) {
+                return getQName(index);
+            }
+
+            @Override
+            public String getQName(int index) {
+                if (index < 0 || index >= nrAttributes)
+                    return null;
+                return new String(page, attributes[4 * index], attributes[4 * index + 1] - attributes[4 * index],
+                        StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String getType(int index) {
+                return index < 0 || index >= nrAttributes ? null : "CDATA";
+            }
+
+            @Override
+            public String getValue(int index) {
+                if (index < 0 || index >= nrAttributes)
+                    return null;
+                // Decode the entities like the SAX parser would
+                decoder.clear();
+                decoder.begin();
+                decoder.set(ParseSpec.Field.TITLE, page, attributes[4 * index + 2], attributes[4 * index + 3], true);
+                return decoder.getText(0, PhotoBatch.Text.TITLE);
+            }
+
+            @Override
+            public int getIndex(String uri, String localName) {
+                return getIndex(localName);
+            }
+
+            @Override
+            public int getIndex(String qName) {
+                for (int a = 0; a < nrAttributes; a++) {
+                    int start = attributes[4 * a];
+                    if (attributes[4 * a + 1] - start != qName.length())
+                        continue;
+                    boolean equal = true;
+                    for (int i = 0; i < qName.length() && equal; i++)
+                        equal = page[start + i] == qName.charAt(i);
+                    if (equal)
+                        return a;
+                }
+                return -1;
+            }
+
+            @Override
+            public String getType(String uri, String localName) {
+                return getType(getIndex(localName));
+            }
+
+            @Override
+            public String getType(String qName) {
+                return getType(getIndex(qName));
+            }
+
+            @Override
+            public String getValue(String uri, String localName) {
+                return getValue(getIndex(localName));
+            }
+
+            @Override
+            public String getValue(String qName) {
+                return getValue(getIndex(qName));
+            }
+        }
+    }
+
+    /**
+     * Count the photos of a data folder or parser output, to check a reader
+     * and measure its speed.
+     * Usage: xml DATA_FOLDER [spec] | output FINAL_FILE
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("xml") || args[0].equals("output"))) {
+            System.out.println("Usage: xml DATA_FOLDER [spec] | output FINAL_FILE");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        PhotoBatch batch = new PhotoBatch();
+        long photos = 0;
+        long geotagged = 0;
+        long views = 0;
+        long textBytes = 0;
+        try (PhotoBatchReader reader = args[0].equals("xml")
+                ? fromXml(args[1], args.length > 2 ? ParseSpec.parse(args[2]) : null)
+                : fromOutput(args[1])) {
+            while (reader.next(batch)) {
+                double[] latitudes = batch.getLatitudes();
+                int[] viewCounts = batch.getViews();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (latitudes[i] != PhotoBatch.MISSING_COORDINATE)
+                        geotagged++;
+                    if (viewCounts[i] > 0)
+                        views += viewCounts[i];
+                    textBytes += batch.textLength(i, PhotoBatch.Text.TAGS);
+                }
+                photos += batch.size();
+            }
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Photos: " + photos + ", with coordinates: " + geotagged + ", views: " + views
+                + ", tag bytes: " + textBytes);
+        System.out.println("Read in " + millis + " ms, " + (photos * 1000 / millis) + " photos/s");
+    }
+}
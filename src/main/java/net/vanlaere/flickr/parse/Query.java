@@ -0,0 +1,622 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs group-by/count aggregations over the output of the parser.
+ *
+ * The output file is memory-mapped and split on line boundaries into ranges
+ * that are processed in parallel. Every worker counts into its own primitive
+ * keyed hash map; the maps are merged at the end. String keys (owners, tags)
+ * are represented by a 64 bit hash of their bytes, so no String is created
+ * per row, only one per distinct key.
+ *
+ * Usage: outputfile group=&lt;key&gt; [top=k] [threads=n] [filter ...]
+ *
+ * Keys: any field of the output (e.g. owner, license, views), tag (counts
+ * every tag of a photo), day or month (from datetaken), uploadday or
+ * uploadmonth (from dateupload), cell or cell:level (grid cell, see GridIndex).
+ *
+ * Filters: field=value, field!=value, field&lt;value, field&lt;=value,
+ * field&gt;value, field&gt;=value and field~text (contains, for tags this
+ * matches a whole tag). Values are compared as numbers when both sides are
+ * numeric, as text otherwise.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class Query {
+
+    /**
+     * Maximum size of a range handled by one task; a mapped buffer is limited to 2 GB.
+     */
+    private static final long MAX_RANGE = 256L * 1024 * 1024;
+
+    private enum KeyType {
+        NUMBER, STRING, TAG, DAY, MONTH, UPLOAD_DAY, UPLOAD_MONTH, CELL
+    }
+
+    private static final List<String> NUMERIC_FIELDS = Arrays.asList(
+            "id", "license", "lastupdate", "accuracy", "woeid", "views", "dateupload");
+
+    /**
+     * A filter on a single field.
+     */
+    private static class Filter {
+
+        private final byte[] name;
+
+        private final String op;
+
+        private final String value;
+
+        private final byte[] bytes;
+
+        private final boolean numeric;
+
+        private final double number;
+
+        Filter(String field, String op, String value) {
+            this.name = field.getBytes(StandardCharsets.UTF_8);
+            this.op = op;
+            this.value = value;
+            this.bytes = value.getBytes(StandardCharsets.UTF_8);
+            double parsed = 0;
+            boolean isNumber = true;
+            try {
+                parsed = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                isNumber = false;
+            }
+            this.numeric = isNumber;
+            this.number = parsed;
+        }
+
+        static Filter parse(String expression) {
+            String[] ops = {"!=", "<=", ">=", "=", "<", ">", "~"};
+            int best = -1;
+            String bestOp = null;
+            for (String op : ops) {
+                int index = expression.indexOf(op);
+                if (index > 0 && (best < 0 || index < best || (index == best && op.length() > bestOp.length()))) {
+                    best = index;
+                    bestOp = op;
+                }
+            }
+            if (best < 0)
+                throw new IllegalArgumentException("Not a filter: " + expression);
+            return new Filter(expression.substring(0, best), bestOp, expression.substring(best + bestOp.length()));
+        }
+
+        boolean test(byte[] line, int start, int end) {
+            if (op.equals("~"))
+                return Arrays.equals(name, "tags".getBytes(StandardCharsets.UTF_8))
+                        ? containsToken(line, start, end) : contains(line, start, end);
+            int compare;
+            if (numeric) {
+                double parsed = parseDouble(line, start, end);
+                if (Double.isNaN(parsed))
+                    return op.equals("!=");
+                compare = Double.compare(parsed, number);
+            }
+            else
+                compare = compareBytes(line, start, end);
+            switch (op) {
+                case "=": return compare == 0;
+                case "!=": return compare != 0;
+                case "<": return compare < 0;
+                case "<=": return compare <= 0;
+                case ">": return compare > 0;
+                default: return compare >= 0;
+            }
+        }
+
+        private int compareBytes(byte[] line, int start, int end) {
+            int n = Math.min(end - start, bytes.length);
+            for (int i = 0; i < n; i++) {
+                int c = (line[start + i] & 0xFF) - (bytes[i] & 0xFF);
+                if (c != 0)
+                    return c;
+            }
+            return (end - start) - bytes.length;
+        }
+
+        private boolean contains(byte[] line, int start, int end) {
+            outer:
+            for (int i = start; i + bytes.length <= end; i++) {
+                for (int j = 0; j < bytes.length; j++) {
+                    if (line[i + j] != bytes[j])
+                        continue outer;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private boolean containsToken(byte[] line, int start, int end) {
+            int tokenStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i == end || line[i] == ' ') {
+                    if (i - tokenStart == bytes.length && compareBytes(line, tokenStart, i) == 0)
+                        return true;
+                    tokenStart = i + 1;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The counts of a single task.
+     */
+    private static class Result {
+
+        private LongCountMap counts = new LongCountMap();
+
+        private final Map<Long, String> labels = new HashMap<Long, String>();
+
+        private long rows = 0;
+
+        private long matched = 0;
+    }
+
+    private final KeyType keyType;
+
+    private final byte[] groupField;
+
+    private final String group;
+
+    private int cellLevel = GridIndex.DEFAULT_LEVEL;
+
+    private final List<Filter> filters = new ArrayList<Filter>();
+
+    /**
+     * Construct a query grouping on a key.
+     * @param group The key to group on, see the class documentation
+     */
+    public Query(String group) {
+        this.group = group;
+        String field;
+        switch (group) {
+            case "tag": keyType = KeyType.TAG; field = "tags"; break;
+            case "day": keyType = KeyType.DAY; field = "datetaken"; break;
+            case "month": keyType = KeyType.MONTH; field = "datetaken"; break;
+            case "uploadday": keyType = KeyType.UPLOAD_DAY; field = "dateupload"; break;
+            case "uploadmonth": keyType = KeyType.UPLOAD_MONTH; field = "dateupload"; break;
+            default:
+                if (group.equals("cell") || group.startsWith("cell:")) {
+                    keyType = KeyType.CELL;
+                    field = "latitude";
+                    if (group.startsWith("cell:"))
+                        cellLevel = Integer.parseInt(group.substring(5));
+                }
+                else {
+                    keyType = NUMERIC_FIELDS.contains(group) ? KeyType.NUMBER : KeyType.STRING;
+                    field = group;
+                }
+        }
+        this.groupField = field.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add a filter, e.g. "license=4", "views>100" or "tags~paris".
+     * @param expression The filter expression
+     */
+    public void addFilter(String expression) {
+        filters.add(Filter.parse(expression));
+    }
+
+    /**
+     * Run the query.
+     * @param filename The output file of the parser
+     * @param nrThreads Number of threads
+     * @param top Number of groups to return, 0 for all
+     * @return the counts per key label, sorted by decreasing count, limited to top if top &gt; 0
+     * @throws IOException if the file cannot be read
+     */
+    public List<Map.Entry<String, Long>> run(String filename, int nrThreads, int top) throws IOException {
+        long start = System.currentTimeMillis();
+        Result total = new Result();
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            final FileChannel channel = file.getChannel();
+            long size = channel.size();
+            // Cut the file in ranges on line boundaries
+            long rangeSize = Math.max(1, Math.min(MAX_RANGE, size / Math.max(1, nrThreads) + 1));
+            List<long[]> ranges = new ArrayList<long[]>();
+            long from = 0;
+            while (from < size) {
+                long to = Math.min(size, from + rangeSize);
+                to = nextLine(file, to, size);
+                ranges.add(new long[]{from, to});
+                from = to;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final long[] range : ranges) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws IOException {
+                        return scan(channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]));
+                    }
+                }));
+            }
+            executor.shutdown();
+            try {
+                for (Future<Result> future : futures) {
+                    Result result = future.get();
+                    total.counts.addAll(result.counts);
+                    for (Map.Entry<Long, String> label : result.labels.entrySet()) {
+                        if (!total.labels.containsKey(label.getKey()))
+                            total.labels.put(label.getKey(), label.getValue());
+                    }
+                    total.rows += result.rows;
+                    total.matched += result.matched;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Error running query", e);
+            }
+        }
+        if (keyType == KeyType.UPLOAD_MONTH) {
+            // Fold the days into yyyyMM months
+            LongCountMap months = new LongCountMap();
+            for (long day : total.counts.keys()) {
+                String date = PartitionedOutput.date(day * 86400);
+                months.add(Long.parseLong(date.substring(0, 4) + date.substring(5, 7)), total.counts.get(day));
+            }
+            total.counts = months;
+        }
+        List<Map.Entry<String, Long>> entries = select(total, top);
+        System.err.println(total.rows + " rows, " + total.matched + " matched, " + total.counts.size()
+                + " groups (" + (System.currentTimeMillis() - start) + " ms)");
+        return entries;
+    }
+
+    /**
+     * Find the end of the line containing a position.
+     */
+    private static long nextLine(RandomAccessFile file, long position, long size) throws IOException {
+        if (position >= size)
+            return size;
+        file.seek(position);
+        byte[] buf = new byte[8192];
+        long pos = position;
+        int len;
+        while ((len = file.read(buf)) > 0) {
+            for (int i = 0; i < len; i++) {
+                if (buf[i] == '\n')
+                    return pos + i + 1;
+            }
+            pos += len;
+        }
+        return size;
+    }
+
+    /**
+     * Count the rows of a range.
+     */
+    private Result scan(MappedByteBuffer buffer) {
+        Result result = new Result();
+        byte[] line = new byte[4096];
+        // Start and end of every field value, by field index in the line
+        int[] fields = new int[4 * 32];
+        int limit = buffer.limit();
+        int position = 0;
+        while (position < limit) {
+            int length = 0;
+            while (position < limit) {
+                byte b = buffer.get(position++);
+                if (b == '\n')
+                    break;
+                if (length == line.length)
+                    line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+            if (length == 0)
+                continue;
+            result.rows++;
+            int nrFields = split(line, length, fields);
+            boolean match = true;
+            for (Filter filter : filters) {
+                int f = find(line, fields, nrFields, filter.name);
+                if (f < 0 || !filter.test(line, fields[4 * f + 2], fields[4 * f + 3])) {
+                    match = false;
+                    break;
+                }
+            }
+            if (!match)
+                continue;
+            result.matched++;
+            int f = find(line, fields, nrFields, groupField);
+            if (f < 0)
+                continue;
+            count(line, fields[4 * f + 2], fields[4 * f + 3], fields, nrFields, result);
+        }
+        return result;
+    }
+
+    private void count(byte[] line, int start, int end, int[] fields, int nrFields, Result result) {
+        switch (keyType) {
+            case NUMBER:
+                result.counts.add(parseLong(line, start, end), 1);
+                break;
+            case STRING:
+                addString(line, start, end, result);
+                break;
+            case TAG:
+                int tokenStart = start;
+                for (int i = start; i <= end; i++) {
+                    if (i == end || line[i] == ' ') {
+                        if (i > tokenStart)
+                            addString(line, tokenStart, i, result);
+                        tokenStart = i + 1;
+                    }
+                }
+                break;
+            case DAY:
+            case MONTH:
+                // yyyy-MM-dd as the number yyyyMMdd or yyyyMM
+                if (end - start >= 10) {
+                    long key = parseLong(line, start, start + 4) * 100 + parseLong(line, start + 5, start + 7);
+                    if (keyType == KeyType.DAY)
+                        key = key * 100 + parseLong(line, start + 8, start + 10);
+                    result.counts.add(key, 1);
+                }
+                break;
+            case UPLOAD_DAY:
+            case UPLOAD_MONTH:
+                // Counted per day, months are folded after the merge
+                result.counts.add(parseLong(line, start, end) / 86400, 1);
+                break;
+            case CELL:
+                int lon = find(line, fields, nrFields, LONGITUDE);
+                if (lon >= 0) {
+                    double latitude = parseDouble(line, start, end);
+                    double longitude = parseDouble(line, fields[4 * lon + 2], fields[4 * lon + 3]);
+                    if (!Double.isNaN(latitude) && !Double.isNaN(longitude))
+                        result.counts.add(GridIndex.cell(cellLevel, latitude, longitude), 1);
+                }
+                break;
+        }
+    }
+
+    private static final byte[] LONGITUDE = "longitude".getBytes(StandardCharsets.UTF_8);
+
+    private static void addString(byte[] line, int start, int end, Result result) {
+        // 64 bit FNV-1a hash of the bytes
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= line[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        if (result.counts.add(hash, 1))
+            result.labels.put(hash, new String(line, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Split a line of the parser output into its name="value" fields.
+     * @return the number of fields found
+     */
+    static int split(byte[] line, int length, int[] fields) {
+        int n = 0;
+        int pos = 0;
+        while (pos < length && 4 * n < fields.length) {
+            int nameStart = pos;
+            while (pos < length && line[pos] != '=')
+                pos++;
+            if (pos + 1 >= length || line[pos + 1] != '"')
+                break;
+            int nameEnd = pos;
+            int valueStart = pos + 2;
+            int valueEnd = -1;
+            // The value ends at a quote followed by ; and the next name, or at the end of the line
+            for (int i = valueStart; i < length; i++) {
+                if (line[i] == '"' && (i == length - 1 || (line[i + 1] == ';' && isName(line, i + 2, length)))) {
+                    valueEnd = i;
+                    break;
+                }
+            }
+            if (valueEnd < 0)
+                break;
+            fields[4 * n] = nameStart;
+            fields[4 * n + 1] = nameEnd;
+            fields[4 * n + 2] = valueStart;
+            fields[4 * n + 3] = valueEnd;
+            n++;
+            pos = valueEnd + 2;
+        }
+        return n;
+    }
+
+    private static boolean isName(byte[] line, int pos, int length) {
+        int start = pos;
+        while (pos < length && ((line[pos] >= 'a' && line[pos] <= 'z') || line[pos] == '_'))
+            pos++;
+        return pos > start && pos + 1 < length && line[pos] == '=' && line[pos + 1] == '"';
+    }
+
+    private static int find(byte[] line, int[] fields, int nrFields, byte[] name) {
+        for (int f = 0; f < nrFields; f++) {
+            int start = fields[4 * f];
+            if (fields[4 * f + 1] - start != name.length)
+                continue;
+            boolean equal = true;
+            for (int i = 0; i < name.length; i++) {
+                if (line[start + i] != name[i]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal)
+                return f;
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] line, int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9)
+                break;
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Largest mantissa that is exact in a double.
+     */
+    private static final long MAX_EXACT = 1L << 53;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parse a number from a range of bytes, without creating a String. A
+     * plain decimal with few enough digits is the exact mantissa divided by an
+     * exact power of ten, which rounds the same as Double.parseDouble. Any
+     * other value goes through Double.parseDouble.
+     * @return the number, or NaN if the value is not a number
+     */
+    static double parseDouble(byte[] line, int start, int end) {
+        int i = start;
+        boolean negative = i < end && line[i] == '-';
+        if (negative)
+            i++;
+        long mantissa = 0;
+        int decimals = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point)
+                    decimals++;
+                if (mantissa >= MAX_EXACT)
+                    break;
+            }
+            else if (b == '.' && !point)
+                point = true;
+            else
+                break;
+        }
+        if (i == end && digits > 0 && decimals < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[decimals];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(line, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Sort the groups by count and turn the keys into labels.
+     */
+    private List<Map.Entry<String, Long>> select(final Result total, int top) {
+        long[] keys = total.counts.keys();
+        final LongCountMap counts = total.counts;
+        Comparator<Long> byCount = new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Long.compare(counts.get(a), counts.get(b));
+            }
+        };
+        List<Long> selected = new ArrayList<Long>();
+        if (top > 0) {
+            // Keep the top k in a min-heap
+            PriorityQueue<Long> heap = new PriorityQueue<Long>(top + 1, byCount);
+            for (long key : keys) {
+                heap.add(key);
+                if (heap.size() > top)
+                    heap.poll();
+            }
+            selected.addAll(heap);
+        }
+        else {
+            for (long key : keys)
+                selected.add(key);
+        }
+        Collections.sort(selected, Collections.reverseOrder(byCount));
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        for (long key : selected)
+            entries.add(new AbstractMap.SimpleEntry<String, Long>(label(key, total), counts.get(key)));
+        return entries;
+    }
+
+    private String label(long key, Result total) {
+        switch (keyType) {
+            case STRING:
+            case TAG:
+                return total.labels.get(key);
+            case DAY:
+                return String.format("%04d-%02d-%02d", key / 10000, (key / 100) % 100, key % 100);
+            case MONTH:
+            case UPLOAD_MONTH:
+                return String.format("%04d-%02d", key / 100, key % 100);
+            case UPLOAD_DAY:
+                return PartitionedOutput.date(key * 86400);
+            case CELL:
+                return cellLevel + "/" + key;
+            default:
+                return Long.toString(key);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: outputfile group=<key> [top=k] [threads=n] [filter ...]");
+            System.out.println(" key     \tAny field, or tag, day, month, uploadday, uploadmonth, cell, cell:level");
+            System.out.println(" filter  \tfield=value, field!=value, field<value, field<=value, field>value,");
+            System.out.println("         \tfield>=value, field~text");
+            return;
+        }
+        String group = null;
+        int top = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> filters = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("group="))
+                group = args[i].substring(6);
+            else if (args[i].startsWith("top="))
+                top = Integer.parseInt(args[i].substring(4));
+            else if (args[i].startsWith("threads="))
+                threads = Integer.parseInt(args[i].substring(8));
+            else
+                filters.add(args[i]);
+        }
+        if (group == null) {
+            System.out.println("Missing group=<key>");
+            return;
+        }
+        Query query = new Query(group);
+        for (String filter : filters)
+            query.addFilter(filter);
+        for (Map.Entry<String, Long> entry : query.run(args[0], threads, top))
+            System.out.println(entry.getKey() + "\t" + entry.getValue());
+    }
+}
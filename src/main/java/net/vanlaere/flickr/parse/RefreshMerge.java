@@ -0,0 +1,267 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.vanlaere.flickr.metrics.Trace;
+
+/**
+ * This class merges the output of a refresh into a parsed data set, by photo
+ * id.
+ *
+ * A refresh (see RefreshCrawler) only downloads the photos that changed since
+ * the previous one. Once its pages are parsed with the spec of the data set, the
+ * records of the refresh replace the records with the same id in the data
+ * set, unless the record in the data set has a newer lastupdate. Photos that
+ * are not in the data set yet are added at the end. The data set is streamed
+ * once, only the records of the refresh are kept in memory.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class RefreshMerge {
+
+    private static final byte[] ID = "id".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] LASTUPDATE = "lastupdate".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A record of the refresh.
+     */
+    private static class Update {
+
+        private final byte[] line;
+
+        private final long lastupdate;
+
+        private boolean merged = false;
+
+        Update(byte[] line, long lastupdate) {
+            this.line = line;
+            this.lastupdate = lastupdate;
+        }
+    }
+
+    /**
+     * Reads the lines of a file as bytes, without decoding them.
+     */
+    private static class LineReader {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[1 << 16];
+
+        private int position = 0;
+
+        private int limit = 0;
+
+        private byte[] line = new byte[4096];
+
+        private int length;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        boolean next() throws IOException {
+            length = 0;
+            boolean read = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        break;
+                    }
+                }
+                read = true;
+                int end = position;
+                while (end < limit && buffer[end] != '\n')
+                    end++;
+                if (length + end - position > line.length)
+                    line = Arrays.copyOf(line, Math.max(2 * line.length, length + end - position));
+                System.arraycopy(buffer, position, line, length, end - position);
+                length += end - position;
+                position = end;
+                if (end < limit) {
+                    position++;
+                    break;
+                }
+            }
+            if (length > 0 && line[length - 1] == '\r')
+                length--;
+            return read;
+        }
+    }
+
+    private long replaced = 0;
+
+    private long added = 0;
+
+    private long kept = 0;
+
+    private long older = 0;
+
+    /**
+     * Merge a refresh into a data set.
+     * @param dataset The parsed data set
+     * @param delta The parsed pages of the refresh, with the spec of the data set
+     * @param output The merged data set, may be the data set itself
+     * @return the merge, with its counts
+     * @throws IOException if a file cannot be read or written, or a record has no id
+     */
+    public static RefreshMerge merge(String dataset, String delta, String output) throws IOException {
+        Trace.Span span = Trace.get().begin("merge", "merge.refresh", delta);
+        try {
+            RefreshMerge merge = new RefreshMerge();
+            merge.merge(dataset, delta, new File(output));
+            return merge;
+        } finally {
+            span.end();
+        }
+    }
+
+    private void merge(String dataset, String delta, File target) throws IOException {
+        Map<Long, Update> updates = readUpdates(delta);
+        File temp = new File(target.getPath() + ".tmp");
+        int[] fields = new int[4 * 32];
+        try (InputStream in = new FileInputStream(dataset);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+            LineReader reader = new LineReader(in);
+            while (reader.next()) {
+                if (reader.length == 0)
+                    continue;
+                int n = Query.split(reader.line, reader.length, fields);
+                long id = value(reader.line, fields, n, ID, dataset);
+                Update update = updates.get(id);
+                if (update != null && !update.merged) {
+                    update.merged = true;
+                    long lastupdate = value(reader.line, fields, n, LASTUPDATE, null);
+                    // Never go back to an older version of a photo
+                    if (update.lastupdate < 0 || lastupdate < 0 || update.lastupdate >= lastupdate) {
+                        out.write(update.line);
+                        out.write('\n');
+                        replaced++;
+                        continue;
+                    }
+                    older++;
+                }
+                else
+                    kept++;
+                out.write(reader.line, 0, reader.length);
+                out.write('\n');
+            }
+            // The photos that are new to the data set
+            for (Update update : updates.values()) {
+                if (!update.merged) {
+                    out.write(update.line);
+                    out.write('\n');
+                    added++;
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the records of a refresh, the newest one of every photo.
+     */
+    private Map<Long, Update> readUpdates(String delta) throws IOException {
+        Map<Long, Update> updates = new LinkedHashMap<Long, Update>();
+        Map<Long, Long> versions = new HashMap<Long, Long>();
+        int[] fields = new int[4 * 32];
+        try (InputStream in = new FileInputStream(delta)) {
+            LineReader reader = new LineReader(in);
+            while (reader.next()) {
+                if (reader.length == 0)
+                    continue;
+                int n = Query.split(reader.line, reader.length, fields);
+                long id = value(reader.line, fields, n, ID, delta);
+                long lastupdate = value(reader.line, fields, n, LASTUPDATE, null);
+                Long version = versions.get(id);
+                // A photo can be listed twice, in the overlap with the previous refresh
+                if (version == null || lastupdate >= version) {
+                    versions.put(id, lastupdate);
+                    updates.put(id, new Update(Arrays.copyOf(reader.line, reader.length), lastupdate));
+                }
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * @param file The file of the record, to report a missing value, or null if the value is optional
+     * @return the numeric value of a field of a record, -1 if it is missing
+     */
+    private static long value(byte[] line, int[] fields, int n, byte[] name, String file) throws IOException {
+        for (int i = 0; i < n; i++) {
+            int nameStart = fields[4 * i];
+            int nameEnd = fields[4 * i + 1];
+            if (nameEnd - nameStart != name.length)
+                continue;
+            boolean match = true;
+            for (int j = 0; j < name.length && match; j++)
+                match = line[nameStart + j] == name[j];
+            if (!match)
+                continue;
+            long value = 0;
+            int start = fields[4 * i + 2];
+            int end = fields[4 * i + 3];
+            for (int j = start; j < end; j++) {
+                if (line[j] < '0' || line[j] > '9')
+                    return -1;
+                value = 10 * value + (line[j] - '0');
+            }
+            return end > start ? value : -1;
+        }
+        if (file != null)
+            throw new IOException("A record in " + file + " has no " + new String(name, StandardCharsets.US_ASCII)
+                    + ", parse it with a spec that has the field");
+        return -1;
+    }
+
+    /**
+     * @return the number of photos of the data set replaced by their update
+     */
+    public long getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * @return the number of photos of the refresh that were not in the data set
+     */
+    public long getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the number of photos of the data set that were not refreshed
+     */
+    public long getKept() {
+        return kept;
+    }
+
+    /**
+     * @return the number of photos of the refresh older than the one in the data set
+     */
+    public long getOlder() {
+        return older;
+    }
+}
@@ -0,0 +1,415 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import net.vanlaere.flickr.metrics.Trace;
+
+/**
+ * This class describes the output part of one shard of a sharded parse, and
+ * merges the parts of all shards into the final output.
+ *
+ * Every shard parses the top level directories of the data folder that
+ * FileDiscovery assigns to it, and writes part-NNNNN.txt and its manifest
+ * part-NNNNN.tsv to a shared output directory. The manifest holds the shard,
+ * the number of shards, the spec, the number of top level directories of the
+ * data folder, every directory of the shard with its number of files and
+ * records, and the size, number of records and CRC-32 of the part.
+ *
+ * Merging checks that the manifests belong together (same number of shards
+ * and directories, same spec, every shard exactly once, every directory in
+ * exactly one shard and in the right one) and that every part still has its
+ * size, records and checksum, while the parts are copied one after the other
+ * into the final file. Nothing is parsed again.
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class ShardManifest {
+
+    /**
+     * A top level directory of the shard.
+     */
+    public static class Directory {
+
+        private final String name;
+
+        private final int index;
+
+        private long files = 0;
+
+        private long records = 0;
+
+        Directory(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the position of the directory among the sorted top level directories, "." first
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        void add(long files, long records) {
+            this.files += files;
+            this.records += records;
+        }
+    }
+
+    private final int shard;
+
+    private final int shards;
+
+    private final String spec;
+
+    private final int totalDirectories;
+
+    private final Map<String, Directory> directories = new LinkedHashMap<String, Directory>();
+
+    private long records = 0;
+
+    private long bytes = 0;
+
+    private long checksum = 0;
+
+    /**
+     * Construct the manifest of a shard.
+     * @param shard The shard
+     * @param shards The number of shards
+     * @param spec The spec the shard is parsed with
+     * @param totalDirectories The number of top level directories of the data folder, including "."
+     */
+    public ShardManifest(int shard, int shards, String spec, int totalDirectories) {
+        this.shard = shard;
+        this.shards = shards;
+        this.spec = spec;
+        this.totalDirectories = totalDirectories;
+    }
+
+    /**
+     * @param shard A shard
+     * @return the name of the output part of the shard
+     */
+    public static String partName(int shard) {
+        return String.format("part-%05d.txt", shard);
+    }
+
+    /**
+     * @param shard A shard
+     * @return the name of the manifest of the shard
+     */
+    public static String manifestName(int shard) {
+        return String.format("part-%05d.tsv", shard);
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    public int getTotalDirectories() {
+        return totalDirectories;
+    }
+
+    public Iterable<Directory> getDirectories() {
+        return directories.values();
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Add a directory of the shard, or files and records to it.
+     * @param name The name of the top level directory
+     * @param index Its position among the sorted top level directories
+     * @param files Number of files parsed
+     * @param records Number of records written
+     */
+    public void addDirectory(String name, int index, long files, long records) {
+        Directory directory = directories.get(name);
+        if (directory == null) {
+            directory = new Directory(name, index);
+            directories.put(name, directory);
+        }
+        directory.add(files, records);
+    }
+
+    /**
+     * Set what was written to the part.
+     */
+    public void setPart(long records, long bytes, long checksum) {
+        this.records = records;
+        this.bytes = bytes;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Write the manifest.
+     * @param file The file to write to
+     * @throws IOException if it cannot be written
+     */
+    public void write(File file) throws IOException {
+        // Write aside and rename, a manifest is either complete or missing
+        File temp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            out.println("# shard manifest");
+            out.println("shard\t" + shard + "\t" + shards);
+            out.println("spec\t" + spec);
+            out.println("directories\t" + totalDirectories);
+            out.println("part\t" + partName(shard) + "\t" + records + "\t" + bytes + "\t" + Long.toHexString(checksum));
+            out.println("# directory\tindex\tfiles\trecords");
+            for (Directory directory : directories.values())
+                out.println("dir\t" + directory.name + "\t" + directory.index + "\t" + directory.files + "\t" + directory.records);
+            if (out.checkError())
+                throw new IOException("Error writing " + temp);
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Read a manifest.
+     * @param file The manifest file
+     * @return the manifest
+     * @throws IOException if it cannot be read or is not a manifest
+     */
+    public static ShardManifest read(File file) throws IOException {
+        ShardManifest manifest = null;
+        int shard = -1;
+        int shards = -1;
+        String spec = null;
+        int total = -1;
+        String[] part = null;
+        List<String[]> dirs = new ArrayList<String[]>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\t", -1);
+                switch (fields[0]) {
+                    case "shard":
+                        shard = Integer.parseInt(fields[1]);
+                        shards = Integer.parseInt(fields[2]);
+                        break;
+                    case "spec":
+                        spec = fields[1];
+                        break;
+                    case "directories":
+                        total = Integer.parseInt(fields[1]);
+                        break;
+                    case "part":
+                        part = fields;
+                        break;
+                    case "dir":
+                        dirs.add(fields);
+                        break;
+                    default:
+                        throw new IOException("Unknown line in " + file + ": " + line);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed manifest " + file + ": " + e.getMessage());
+        }
+        if (shard < 0 || spec == null || total < 0 || part == null || part.length < 5)
+            throw new IOException("Incomplete manifest " + file);
+        try {
+            manifest = new ShardManifest(shard, shards, spec, total);
+            manifest.setPart(Long.parseLong(part[2]), Long.parseLong(part[3]), Long.parseLong(part[4], 16));
+            for (String[] dir : dirs)
+                manifest.addDirectory(dir[1], Integer.parseInt(dir[2]), Long.parseLong(dir[3]), Long.parseLong(dir[4]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed manifest " + file + ": " + e.getMessage());
+        }
+        return manifest;
+    }
+
+    /**
+     * Check that the manifests of a sharded parse are complete and belong
+     * together.
+     * @param manifests The manifests, by shard
+     * @return the problems found, empty if there are none
+     */
+    public static List<String> validate(Map<Integer, ShardManifest> manifests) {
+        List<String> problems = new ArrayList<String>();
+        if (manifests.isEmpty()) {
+            problems.add("No manifests found");
+            return problems;
+        }
+        ShardManifest first = manifests.values().iterator().next();
+        int shards = first.shards;
+        for (ShardManifest manifest : manifests.values()) {
+            if (manifest.shards != shards)
+                problems.add("Shard " + manifest.shard + " is one of " + manifest.shards + " shards, shard "
+                        + first.shard + " of " + shards);
+            if (!manifest.spec.equals(first.spec))
+                problems.add("Shard " + manifest.shard + " was parsed with spec " + manifest.spec
+                        + ", shard " + first.shard + " with " + first.spec);
+            if (manifest.totalDirectories != first.totalDirectories)
+                problems.add("Shard " + manifest.shard + " found " + manifest.totalDirectories
+                        + " directories, shard " + first.shard + " found " + first.totalDirectories);
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            if (!manifests.containsKey(shard))
+                problems.add("Manifest of shard " + shard + " of " + shards + " is missing");
+        }
+        Map<String, Integer> owners = new HashMap<String, Integer>();
+        for (ShardManifest manifest : manifests.values()) {
+            long records = 0;
+            for (Directory directory : manifest.directories.values()) {
+                records += directory.records;
+                if (directory.index % shards != manifest.shard)
+                    problems.add("Directory " + directory.name + " (" + directory.index + ") does not belong to shard "
+                            + manifest.shard);
+                Integer owner = owners.put(directory.name, manifest.shard);
+                if (owner != null)
+                    problems.add("Directory " + directory.name + " is in shard " + owner + " and " + manifest.shard);
+            }
+            if (records != manifest.records)
+                problems.add("The directories of shard " + manifest.shard + " hold " + records
+                        + " records, its part " + manifest.records);
+        }
+        if (problems.isEmpty() && owners.size() != first.totalDirectories)
+            problems.add(owners.size() + " directories were parsed, the data folder has " + first.totalDirectories);
+        return problems;
+    }
+
+    /**
+     * Validate the manifests of a sharded parse and concatenate the parts, in
+     * shard order, into the final output.
+     * @param dir The output directory of the shards
+     * @param outputFile The final output file
+     * @return true if the output was written, false if there were problems
+     * @throws IOException if a part or the output cannot be read or written
+     */
+    public static boolean merge(String dir, String outputFile) throws IOException {
+        Trace.Span span = Trace.get().begin("merge", "merge.shards", dir);
+        try {
+            return mergeParts(dir, outputFile);
+        } finally {
+            span.end();
+        }
+    }
+
+    private static boolean mergeParts(String dir, String outputFile) throws IOException {
+        Map<Integer, ShardManifest> manifests = new HashMap<Integer, ShardManifest>();
+        List<String> problems = new ArrayList<String>();
+        File[] files = new File(dir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith("part-") || !file.getName().endsWith(".tsv"))
+                    continue;
+                ShardManifest manifest = read(file);
+                if (!file.getName().equals(manifestName(manifest.shard)))
+                    problems.add(file.getName() + " holds the manifest of shard " + manifest.shard);
+                else
+                    manifests.put(manifest.shard, manifest);
+            }
+        }
+        problems.addAll(validate(manifests));
+        if (!problems.isEmpty()) {
+            report(problems);
+            return false;
+        }
+        int shards = manifests.get(0).shards;
+        File output = new File(outputFile);
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        long records = 0;
+        byte[] buffer = new byte[1 << 20];
+        try (OutputStream out = new FileOutputStream(output)) {
+            for (int shard = 0; shard < shards; shard++) {
+                ShardManifest manifest = manifests.get(shard);
+                File part = new File(dir, partName(shard));
+                if (!part.isFile() || part.length() != manifest.bytes) {
+                    problems.add(part.getName() + " is " + (part.isFile() ? part.length() + " bytes" : "missing")
+                            + ", its manifest says " + manifest.bytes + " bytes");
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                long lines = 0;
+                try (InputStream in = new FileInputStream(part)) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        crc.update(buffer, 0, n);
+                        for (int i = 0; i < n; i++) {
+                            if (buffer[i] == '\n')
+                                lines++;
+                        }
+                        out.write(buffer, 0, n);
+                    }
+                }
+                if (crc.getValue() != manifest.checksum)
+                    problems.add(part.getName() + " has checksum " + Long.toHexString(crc.getValue())
+                            + ", its manifest says " + Long.toHexString(manifest.checksum));
+                if (lines != manifest.records)
+                    problems.add(part.getName() + " holds " + lines + " records, its manifest says " + manifest.records);
+                if (!problems.isEmpty())
+                    break;
+                records += lines;
+            }
+        }
+        if (!problems.isEmpty()) {
+            output.delete();
+            report(problems);
+            return false;
+        }
+        System.out.println("Merged " + records + " records of " + shards + " shards into " + outputFile);
+        return true;
+    }
+
+    private static void report(List<String> problems) {
+        System.err.println("Cannot merge the shards:");
+        for (String problem : problems)
+            System.err.println(" " + problem);
+    }
+}
@@ -0,0 +1,394 @@
+package net.vanlaere.flickr.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class provides an inverted index from tags to the photos carrying them.
+ *
+ * The index is built while parsing: the thread that writes the final file
+ * interns every tag into a dictionary (tag to int id), and collects the
+ * ordinals of the photos per tag id. A photo ordinal is the (0 based) line
+ * number of the photo in the final file, so the ordinals are collected in
+ * order. Once the file is written, the index is written to a directory
+ * containing:
+ * <ul>
+ * <li>tags.dict : one "id TAB tag" line per tag</li>
+ * <li>postings.bin : per tag id, the sorted photo ordinals, delta and varint encoded</li>
+ * <li>postings.idx : per tag id, the offset, length and count of its postings</li>
+ * <li>photo_tags.bin : per photo, the number of tags and their ids as varints</li>
+ * </ul>
+ *
+ * @author oliviervanlaere@gmail.com
+ */
+public class TagIndex {
+
+    public static final String DICTIONARY_FILE = "tags.dict";
+
+    public static final String POSTINGS_FILE = "postings.bin";
+
+    public static final String OFFSETS_FILE = "postings.idx";
+
+    public static final String PHOTO_TAGS_FILE = "photo_tags.bin";
+
+    /**
+     * Size of an entry in the offsets file: a long offset, an int length and an int count.
+     */
+    private static final int OFFSET_ENTRY_SIZE = 16;
+
+    /**
+     * Builds the dictionary and writes the index.
+     */
+    public static class Builder {
+
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        /**
+         * Get the id of a tag, assigning a new one if the tag was not seen
+         * before. The ids are dense.
+         * @param tag The tag
+         * @return the id of the tag
+         */
+        public int intern(String tag) {
+            Integer id = dictionary.get(tag);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(tag, id);
+            }
+            return id;
+        }
+
+        /**
+         * Create the postings of the final file.
+         * @return a new Postings instance, to be used by one thread only
+         * @throws IOException if the temp file for the tag lists cannot be created
+         */
+        public Postings newPostings() throws IOException {
+            return new Postings(this);
+        }
+
+        /**
+         * Write the index.
+         * @param dir The directory to write the index to
+         * @param postings The postings of the final file, closed
+         * @throws IOException if the index cannot be written
+         */
+        public void write(String dir, Postings postings) throws IOException {
+            File directory = new File(dir);
+            directory.mkdirs();
+            // Write the dictionary, ordered by id
+            int nrTags = dictionary.size();
+            String[] tags = new String[nrTags];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet())
+                tags[entry.getValue()] = entry.getKey();
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(directory, DICTIONARY_FILE)), StandardCharsets.UTF_8))) {
+                for (int id = 0; id < nrTags; id++)
+                    out.println(id + "\t" + tags[id]);
+            }
+            // Write the postings in id order, the ordinals of a tag are already sorted
+            try (OutputStream out = new BufferedOutputStream(
+                        new FileOutputStream(new File(directory, POSTINGS_FILE)), 1 << 16);
+                    DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(new File(directory, OFFSETS_FILE)), 1 << 16))) {
+                ByteList buffer = new ByteList();
+                long offset = 0;
+                for (int id = 0; id < nrTags; id++) {
+                    IntList list = postings.lists[id];
+                    buffer.clear();
+                    int previous = 0;
+                    for (int i = 0; i < list.size; i++) {
+                        buffer.writeVarint(list.values[i] - previous);
+                        previous = list.values[i];
+                    }
+                    out.write(buffer.values, 0, buffer.size);
+                    offsets.writeLong(offset);
+                    offsets.writeInt(buffer.size);
+                    offsets.writeInt(list.size);
+                    offset += buffer.size;
+                }
+            }
+            // The per photo tag lists are already in the order of the final file
+            File photoTags = new File(directory, PHOTO_TAGS_FILE);
+            photoTags.delete();
+            if (!postings.tagIdsFile.renameTo(photoTags)) {
+                try (InputStream in = new FileInputStream(postings.tagIdsFile);
+                        OutputStream out = new FileOutputStream(photoTags)) {
+                    byte[] buf = new byte[1 << 16];
+                    int len;
+                    while ((len = in.read(buf)) > 0)
+                        out.write(buf, 0, len);
+                }
+                postings.tagIdsFile.delete();
+            }
+            System.out.println("Tag index with " + nrTags + " tags written to " + directory);
+        }
+    }
+
+    /**
+     * The postings collected by the writer of the final file. Photos are
+     * numbered in the order they are added, starting from 0.
+     */
+    public static class Postings {
+
+        private final Builder builder;
+
+        /**
+         * The ordinals of the photos by tag id. The ids are dense, so they index an array.
+         */
+        private IntList[] lists = new IntList[1024];
+
+        private final File tagIdsFile;
+
+        private final DataOutputStream tagIds;
+
+        private final IntList photoTags = new IntList();
+
+        private final ByteList buffer = new ByteList();
+
+        private int count = 0;
+
+        private Postings(Builder builder) throws IOException {
+            this.builder = builder;
+            this.tagIdsFile = File.createTempFile("TagIndex_", ".tmp");
+            this.tagIds = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tagIdsFile), 1 << 16));
+        }
+
+        /**
+         * Add the next photo.
+         * @param tags The space separated tags of the photo
+         * @throws IOException if the tag list cannot be written
+         */
+        public void add(String tags) throws IOException {
+            int ordinal = count++;
+            photoTags.clear();
+            if (tags != null) {
+                int start = 0;
+                int length = tags.length();
+                while (start < length) {
+                    int end = tags.indexOf(' ', start);
+                    if (end < 0)
+                        end = length;
+                    if (end > start) {
+                        int id = builder.intern(tags.substring(start, end));
+                        // Skip duplicate tags on the same photo
+                        if (!photoTags.contains(id)) {
+                            photoTags.add(id);
+                            if (id == lists.length)
+                                lists = Arrays.copyOf(lists, lists.length * 2);
+                            if (lists[id] == null)
+                                lists[id] = new IntList();
+                            lists[id].add(ordinal);
+                        }
+                    }
+                    start = end + 1;
+                }
+            }
+            buffer.clear();
+            buffer.writeVarint(photoTags.size);
+            for (int i = 0; i < photoTags.size; i++)
+                buffer.writeVarint(photoTags.values[i]);
+            tagIds.write(buffer.values, 0, buffer.size);
+        }
+
+        /**
+         * @return the number of photos added
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Flush the tag lists to disk.
+         * @throws IOException if the tag lists cannot be written
+         */
+        public void close() throws IOException {
+            tagIds.close();
+        }
+    }
+
+    /**
+     * The directory containing the index.
+     */
+    private final File dir;
+
+    /**
+     * The dictionary, mapping tags to their id.
+     */
+    private final Map<String, Integer> dictionary;
+
+    private TagIndex(File dir, Map<String, Integer> dictionary) {
+        this.dir = dir;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Open an index that was written during parsing.
+     * @param dir The directory containing the index
+     * @return the opened TagIndex
+     * @throws IOException if the dictionary cannot be read
+     */
+    public static TagIndex open(String dir) throws IOException {
+        File directory = new File(dir);
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(directory, DICTIONARY_FILE)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                dictionary.put(line.substring(tab + 1), Integer.parseInt(line.substring(0, tab)));
+            }
+        }
+        return new TagIndex(directory, dictionary);
+    }
+
+    /**
+     * @param tag The tag to look up
+     * @return the id of the tag, or -1 if the tag is unknown
+     */
+    public int getTagId(String tag) {
+        Integer id = dictionary.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the number of tags in the dictionary
+     */
+    public int size() {
+        return dictionary.size();
+    }
+
+    /**
+     * Look up the photos carrying a tag.
+     * @param tag The tag to look up
+     * @return the sorted ordinals of the photos with this tag
+     * @throws IOException if the index cannot be read
+     */
+    public int[] lookup(String tag) throws IOException {
+        int id = getTagId(tag);
+        if (id < 0)
+            return new int[0];
+        long offset;
+        int length;
+        int count;
+        try (RandomAccessFile offsets = new RandomAccessFile(new File(dir, OFFSETS_FILE), "r")) {
+            offsets.seek((long) id * OFFSET_ENTRY_SIZE);
+            offset = offsets.readLong();
+            length = offsets.readInt();
+            count = offsets.readInt();
+        }
+        byte[] encoded = new byte[length];
+        try (RandomAccessFile postings = new RandomAccessFile(new File(dir, POSTINGS_FILE), "r")) {
+            postings.seek(offset);
+            postings.readFully(encoded);
+        }
+        int[] ordinals = new int[count];
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += delta;
+            ordinals[i] = previous;
+        }
+        return ordinals;
+    }
+
+    /**
+     * Look up the photos for a tag from the command line.
+     * @param args index directory and one or more tags
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Missing arguments.");
+            System.out.println("Usage: indexdir tag [tag ...]");
+            return;
+        }
+        TagIndex index = TagIndex.open(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            long start = System.nanoTime();
+            int[] ordinals = index.lookup(args[i]);
+            long stop = System.nanoTime();
+            System.out.println(args[i] + "\t" + ordinals.length + " photos (" + (stop - start) / 1000 + " us)");
+            int shown = Math.min(ordinals.length, 20);
+            System.out.println(Arrays.toString(Arrays.copyOf(ordinals, shown)) + (shown < ordinals.length ? " ..." : ""));
+        }
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    static class IntList {
+
+        int[] values = new int[4];
+
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        boolean contains(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value)
+                    return true;
+            }
+            return false;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Growable byte buffer with varint encoding.
+     */
+    static class ByteList {
+
+        byte[] values = new byte[64];
+
+        int size = 0;
+
+        void writeVarint(int value) {
+            if (size + 5 > values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            while ((value & ~0x7F) != 0) {
+                values[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            values[size++] = (byte) value;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}